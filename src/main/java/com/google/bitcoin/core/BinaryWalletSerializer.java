@@ -0,0 +1,453 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.bitcoin.core.WalletTransaction.Pool;
+
+/**
+ * Reads and writes a {@link Wallet} in a compact binary format, instead of Java serialization of the whole object
+ * graph.<p>
+ *
+ * The file starts with {@link #MAGIC} and a format version, followed by the network, the keys and the transactions.
+ * The keys are one record and each transaction is a record, each prefixed with its length, so later versions can add
+ * fields to the end of a record without breaking older readers. A transaction is stored as its raw bytes followed by
+ * its state: the pool it is in, its update time, its confidence, the blocks it appears in and which of its inputs are
+ * connected to outputs of other transactions in the wallet. The connections are made again once every transaction
+ * has been read.<p>
+ *
+ * The keys are written with Java serialization, which keeps the public key of each key. Making a key from just its
+ * private key takes an elliptic curve multiply to work out the public key, which for a wallet of thousands of keys
+ * would be most of the time taken to load it. Version 1 wrote a record per key with the private and public key
+ * bytes, and is still read.<p>
+ *
+ * Which peers have announced a pending transaction is not stored, it is only known while connected anyway.
+ */
+public class BinaryWalletSerializer {
+    public static final byte[] MAGIC = { 'M', 'B', 'W', 'L' };
+    public static final int VERSION = 2;
+
+    // The codes stored for pools and confidence types, by position.
+    private static final Pool[] POOLS = { Pool.UNSPENT, Pool.SPENT, Pool.PENDING, Pool.INACTIVE, Pool.DEAD,
+            Pool.PENDING_INACTIVE };
+    private static final TransactionConfidence.ConfidenceType[] CONFIDENCE_TYPES = {
+            TransactionConfidence.ConfidenceType.UNKNOWN, TransactionConfidence.ConfidenceType.BUILDING,
+            TransactionConfidence.ConfidenceType.NOT_SEEN_IN_CHAIN,
+            TransactionConfidence.ConfidenceType.NOT_IN_BEST_CHAIN,
+            TransactionConfidence.ConfidenceType.OVERRIDDEN_BY_DOUBLE_SPEND };
+
+    private static final Comparator<Sha256Hash> HASH_ORDER = new Comparator<Sha256Hash>() {
+        public int compare(Sha256Hash a, Sha256Hash b) {
+            return a.toString().compareTo(b.toString());
+        }
+    };
+
+    private BinaryWalletSerializer() {
+    }
+
+    /**
+     * @return true if the stream starts with {@link #MAGIC}. The stream must support mark and reset, and is left
+     *         where it was.
+     */
+    public static boolean isBinaryWallet(InputStream stream) throws IOException {
+        stream.mark(MAGIC.length);
+        try {
+            byte[] start = new byte[MAGIC.length];
+            int read = 0;
+            while (read < start.length) {
+                int count = stream.read(start, read, start.length - read);
+                if (count < 0)
+                    return false;
+                read += count;
+            }
+            return Arrays.equals(MAGIC, start);
+        } finally {
+            stream.reset();
+        }
+    }
+
+    /**
+     * @return true if the file is a wallet written by this class
+     */
+    public static boolean isBinaryWallet(File file) throws IOException {
+        InputStream stream = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return isBinaryWallet(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Write the wallet to the stream, which is flushed but not closed.
+     */
+    public static void writeWallet(Wallet wallet, OutputStream stream) throws IOException {
+        synchronized (wallet) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+
+            NetworkParameters params = wallet.getNetworkParameters();
+            out.write(params.genesisBlock.getHash().getBytes());
+            out.writeInt(params.interval);
+
+            writeBytes(out, encodeKeys(wallet.keychain));
+
+            List<WalletTransaction> transactions = new ArrayList<WalletTransaction>();
+            for (WalletTransaction wtx : wallet.getWalletTransactions())
+                transactions.add(wtx);
+            out.writeInt(transactions.size());
+            for (WalletTransaction wtx : transactions)
+                writeBytes(out, encodeTransaction(wtx.getTransaction(), encodeState(wtx)));
+            out.flush();
+        }
+    }
+
+    /**
+     * Read a wallet written by {@link #writeWallet(Wallet, OutputStream)}, with its inputs connected to the outputs
+     * they spend as they were when it was written.
+     */
+    public static Wallet readWallet(InputStream stream) throws IOException {
+        return buildWallet(readRecords(stream));
+    }
+
+    /**
+     * The keys and transactions read from a wallet, before the wallet is built from them. {@link WalletJournal}
+     * replays its entries over these.
+     */
+    static class WalletRecords {
+        final NetworkParameters params;
+        final List<ECKey> keys = new ArrayList<ECKey>();
+        final Map<Sha256Hash, TransactionRecord> transactions = new LinkedHashMap<Sha256Hash, TransactionRecord>();
+
+        WalletRecords(NetworkParameters params) {
+            this.params = params;
+        }
+
+        void put(TransactionRecord record) {
+            transactions.put(record.tx.getHash(), record);
+        }
+    }
+
+    /**
+     * A transaction and its state as encoded by {@link BinaryWalletSerializer#encodeState(WalletTransaction)}.
+     */
+    static class TransactionRecord {
+        final Transaction tx;
+        byte[] state;
+
+        TransactionRecord(Transaction tx, byte[] state) {
+            this.tx = tx;
+            this.state = state;
+        }
+    }
+
+    static WalletRecords readRecords(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(MAGIC, magic))
+            throw new IOException("Not a binary wallet");
+        int version = in.readInt();
+        if (version > VERSION)
+            throw new IOException("Wallet format version " + version + " is newer than this software can read");
+
+        byte[] genesisHash = new byte[32];
+        in.readFully(genesisHash);
+        WalletRecords records = new WalletRecords(findNetworkParameters(new Sha256Hash(genesisHash), in.readInt()));
+
+        if (version >= 2) {
+            records.keys.addAll(decodeKeys(readBytes(in)));
+        } else {
+            int keyCount = in.readInt();
+            for (int i = 0; i < keyCount; i++)
+                records.keys.add(decodeKey(readBytes(in)));
+        }
+        int transactionCount = in.readInt();
+        for (int i = 0; i < transactionCount; i++)
+            records.put(decodeTransaction(records.params, readBytes(in)));
+        return records;
+    }
+
+    static Wallet buildWallet(WalletRecords records) throws IOException {
+        Wallet wallet = new Wallet(records.params);
+        wallet.keychain.addAll(records.keys);
+
+        Map<Sha256Hash, Transaction> byHash = new HashMap<Sha256Hash, Transaction>();
+        Map<Transaction, int[]> connections = new HashMap<Transaction, int[]>();
+        Map<Transaction, Sha256Hash> overriddenBy = new HashMap<Transaction, Sha256Hash>();
+        for (TransactionRecord record : records.transactions.values()) {
+            byHash.put(record.tx.getHash(), record.tx);
+            applyState(record, wallet, connections, overriddenBy);
+        }
+
+        // Connect the inputs to the outputs they spend now every transaction has been read.
+        for (Map.Entry<Transaction, int[]> entry : connections.entrySet()) {
+            List<TransactionInput> inputs = entry.getKey().getInputs();
+            int[] connected = entry.getValue();
+            for (int j = 0; j < connected.length; j++) {
+                int index = connected[j] >> 1;
+                boolean spender = (connected[j] & 1) != 0;
+                if (index >= inputs.size())
+                    throw new IOException("Connected input " + index + " out of range");
+                TransactionInput input = inputs.get(index);
+                TransactionOutPoint outpoint = input.getOutpoint();
+                Transaction from = byHash.get(outpoint.getHash());
+                if (from == null || outpoint.getIndex() >= from.getOutputs().size())
+                    continue;
+                outpoint.fromTx = from;
+                if (spender)
+                    from.getOutputs().get((int) outpoint.getIndex()).markAsSpent(input);
+            }
+        }
+        for (Map.Entry<Transaction, Sha256Hash> entry : overriddenBy.entrySet()) {
+            Transaction overriding = byHash.get(entry.getValue());
+            if (overriding != null)
+                entry.getKey().getConfidence().setOverridingTransaction(overriding);
+        }
+        return wallet;
+    }
+
+    /**
+     * A key record is the number of keys followed by each key with Java serialization and its creation time.
+     */
+    static byte[] encodeKeys(List<ECKey> keys) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeInt(keys.size());
+        for (ECKey key : keys) {
+            out.writeObject(key);
+            out.writeLong(key.getCreationTimeSeconds());
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static List<ECKey> decodeKeys(byte[] record) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(record));
+        int count = in.readInt();
+        List<ECKey> keys = new ArrayList<ECKey>(count);
+        for (int i = 0; i < count; i++) {
+            ECKey key;
+            try {
+                key = (ECKey) in.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Could not read key " + i, e);
+            } catch (ClassCastException e) {
+                throw new IOException("Key record holds something other than a key", e);
+            }
+            key.setCreationTimeSeconds(in.readLong());
+            keys.add(key);
+        }
+        // The public keys are trusted as read, but one is checked so that a record that does not hold what it
+        // should is noticed.
+        if (!keys.isEmpty()) {
+            ECKey first = keys.get(0);
+            if (!Arrays.equals(first.getPubKey(), new ECKey(new BigInteger(1, first.getPrivKeyBytes())).getPubKey()))
+                throw new IOException("Public key does not match its private key");
+        }
+        return keys;
+    }
+
+    /**
+     * Read a key record of version 1, working out the public key from the private key to check the one stored.
+     */
+    static ECKey decodeKey(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte[] privKeyBytes = readBytes(in);
+        byte[] pubKey = readBytes(in);
+        ECKey key = new ECKey(new BigInteger(1, privKeyBytes));
+        if (!Arrays.equals(pubKey, key.getPubKey()))
+            throw new IOException("Public key does not match its private key");
+        key.setCreationTimeSeconds(in.readLong());
+        return key;
+    }
+
+    /**
+     * A transaction record is the raw transaction followed by its state.
+     */
+    static byte[] encodeTransaction(Transaction tx, byte[] state) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeBytes(out, tx.bitcoinSerialize());
+        out.write(state);
+        return bytes.toByteArray();
+    }
+
+    static TransactionRecord decodeTransaction(NetworkParameters params, byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte[] txBytes = readBytes(in);
+        Transaction tx;
+        try {
+            tx = new Transaction(params, txBytes);
+        } catch (ProtocolException e) {
+            throw new IOException("Bad transaction in wallet: " + e.getMessage());
+        }
+        int offset = 4 + txBytes.length;
+        return new TransactionRecord(tx, Arrays.copyOfRange(record, offset, record.length));
+    }
+
+    /**
+     * The part of a transaction record that changes as the wallet learns more about it: the pool it is in, its update
+     * time, its confidence, the blocks it appears in and its connected inputs. The encoding is the same for the same
+     * state, so it can be compared to find the transactions that changed.
+     */
+    static byte[] encodeState(WalletTransaction wtx) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Transaction tx = wtx.getTransaction();
+        out.writeByte(code(POOLS, wtx.getPool()));
+        Date updatedAt = tx.getUpdatedAt();
+        out.writeLong(updatedAt == null ? -1 : updatedAt.getTime());
+
+        TransactionConfidence confidence = tx.getConfidence();
+        TransactionConfidence.ConfidenceType type = confidence.getConfidenceType();
+        int typeCode = code(CONFIDENCE_TYPES, type);
+        out.writeByte(typeCode < 0 ? 0 : typeCode);
+        if (type == TransactionConfidence.ConfidenceType.BUILDING)
+            out.writeInt(confidence.getAppearedAtChainHeight());
+        Transaction overriding = null;
+        if (type == TransactionConfidence.ConfidenceType.OVERRIDDEN_BY_DOUBLE_SPEND)
+            overriding = confidence.getOverridingTransaction();
+        out.writeBoolean(overriding != null);
+        if (overriding != null)
+            out.write(overriding.getHash().getBytes());
+
+        // Sorted so the order the hashes were added in does not matter.
+        Collection<Sha256Hash> appearsIn = tx.getAppearsInHashes();
+        out.writeInt(appearsIn == null ? -1 : appearsIn.size());
+        if (appearsIn != null) {
+            List<Sha256Hash> blockHashes = new ArrayList<Sha256Hash>(appearsIn);
+            Collections.sort(blockHashes, HASH_ORDER);
+            for (Sha256Hash blockHash : blockHashes)
+                out.write(blockHash.getBytes());
+        }
+
+        // The inputs connected to an output in the wallet, and whether the output is marked as spent by that input
+        // rather than by another transaction that double spent it.
+        List<Integer> connected = new ArrayList<Integer>();
+        List<TransactionInput> inputs = tx.getInputs();
+        for (int i = 0; i < inputs.size(); i++) {
+            TransactionInput input = inputs.get(i);
+            Transaction from = input.getOutpoint().fromTx;
+            if (from == null)
+                continue;
+            TransactionOutput output = from.getOutputs().get((int) input.getOutpoint().getIndex());
+            connected.add((i << 1) | (output.getSpentBy() == input ? 1 : 0));
+        }
+        out.writeInt(connected.size());
+        for (int value : connected)
+            out.writeInt(value);
+        return bytes.toByteArray();
+    }
+
+    private static void applyState(TransactionRecord record, Wallet wallet, Map<Transaction, int[]> connections,
+            Map<Transaction, Sha256Hash> overriddenBy) throws IOException {
+        Transaction tx = record.tx;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record.state));
+        Pool pool = decode(POOLS, in.readByte());
+        long updatedAt = in.readLong();
+        tx.setUpdatedAt(updatedAt == -1 ? null : new Date(updatedAt));
+
+        TransactionConfidence.ConfidenceType type = decode(CONFIDENCE_TYPES, in.readByte());
+        TransactionConfidence confidence = tx.getConfidence();
+        confidence.setConfidenceType(type);
+        if (type == TransactionConfidence.ConfidenceType.BUILDING)
+            confidence.setAppearedAtChainHeight(in.readInt());
+        if (in.readBoolean())
+            overriddenBy.put(tx, readHash(in));
+
+        int appearsInCount = in.readInt();
+        for (int i = 0; i < appearsInCount; i++)
+            tx.addBlockAppearance(readHash(in));
+
+        int[] connected = new int[in.readInt()];
+        for (int i = 0; i < connected.length; i++)
+            connected[i] = in.readInt();
+        if (connected.length > 0)
+            connections.put(tx, connected);
+
+        wallet.addWalletTransaction(new WalletTransaction(pool, tx));
+    }
+
+    private static NetworkParameters findNetworkParameters(Sha256Hash genesisHash, int interval) throws IOException {
+        NetworkParameters[] candidates = { NetworkParameters.prodNet(), NetworkParameters.testNet(),
+                NetworkParameters.unitTests() };
+        for (NetworkParameters params : candidates) {
+            if (params.genesisBlock.getHash().equals(genesisHash) && params.interval == interval)
+                return params;
+        }
+        throw new IOException("Wallet is for an unknown network with genesis block " + genesisHash);
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            throw new IOException("Negative length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    static Sha256Hash readHash(DataInputStream in) throws IOException {
+        byte[] hash = new byte[32];
+        in.readFully(hash);
+        return new Sha256Hash(hash);
+    }
+
+    private static <T> int code(T[] values, T value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value)
+                return i;
+        }
+        return -1;
+    }
+
+    private static <T> T decode(T[] values, int code) throws IOException {
+        if (code < 0 || code >= values.length)
+            throw new IOException("Unknown code " + code);
+        return values[code];
+    }
+}
@@ -18,11 +18,18 @@ package com.google.bitcoin.core;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.multibit.IsMultiBitClass;
 import org.slf4j.Logger;
@@ -67,20 +74,32 @@ public class BlockChain implements IsMultiBitClass {
      * Following this one down to the genesis block produces the story of the economy from the creation of BitCoin
      * until the present day. The chain head can change if a new set of blocks is received that results in a chain of
      * greater work than the one obtained by following this one down. In that case a reorganize is triggered,
-     * potentially invalidating transactions in our wallet.
+     * potentially invalidating transactions in our wallet.<p>
+     *
+     * Only changed with the chain locked, but published as an immutable snapshot so accessors never wait for the
+     * chain to become free whilst it is downloading.
      */
-    protected StoredBlock chainHead;
-    // chainHead is accessed under this lock rather than the BlockChain lock. This is to try and keep accessors
-    // responsive whilst the chain is downloading, without free-threading the entire chain add process (which could
-    // get very confusing in the case of multiple blocks being added simultaneously).
-    protected final Object chainHeadLock = new Object();
+    private volatile ChainHead chainHead;
 
     protected final NetworkParameters params;
+    // Copy on write so blocks can be scanned without the chain locked.
     protected final List<Wallet> wallets;
+    // Finds the wallets each transaction might be relevant to. Guarded by its own monitor.
+    private final WalletIndex walletIndex = new WalletIndex();
+
+    // Number of transactions scanned by each task when blocks are scanned in parallel.
+    private static final int SCAN_CHUNK_TRANSACTIONS = 64;
+    private volatile ExecutorService scanExecutor;
+
+    // The main chain block at the start of the current difficulty retarget window. It is recorded as the chain head
+    // passes it so the next difficulty transition does not have to walk back to it. Guarded by the chain lock.
+    protected StoredBlock retargetWindowStart;
 
     // Holds blocks that we have received but can't plug into the chain yet, eg because they were created whilst we
     // were downloading the block chain.
-    private final ArrayList<Block> unconnectedBlocks = new ArrayList<Block>();
+    private final UnconnectedBlockPool unconnectedBlocks = new UnconnectedBlockPool();
+
+    private final BlockChainMetrics metrics = new BlockChainMetrics(this);
 
     /**
      * Constructs a BlockChain connected to the given wallet and store. To obtain a {@link Wallet} you can construct
@@ -110,10 +129,10 @@ public class BlockChain implements IsMultiBitClass {
     public BlockChain(NetworkParameters params, List<Wallet> wallets,
                       BlockStore blockStore) throws BlockStoreException {
         this.blockStore = blockStore;
-        chainHead = blockStore.getChainHead();
-        log.info("chain head is at height {}:\n{}", chainHead.getHeight(), chainHead.getHeader());
         this.params = params;
-        this.wallets = new ArrayList<Wallet>(wallets);
+        publishChainHead(blockStore.getChainHead());
+        log.info("chain head is at height {}:\n{}", chainHead.getHeight(), chainHead.getBlock().getHeader());
+        this.wallets = new CopyOnWriteArrayList<Wallet>(wallets);
     }
 
     /**
@@ -125,6 +144,16 @@ public class BlockChain implements IsMultiBitClass {
         wallets.add(wallet);
     }
 
+    /**
+     * Look the transactions of large blocks up in the wallet index on the given executor, in chunks of
+     * {@value #SCAN_CHUNK_TRANSACTIONS} transactions, rather than on the thread adding the block. The wallets are
+     * still asked about the transactions found on the adding thread. Pass null to do it all on the adding thread,
+     * which is the default.
+     */
+    public void setScanExecutor(ExecutorService scanExecutor) {
+        this.scanExecutor = scanExecutor;
+    }
+
     /**
      * Returns the {@link BlockStore} the chain was constructed with. You can use this to iterate over the chain.
      */
@@ -135,49 +164,48 @@ public class BlockChain implements IsMultiBitClass {
     /**
      * Processes a received block and tries to add it to the chain. If there's something wrong with the block an
      * exception is thrown. If the block is OK but cannot be connected to the chain at this time, returns false.
-     * If the block can be connected to the chain, returns true.
+     * If the block can be connected to the chain, returns true.<p>
+     *
+     * Scanning the transactions and verifying the block are done before the chain is locked, see
+     * {@link #prepare(Block)}, so only linking the block into the chain is serialized. The scan does depend on the
+     * chain though: an input is only seen to spend one of our outputs once the block holding that output has been
+     * connected. So if the block did not extend the chain head as it was when the scan started, or another block was
+     * connected meanwhile, it is scanned again with the chain locked.
      */
-    public synchronized boolean add(Block block) throws VerificationException, ScriptException {
+    public boolean add(Block block) throws VerificationException, ScriptException {
         try {
-            return add(block, true);
+            if (block.equals(getChainHead().getHeader())) {
+                log.debug("Chain head added more than once: {}", block.getHash());
+                return true;
+            }
+            StoredBlock headAtPrepare = getChainHead();
+            HashMap<Wallet, List<Transaction>> walletToTxMap = prepare(block);
+            synchronized (this) {
+                if (block.transactions != null && (!getChainHead().equals(headAtPrepare) ||
+                        !block.getPrevBlockHash().equals(headAtPrepare.getHeader().getHash())))
+                    walletToTxMap = rescan(block, walletToTxMap);
+                return add(block, walletToTxMap, true);
+            }
         } catch (BlockStoreException e) {
             // TODO: Figure out a better way to propagate this exception to the user.
             throw new RuntimeException(e);
         }
     }
 
-    // Stat counters.
-    private long statsLastTime = System.currentTimeMillis();
-    private long statsBlocksAdded;
-
-    private synchronized boolean add(Block block, boolean tryConnecting)
-            throws BlockStoreException, VerificationException, ScriptException {
-        // Note on locking: this method runs with the block chain locked. All mutations to the chain are serialized.
-        // This has the undesirable consequence that during block chain download, it's slow to read the current chain
-        // head and other chain info because the accessors are constantly waiting for the chain to become free. To
-        // solve this things viewable via accessors must use fine-grained locking as well as being mutated under the
-        // chain lock.
-        if (System.currentTimeMillis() - statsLastTime > 1000) {
-            // More than a second passed since last stats logging.
-            if (statsBlocksAdded > 1)
-                log.info("{} blocks per second", statsBlocksAdded);
-            statsLastTime = System.currentTimeMillis();
-            statsBlocksAdded = 0;
-        }
-        // We check only the chain head for double adds here to avoid potentially expensive block chain misses.
-        if (block.equals(chainHead.getHeader())) {
-            // Duplicate add of the block at the top of the chain, can be a natural artifact of the download process.
-            log.debug("Chain head added more than once: {}", block.getHash());
-            return true;
-        }
-
+    /**
+     * Finds the transactions in the block that are relevant to each wallet and proves the block is internally
+     * valid. Runs without the chain locked.
+     */
+    private HashMap<Wallet, List<Transaction>> prepare(Block block) throws VerificationException {
         // Does this block contain any transactions we might care about? Check this up front before verifying the
         // blocks validity so we can skip the merkle root verification if the contents aren't interesting. This saves
         // a lot of time for big blocks.
         boolean contentsImportant = false;
         HashMap<Wallet, List<Transaction>> walletToTxMap = new HashMap<Wallet, List<Transaction>>();
         if (block.transactions != null) {
+            long start = System.nanoTime();
             scanTransactions(block, walletToTxMap);
+            metrics.getRelevanceScan().recordSince(start);
             contentsImportant = walletToTxMap.size() > 0;
         }
 
@@ -186,17 +214,65 @@ public class BlockChain implements IsMultiBitClass {
         // are only lightly verified: presence in a valid connecting block is taken as proof of validity. See the
         // article here for more details: http://code.google.com/p/bitcoinj/wiki/SecurityModel
         try {
+            long start = System.nanoTime();
             block.verifyHeader();
-            if (contentsImportant)
+            metrics.getHeaderVerification().recordSince(start);
+            if (contentsImportant) {
+                start = System.nanoTime();
                 block.verifyTransactions();
+                metrics.getMerkleVerification().recordSince(start);
+            }
         } catch (VerificationException e) {
             log.error("Failed to verify block: ", e);
             log.error(block.getHashAsString());
             throw e;
         }
+        return walletToTxMap;
+    }
+
+    /**
+     * Scans the block again with the chain locked, verifying its transactions if that finds some relevant ones that
+     * the first scan did not.
+     */
+    private HashMap<Wallet, List<Transaction>> rescan(Block block, HashMap<Wallet, List<Transaction>> prepared)
+            throws VerificationException {
+        HashMap<Wallet, List<Transaction>> walletToTxMap = new HashMap<Wallet, List<Transaction>>();
+        long start = System.nanoTime();
+        scanTransactions(block, walletToTxMap);
+        metrics.getRelevanceScan().recordSince(start);
+        if (prepared.isEmpty() && !walletToTxMap.isEmpty()) {
+            try {
+                start = System.nanoTime();
+                block.verifyTransactions();
+                metrics.getMerkleVerification().recordSince(start);
+            } catch (VerificationException e) {
+                log.error("Failed to verify block: ", e);
+                log.error(block.getHashAsString());
+                throw e;
+            }
+        }
+        return walletToTxMap;
+    }
+
+    private synchronized boolean add(Block block, HashMap<Wallet, List<Transaction>> walletToTxMap,
+                                     boolean tryConnecting)
+            throws BlockStoreException, VerificationException, ScriptException {
+        // Note on locking: this method runs with the block chain locked. All mutations to the chain are serialized.
+        // This has the undesirable consequence that during block chain download, it's slow to read the current chain
+        // head and other chain info because the accessors are constantly waiting for the chain to become free. To
+        // solve this things viewable via accessors must use fine-grained locking as well as being mutated under the
+        // chain lock.
+        // We check only the chain head for double adds here to avoid potentially expensive block chain misses.
+        if (block.equals(getChainHead().getHeader())) {
+            // Duplicate add of the block at the top of the chain, can be a natural artifact of the download process.
+            log.debug("Chain head added more than once: {}", block.getHash());
+            return true;
+        }
 
         // Try linking it to a place in the currently known blocks.
+        long start = System.nanoTime();
         StoredBlock storedPrev = blockStore.get(block.getPrevBlockHash());
+        metrics.getStoreGet().recordSince(start);
 
         if (storedPrev == null) {
             // We can't find the previous block. Probably we are still in the process of downloading the chain and a
@@ -205,6 +281,7 @@ public class BlockChain implements IsMultiBitClass {
             assert tryConnecting : "bug in tryConnectingUnconnected";
             log.warn("Block does not connect: {}", block.getHashAsString());
             unconnectedBlocks.add(block);
+            metrics.setUnconnectedBlockCount(unconnectedBlocks.size());
             return false;
         } else {
             // It connects to somewhere on the chain. Not necessarily the top of the best known chain.
@@ -213,24 +290,28 @@ public class BlockChain implements IsMultiBitClass {
             // out of scope we will reclaim the used memory.
             StoredBlock newStoredBlock = storedPrev.build(block);
             checkDifficultyTransitions(storedPrev, newStoredBlock);
+            start = System.nanoTime();
             blockStore.put(newStoredBlock);
+            metrics.getStorePut().recordSince(start);
             connectBlock(newStoredBlock, storedPrev, walletToTxMap);
         }
 
-        if (tryConnecting)
-            tryConnectingUnconnected();
-
-        statsBlocksAdded++;
+        metrics.blockAdded();
+        if (tryConnecting) {
+            tryConnectingUnconnected(block.getHash());
+            metrics.setUnconnectedBlockCount(unconnectedBlocks.size());
+        }
         return true;
     }
 
     private void connectBlock(StoredBlock newStoredBlock, StoredBlock storedPrev,
                               HashMap<Wallet, List<Transaction>> newTransactions)
             throws BlockStoreException, VerificationException {
+        StoredBlock chainHead = getChainHead();
         if (storedPrev.equals(chainHead)) {
             // This block connects to the best known block, it is a normal continuation of the system.
             setChainHead(newStoredBlock);
-            log.debug("Chain is now {} blocks high", chainHead.getHeight());
+            log.debug("Chain is now {} blocks high", newStoredBlock.getHeight());
             if (newTransactions != null)
                 sendTransactionsToWallet(newStoredBlock, NewBlockType.BEST_CHAIN, newTransactions);
         } else {
@@ -278,6 +359,7 @@ public class BlockChain implements IsMultiBitClass {
         //
         // Firstly, calculate the block at which the chain diverged. We only need to examine the
         // chain from beyond this block to find differences.
+        StoredBlock chainHead = getChainHead();
         StoredBlock splitPoint = findSplit(newChainHead, chainHead);
         log.info("Re-organize after split at height {}", splitPoint.getHeight());
         log.info("Old chain head: {}", chainHead.getHeader().getHashAsString());
@@ -286,12 +368,15 @@ public class BlockChain implements IsMultiBitClass {
         // Then build a list of all blocks in the old part of the chain and the new part.
         List<StoredBlock> oldBlocks = getPartialChain(chainHead, splitPoint);
         List<StoredBlock> newBlocks = getPartialChain(newChainHead, splitPoint);
+        metrics.reorganized(oldBlocks.size());
         // Now inform the wallets. This is necessary so the set of currently active transactions (that we can spend)
         // can be updated to take into account the re-organize. We might also have received new coins we didn't have
         // before and our previous spends might have been undone.
         for (Wallet wallet : wallets) {
             wallet.reorganize(oldBlocks, newBlocks);
         }
+        // The recorded start of the retarget window may be on the old chain.
+        retargetWindowStart = null;
         // Update the pointer to the best known block.
         setChainHead(newChainHead);
     }
@@ -342,7 +427,7 @@ public class BlockChain implements IsMultiBitClass {
      * @return the height of the best known chain, convenience for <tt>getChainHead().getHeight()</tt>.
      */
     public int getBestChainHeight() {
-        return getChainHead().getHeight();
+        return chainHead.getHeight();
     }
 
     public enum NewBlockType {
@@ -368,42 +453,40 @@ public class BlockChain implements IsMultiBitClass {
 
     private void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         blockStore.setChainHead(chainHead);
-        synchronized (chainHeadLock) {
-            this.chainHead = chainHead;
-        }
+        publishChainHead(chainHead);
     }
 
     /**
-     * For each block in unconnectedBlocks, see if we can now fit it on top of the chain and if so, do so.
+     * Publishes a new chain head to readers, without touching the block store. Runs with the chain locked.
      */
-    private void tryConnectingUnconnected() throws VerificationException, ScriptException, BlockStoreException {
-        // For each block in our unconnected list, try and fit it onto the head of the chain. If we succeed remove it
-        // from the list and keep going. If we changed the head of the list at the end of the round try again until
-        // we can't fit anything else on the top.
-        int blocksConnectedThisRound;
-        do {
-            blocksConnectedThisRound = 0;
-            Iterator<Block> iter = unconnectedBlocks.iterator();
-            while (iter.hasNext()) {
-                Block block = iter.next();
-                log.debug("Trying to connect {}", block.getHash());
-                // Look up the blocks previous.
-                StoredBlock prev = blockStore.get(block.getPrevBlockHash());
-                if (prev == null) {
-                    // This is still an unconnected/orphan block.
-                    log.debug("  but it is not connectable right now");
-                    continue;
-                }
-                // Otherwise we can connect it now.
+    protected void publishChainHead(StoredBlock chainHead) {
+        this.chainHead = new ChainHead(chainHead);
+        if (chainHead.getHeight() % params.interval == 0)
+            retargetWindowStart = chainHead;
+    }
+
+    /**
+     * Connect the unconnected blocks that follow on from the given block, and the blocks that follow on from them,
+     * and so on.
+     */
+    private void tryConnectingUnconnected(Sha256Hash connectedHash)
+            throws VerificationException, ScriptException, BlockStoreException {
+        int blocksConnected = 0;
+        LinkedList<Sha256Hash> parents = new LinkedList<Sha256Hash>();
+        parents.add(connectedHash);
+        while (!parents.isEmpty()) {
+            for (Block block : unconnectedBlocks.removeChildren(parents.removeFirst())) {
+                log.debug("Connecting {}", block.getHash());
+                // It is scanned again as the wallets may have changed since it arrived.
                 // False here ensures we don't recurse infinitely downwards when connecting huge chains.
-                add(block, false);
-                iter.remove();
-                blocksConnectedThisRound++;
+                add(block, prepare(block), false);
+                parents.add(block.getHash());
+                blocksConnected++;
             }
-            if (blocksConnectedThisRound > 0) {
-                log.info("Connected {} floating blocks.", blocksConnectedThisRound);
-            }
-        } while (blocksConnectedThisRound > 0);
+        }
+        if (blocksConnected > 0) {
+            log.info("Connected {} floating blocks.", blocksConnected);
+        }
     }
 
     /**
@@ -423,19 +506,13 @@ public class BlockChain implements IsMultiBitClass {
             return;
         }
 
-        // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
-        // two weeks after the initial block chain download.
-        long now = System.currentTimeMillis();
-        StoredBlock cursor = blockStore.get(prev.getHash());
-        for (int i = 0; i < params.interval - 1; i++) {
-            if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the genesis block.");
-            }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+        // We need to find a block far back in the chain.
+        StoredBlock cursor = findRetargetWindowStart(storedPrev);
+        if (cursor == null) {
+            // This should never happen. If it does, it means we are following an incorrect or busted chain.
+            throw new VerificationException(
+                    "Difficulty transition point but we did not find a way back to the genesis block.");
         }
-        log.debug("Difficulty transition traversal took {}msec", System.currentTimeMillis() - now);
 
         Block blockIntervalAgo = cursor.getHeader();
         int timespan = (int) (prev.getTimeSeconds() - blockIntervalAgo.getTimeSeconds());
@@ -466,29 +543,139 @@ public class BlockChain implements IsMultiBitClass {
                     receivedDifficulty.toString(16) + " vs " + newDifficulty.toString(16));
     }
 
+    /**
+     * Returns the first block of the retarget window that storedPrev ends, params.interval - 1 blocks before it, or
+     * null if there is no such block. When storedPrev extends the main chain the block recorded as the chain head
+     * passed it is used. Failing that the block is looked up by height, see
+     * {@link #getAncestorByHeight(StoredBlock, int)}, and only as a last resort found by walking back the chain.
+     */
+    private StoredBlock findRetargetWindowStart(StoredBlock storedPrev) throws BlockStoreException {
+        int height = storedPrev.getHeight() - (params.interval - 1);
+        if (retargetWindowStart != null && retargetWindowStart.getHeight() == height
+                && storedPrev.equals(getChainHead()))
+            return retargetWindowStart;
+        StoredBlock windowStart = getAncestorByHeight(storedPrev, height);
+        if (windowStart != null)
+            return windowStart;
+
+        // It's OK that this is expensive because it only happens for side chains and stores that cannot look blocks
+        // up by height.
+        long now = System.currentTimeMillis();
+        StoredBlock cursor = storedPrev;
+        for (int i = 0; i < params.interval - 1 && cursor != null; i++) {
+            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+        }
+        log.debug("Difficulty transition traversal took {}msec", System.currentTimeMillis() - now);
+        return cursor;
+    }
+
+    /**
+     * Returns the block at the given height on the chain ending at block, or null if the block store cannot look
+     * blocks up by height on that chain. This implementation always returns null.
+     */
+    protected StoredBlock getAncestorByHeight(StoredBlock block, int height) throws BlockStoreException {
+        return null;
+    }
+
     /**
      * For the transactions in the given block, update the txToWalletMap such that each wallet maps to a list of
-     * transactions for which it is relevant.
+     * transactions for which it is relevant. Only the wallets the {@link WalletIndex} picks out for a transaction are
+     * asked about it.<p>
+     *
+     * With a scan executor, see {@link #setScanExecutor(ExecutorService)}, large blocks are split into chunks which
+     * are looked up in the index in parallel. The index snapshot needs no locking, so the wallets are only asked
+     * about the few transactions found, one at a time and in block order, on this thread. That keeps the chunks from
+     * queueing up on the wallet locks.
      */
     private void scanTransactions(Block block, HashMap<Wallet, List<Transaction>> walletToTxMap)
             throws VerificationException {
-        for (Transaction tx : block.transactions) {
-            try {
-                for (Wallet wallet : wallets) {
-                    boolean shouldReceive = wallet.isTransactionRelevant(tx, true);
-                    if (!shouldReceive) continue;
-                    List<Transaction> txList = walletToTxMap.get(wallet);
-                    if (txList == null) {
-                        txList = new LinkedList<Transaction>();
-                        walletToTxMap.put(wallet, txList);
-                    }
-                    txList.add(tx);
+        // Every chunk of the block is looked up in the same snapshot of the index.
+        final WalletIndex.Snapshot index = walletIndex.update(wallets);
+        final List<Transaction> transactions = block.transactions;
+        ExecutorService executor = scanExecutor;
+        if (executor == null || transactions.size() <= SCAN_CHUNK_TRANSACTIONS) {
+            scanTransactions(index, transactions, walletToTxMap);
+            return;
+        }
+
+        List<Future<Map<Transaction, Set<Wallet>>>> chunks = new ArrayList<Future<Map<Transaction, Set<Wallet>>>>();
+        for (int first = 0; first < transactions.size(); first += SCAN_CHUNK_TRANSACTIONS) {
+            final List<Transaction> chunk =
+                    transactions.subList(first, Math.min(transactions.size(), first + SCAN_CHUNK_TRANSACTIONS));
+            chunks.add(executor.submit(new Callable<Map<Transaction, Set<Wallet>>>() {
+                public Map<Transaction, Set<Wallet>> call() {
+                    return findWallets(index, chunk);
                 }
-            } catch (ScriptException e) {
-                // We don't want scripts we don't understand to break the block chain so just note that this tx was
-                // not scanned here and continue.
-                log.warn("Failed to parse a script: " + e.toString());
+            }));
+        }
+        Map<Transaction, Set<Wallet>> found = new IdentityHashMap<Transaction, Set<Wallet>>();
+        try {
+            for (Future<Map<Transaction, Set<Wallet>>> chunk : chunks) {
+                found.putAll(chunk.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (Future<Map<Transaction, Set<Wallet>>> chunk : chunks) {
+                chunk.cancel(false);
+            }
+        }
+        if (found.isEmpty())
+            return;
+        for (Transaction tx : transactions) {
+            Set<Wallet> candidates = found.get(tx);
+            if (candidates != null)
+                addIfRelevant(tx, candidates, walletToTxMap);
+        }
+    }
+
+    private void scanTransactions(WalletIndex.Snapshot index, List<Transaction> transactions,
+                                  HashMap<Wallet, List<Transaction>> walletToTxMap) {
+        Set<Wallet> candidates = Collections.newSetFromMap(new IdentityHashMap<Wallet, Boolean>());
+        for (Transaction tx : transactions) {
+            candidates.clear();
+            index.findWallets(tx, candidates);
+            if (!candidates.isEmpty())
+                addIfRelevant(tx, candidates, walletToTxMap);
+        }
+    }
+
+    /**
+     * Returns the transactions of the chunk the index finds wallets for, with the wallets. Touches nothing but the
+     * snapshot and the transactions, so takes no locks.
+     */
+    private static Map<Transaction, Set<Wallet>> findWallets(WalletIndex.Snapshot index, List<Transaction> chunk) {
+        Map<Transaction, Set<Wallet>> found = new IdentityHashMap<Transaction, Set<Wallet>>();
+        for (Transaction tx : chunk) {
+            Set<Wallet> candidates = Collections.newSetFromMap(new IdentityHashMap<Wallet, Boolean>());
+            index.findWallets(tx, candidates);
+            if (!candidates.isEmpty())
+                found.put(tx, candidates);
+        }
+        return found;
+    }
+
+    private void addIfRelevant(Transaction tx, Set<Wallet> candidates,
+                               HashMap<Wallet, List<Transaction>> walletToTxMap) {
+        try {
+            for (Wallet wallet : wallets) {
+                if (!candidates.contains(wallet)) continue;
+                boolean shouldReceive = wallet.isTransactionRelevant(tx, true);
+                if (!shouldReceive) continue;
+                List<Transaction> txList = walletToTxMap.get(wallet);
+                if (txList == null) {
+                    txList = new LinkedList<Transaction>();
+                    walletToTxMap.put(wallet, txList);
+                }
+                txList.add(tx);
             }
+        } catch (ScriptException e) {
+            // We don't want scripts we don't understand to break the block chain so just note that this tx was
+            // not scanned here and continue.
+            log.warn("Failed to parse a script: " + e.toString());
         }
     }
 
@@ -497,9 +684,31 @@ public class BlockChain implements IsMultiBitClass {
      * amount of cumulative work done.
      */
     public StoredBlock getChainHead() {
-        synchronized (chainHeadLock) {
-            return chainHead;
-        }
+        return chainHead.getBlock();
+    }
+
+    /**
+     * Returns a snapshot of the head of the current best chain. The height, hash, chain work and time of the head
+     * can be read from it without locking and are always consistent with each other.
+     */
+    public ChainHead getChainHeadSnapshot() {
+        return chainHead;
+    }
+
+    /**
+     * Returns the counters and timings of block processing, which can be read at any time without waiting for the
+     * chain.
+     */
+    public BlockChainMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the fraction of block store lookups answered from memory, or NaN if the block store does not keep
+     * count. This implementation always returns NaN. Must not wait for the chain lock.
+     */
+    protected double getStoreCacheHitRatio() {
+        return Double.NaN;
     }
 
     /**
@@ -507,8 +716,13 @@ public class BlockChain implements IsMultiBitClass {
      * only in processing of inv messages.
      */
     synchronized Block getUnconnectedBlock() {
-        if (unconnectedBlocks.size() == 0)
-            return null;
-        return unconnectedBlocks.get(unconnectedBlocks.size() - 1);
+        return unconnectedBlocks.getNewest();
+    }
+
+    /**
+     * Returns the number of blocks waiting for their previous block to arrive.
+     */
+    public synchronized int getUnconnectedBlockCount() {
+        return unconnectedBlocks.size();
     }
 }
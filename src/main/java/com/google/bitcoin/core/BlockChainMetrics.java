@@ -0,0 +1,206 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts where the time goes when a {@link BlockChain} processes blocks. There is a {@link LatencyHistogram} for
+ * each step a block goes through and counters for blocks, reorganizes and the unconnected block pool.<p>
+ *
+ * The user interface polls the getters, see {@link BlockChain#getMetrics()}. They are all safe to call from any
+ * thread and never wait for the chain lock. The same figures can be watched over JMX with a tool such as jconsole
+ * once {@link #register(MBeanServer)} has been called.
+ */
+public class BlockChainMetrics implements BlockChainMetricsMBean {
+    public static final String OBJECT_NAME_PREFIX = "org.multibit:type=BlockChain";
+
+    private final BlockChain chain;
+
+    private final LatencyHistogram headerVerification = new LatencyHistogram("HeaderVerification");
+    private final LatencyHistogram relevanceScan = new LatencyHistogram("RelevanceScan");
+    private final LatencyHistogram merkleVerification = new LatencyHistogram("MerkleVerification");
+    private final LatencyHistogram storeGet = new LatencyHistogram("StoreGet");
+    private final LatencyHistogram storePut = new LatencyHistogram("StorePut");
+    private final LatencyHistogram[] histograms = {
+            headerVerification, relevanceScan, merkleVerification, storeGet, storePut
+    };
+
+    private final AtomicLong blocksAdded = new AtomicLong();
+    private final AtomicLong reorganizeCount = new AtomicLong();
+    private volatile int lastReorganizeDepth;
+    private volatile int maximumReorganizeDepth;
+    private volatile int unconnectedBlockCount;
+
+    // The blocks per second are worked out over windows of at least a second. Only written with the chain locked.
+    private long windowStartMillis = System.currentTimeMillis();
+    private long windowBlocks;
+    private volatile double blocksPerSecond;
+    private volatile long lastBlockMillis;
+
+    private MBeanServer server;
+
+    BlockChainMetrics(BlockChain chain) {
+        this.chain = chain;
+    }
+
+    public LatencyHistogram getHeaderVerification() {
+        return headerVerification;
+    }
+
+    public LatencyHistogram getRelevanceScan() {
+        return relevanceScan;
+    }
+
+    public LatencyHistogram getMerkleVerification() {
+        return merkleVerification;
+    }
+
+    public LatencyHistogram getStoreGet() {
+        return storeGet;
+    }
+
+    public LatencyHistogram getStorePut() {
+        return storePut;
+    }
+
+    public long getBlocksAdded() {
+        return blocksAdded.get();
+    }
+
+    public double getBlocksPerSecond() {
+        // Do not keep reporting the last rate once blocks stop arriving.
+        if (System.currentTimeMillis() - lastBlockMillis > 2000)
+            return 0;
+        return blocksPerSecond;
+    }
+
+    public int getUnconnectedBlockCount() {
+        return unconnectedBlockCount;
+    }
+
+    public long getReorganizeCount() {
+        return reorganizeCount.get();
+    }
+
+    public int getLastReorganizeDepth() {
+        return lastReorganizeDepth;
+    }
+
+    public int getMaximumReorganizeDepth() {
+        return maximumReorganizeDepth;
+    }
+
+    public double getStoreCacheHitRatio() {
+        return chain.getStoreCacheHitRatio();
+    }
+
+    public long getHeaderVerificationCount() {
+        return headerVerification.getCount();
+    }
+
+    public long getRelevanceScanCount() {
+        return relevanceScan.getCount();
+    }
+
+    public long getMerkleVerificationCount() {
+        return merkleVerification.getCount();
+    }
+
+    public long getStoreGetCount() {
+        return storeGet.getCount();
+    }
+
+    public long getStorePutCount() {
+        return storePut.getCount();
+    }
+
+    /**
+     * Called with the chain locked after a block has been stored.
+     */
+    void blockAdded() {
+        blocksAdded.incrementAndGet();
+        windowBlocks++;
+        long now = System.currentTimeMillis();
+        lastBlockMillis = now;
+        if (now - windowStartMillis >= 1000) {
+            blocksPerSecond = windowBlocks * 1000.0 / (now - windowStartMillis);
+            windowStartMillis = now;
+            windowBlocks = 0;
+        }
+    }
+
+    /**
+     * Called with the chain locked when the best chain changes, with the number of blocks taken off the old chain.
+     */
+    void reorganized(int depth) {
+        reorganizeCount.incrementAndGet();
+        lastReorganizeDepth = depth;
+        if (depth > maximumReorganizeDepth)
+            maximumReorganizeDepth = depth;
+    }
+
+    void setUnconnectedBlockCount(int count) {
+        unconnectedBlockCount = count;
+    }
+
+    /**
+     * Show these metrics over JMX, replacing the metrics of any chain registered before.
+     */
+    public synchronized void register(MBeanServer server) throws JMException {
+        unregister();
+        replace(server, new ObjectName(OBJECT_NAME_PREFIX + ",name=Metrics"), this);
+        for (LatencyHistogram histogram : histograms) {
+            replace(server, histogramName(histogram), histogram);
+        }
+        this.server = server;
+    }
+
+    public synchronized void unregister() throws JMException {
+        if (server == null)
+            return;
+        server.unregisterMBean(new ObjectName(OBJECT_NAME_PREFIX + ",name=Metrics"));
+        for (LatencyHistogram histogram : histograms) {
+            server.unregisterMBean(histogramName(histogram));
+        }
+        server = null;
+    }
+
+    private static ObjectName histogramName(LatencyHistogram histogram) throws JMException {
+        return new ObjectName(OBJECT_NAME_PREFIX + ",name=Metrics,step=" + histogram.getName());
+    }
+
+    private static void replace(MBeanServer server, ObjectName name, Object bean) throws JMException {
+        if (server.isRegistered(name))
+            server.unregisterMBean(name);
+        server.registerMBean(bean, name);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(getBlocksAdded()).append(" blocks added, ").append(getReorganizeCount())
+                .append(" reorganizes, ").append(getUnconnectedBlockCount()).append(" unconnected blocks");
+        for (LatencyHistogram histogram : histograms) {
+            builder.append("\n").append(histogram);
+        }
+        return builder.toString();
+    }
+}
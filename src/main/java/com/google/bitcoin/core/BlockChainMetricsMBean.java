@@ -0,0 +1,49 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+/**
+ * The attributes of {@link BlockChainMetrics} shown over JMX. The latency of each step is shown by a separate
+ * {@link LatencyHistogramMBean}.
+ */
+public interface BlockChainMetricsMBean {
+    long getBlocksAdded();
+
+    double getBlocksPerSecond();
+
+    int getUnconnectedBlockCount();
+
+    long getReorganizeCount();
+
+    int getLastReorganizeDepth();
+
+    int getMaximumReorganizeDepth();
+
+    /**
+     * Fraction of block store lookups answered from memory, or NaN if the store does not say.
+     */
+    double getStoreCacheHitRatio();
+
+    long getHeaderVerificationCount();
+
+    long getRelevanceScanCount();
+
+    long getMerkleVerificationCount();
+
+    long getStoreGetCount();
+
+    long getStorePutCount();
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Looks for outputs that add up to the target exactly, or go over it by no more than a given excess which is left to
+ * the miners as fee, so the transaction needs no change output. This makes transactions smaller and stops the wallet
+ * splitting into ever smaller outputs.<p>
+ *
+ * The search is depth first over the candidates from the largest down, including or leaving out each in turn and
+ * giving up on a branch as soon as it goes over the target or cannot reach it any more. It stops after
+ * {@link #MAXIMUM_TRIES} steps. If no such outputs are found the choice is left to a fallback selector, which will
+ * usually make change.<p>
+ *
+ * {@link Wallet#completeTx(Transaction, Address, BigInteger)} adds no change output when the outputs chosen are worth
+ * no more than the maximum excess over the target, see {@link CoinSelector#getMaximumExcess()}.
+ */
+public class BranchAndBoundCoinSelector implements CoinSelector {
+    public static final int MAXIMUM_TRIES = 100000;
+
+    private final CoinSelector fallback;
+    private final BigInteger maximumExcess;
+
+    /**
+     * Look for an exact match, falling back to spending the oldest outputs first.
+     */
+    public BranchAndBoundCoinSelector() {
+        this(BigInteger.ZERO, new OldestFirstCoinSelector());
+    }
+
+    /**
+     * @param maximumExcess the most the chosen outputs can be worth over the target, given up as fee
+     * @param fallback the selector to use if no outputs are found
+     */
+    public BranchAndBoundCoinSelector(BigInteger maximumExcess, CoinSelector fallback) {
+        this.maximumExcess = maximumExcess;
+        this.fallback = fallback;
+    }
+
+    public BigInteger getMaximumExcess() {
+        return maximumExcess;
+    }
+
+    public List<SpendCandidate> select(BigInteger target, List<SpendCandidate> candidates) {
+        Collections.sort(candidates, Collections.reverseOrder(SmallestFirstCoinSelector.SMALLEST_FIRST));
+        int count = candidates.size();
+        // Values in nanocoins, which all fit in a long, and the value of the candidates from each one on.
+        long[] values = new long[count];
+        long[] remaining = new long[count + 1];
+        for (int i = count - 1; i >= 0; i--) {
+            values[i] = candidates.get(i).getValue().longValue();
+            remaining[i] = remaining[i + 1] + values[i];
+        }
+        long targetValue = target.longValue();
+        long excessAllowed = maximumExcess.longValue();
+
+        boolean[] included = new boolean[count];
+        boolean[] best = null;
+        long bestExcess = Long.MAX_VALUE;
+        long value = 0;
+        int depth = 0;
+        for (int tries = 0; tries < MAXIMUM_TRIES; tries++) {
+            boolean backtrack;
+            if (value + remaining[depth] < targetValue) {
+                // Cannot reach the target down this branch.
+                backtrack = true;
+            } else if (value >= targetValue) {
+                long excess = value - targetValue;
+                if (excess <= excessAllowed && excess < bestExcess) {
+                    best = new boolean[count];
+                    System.arraycopy(included, 0, best, 0, depth);
+                    bestExcess = excess;
+                    if (excess == 0)
+                        break;
+                }
+                // Adding more only goes further over.
+                backtrack = true;
+            } else {
+                backtrack = false;
+            }
+
+            if (backtrack) {
+                // Leave out the last candidate included and carry on from the one after it.
+                while (depth > 0 && !included[depth - 1])
+                    depth--;
+                if (depth == 0)
+                    break;
+                depth--;
+                included[depth] = false;
+                value -= values[depth];
+                depth++;
+            } else {
+                included[depth] = true;
+                value += values[depth];
+                depth++;
+            }
+        }
+
+        if (best == null)
+            return fallback.select(target, candidates);
+        List<SpendCandidate> selected = new ArrayList<SpendCandidate>();
+        for (int i = 0; i < count; i++) {
+            if (best[i])
+                selected.add(candidates.get(i));
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.util.Arrays;
+
+/**
+ * A byte array, such as a public key or the hash of one, that can be used as a map key. The array is not copied so
+ * it must not be changed once wrapped.
+ */
+final class ByteArrayKey {
+    private final byte[] bytes;
+    private final int hashCode;
+
+    ByteArrayKey(byte[] bytes) {
+        this.bytes = bytes;
+        this.hashCode = Arrays.hashCode(bytes);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof ByteArrayKey && Arrays.equals(bytes, ((ByteArrayKey) other).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+}
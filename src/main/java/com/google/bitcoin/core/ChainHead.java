@@ -0,0 +1,67 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+
+/**
+ * An immutable snapshot of the head of a {@link BlockChain}. The fields are worked out once when the chain head
+ * changes, so the user interface can read the height, hash, chain work and time of the head without locking
+ * anything, see {@link BlockChain#getChainHeadSnapshot()}.
+ */
+public final class ChainHead {
+    private final StoredBlock block;
+    private final int height;
+    private final Sha256Hash hash;
+    private final BigInteger chainWork;
+    private final long timeSeconds;
+
+    ChainHead(StoredBlock block) {
+        this.block = block;
+        this.height = block.getHeight();
+        this.hash = block.getHeader().getHash();
+        this.chainWork = block.getChainWork();
+        this.timeSeconds = block.getHeader().getTimeSeconds();
+    }
+
+    public StoredBlock getBlock() {
+        return block;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Sha256Hash getHash() {
+        return hash;
+    }
+
+    public BigInteger getChainWork() {
+        return chainWork;
+    }
+
+    /**
+     * The time of the block in seconds since the epoch.
+     */
+    public long getTimeSeconds() {
+        return timeSeconds;
+    }
+
+    @Override
+    public String toString() {
+        return "Chain head at height " + height + ": " + hash;
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.List;
+
+/**
+ * Chooses the outputs a {@link Wallet} spends to make up the value of a transaction, see
+ * {@link Wallet#setCoinSelector(CoinSelector)}.
+ */
+public interface CoinSelector {
+    /**
+     * Choose outputs from the candidates worth at least the target value. The candidates list can be reordered.
+     *
+     * @return the chosen outputs or null if the candidates are not worth enough
+     */
+    List<SpendCandidate> select(BigInteger target, List<SpendCandidate> candidates);
+
+    /**
+     * The most the chosen outputs can be worth over the target and still be spent without a change output, the
+     * excess being left to the miners as fee. Zero for selectors that always make change.
+     */
+    BigInteger getMaximumExcess();
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how long a step of block processing takes, in buckets of powers of two microseconds. Recording a time is a
+ * couple of atomic increments so it can be left on all the time. Percentiles are reported as the upper bound of the
+ * bucket they fall in, which is accurate to within a factor of two.<p>
+ *
+ * Thread safe. Readers see counts that may be a moment out of date with each other but never lose any.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+    // Bucket i counts times below 2^i microseconds, the last bucket counts everything longer.
+    static final int BUCKETS = 24;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Record a step that started at the given {@link System#nanoTime()} and has just finished.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        long micros = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+            max = maxNanos.get();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotalMillis() {
+        return totalNanos.get() / 1000000;
+    }
+
+    public double getMeanMicros() {
+        long n = count.get();
+        return n == 0 ? 0 : totalNanos.get() / 1000.0 / n;
+    }
+
+    public long getMaxMicros() {
+        return maxNanos.get() / 1000;
+    }
+
+    public long getMedianMicros() {
+        return getPercentileMicros(0.5);
+    }
+
+    public long get90thPercentileMicros() {
+        return getPercentileMicros(0.9);
+    }
+
+    public long get99thPercentileMicros() {
+        return getPercentileMicros(0.99);
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given fraction of the recorded times, or the longest time
+     * recorded if that is in the last bucket.
+     */
+    public long getPercentileMicros(double fraction) {
+        long[] snapshot = getBucketCounts();
+        long total = 0;
+        for (long bucketCount : snapshot)
+            total += bucketCount;
+        if (total == 0)
+            return 0;
+        long wanted = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += snapshot[i];
+            if (seen >= wanted)
+                return 1L << i;
+        }
+        return getMaxMicros();
+    }
+
+    /**
+     * Returns the number of times in each bucket. Bucket i holds the times below 2<sup>i</sup> microseconds that
+     * are not in an earlier bucket.
+     */
+    public long[] getBucketCounts() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            snapshot[i] = buckets.get(i);
+        return snapshot;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + getCount() + " in " + getTotalMillis() + "ms, mean " + (long) getMeanMicros()
+                + "us, 99% under " + get99thPercentileMicros() + "us";
+    }
+}
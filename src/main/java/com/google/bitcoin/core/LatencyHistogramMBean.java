@@ -0,0 +1,37 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+/**
+ * The attributes of a {@link LatencyHistogram} shown over JMX.
+ */
+public interface LatencyHistogramMBean {
+    long getCount();
+
+    long getTotalMillis();
+
+    double getMeanMicros();
+
+    long getMaxMicros();
+
+    long getMedianMicros();
+
+    long get90thPercentileMicros();
+
+    long get99thPercentileMicros();
+
+    long[] getBucketCounts();
+}
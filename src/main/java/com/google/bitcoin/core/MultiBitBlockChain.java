@@ -46,18 +46,47 @@ public class MultiBitBlockChain extends BlockChain {
      * @throws BlockStoreException
      */
     public void setChainHeadClearCachesAndTruncateBlockStore(StoredBlock chainHead) throws BlockStoreException {
-        if (blockStore instanceof ReplayableBlockStore) {
-            ((ReplayableBlockStore) blockStore).setChainHeadAndTruncate(chainHead);
-        } else {
-            blockStore.setChainHead(chainHead);
+        // the truncate is done with the chain locked so that a block still
+        // being added by a stopping peer is linked either before it or after
+        synchronized (this) {
+            if (blockStore instanceof ReplayableBlockStore) {
+                ((ReplayableBlockStore) blockStore).setChainHeadAndTruncate(chainHead);
+            } else {
+                blockStore.setChainHead(chainHead);
+            }
 
-        }
-        
-        // this synchronized probably needs to enclude the truncate
-        synchronized (chainHeadLock) {
-            this.chainHead = chainHead;
+            retargetWindowStart = null;
+            publishChainHead(chainHead);
             //unconnectedBlocks.clear();
         }
     }
 
+    /**
+     * Look the block up in the height index of a ReplayableBlockStore. The
+     * index only covers the chain ending at the chain head so it is only used
+     * for blocks on that chain.
+     */
+    @Override
+    protected StoredBlock getAncestorByHeight(StoredBlock block, int height) throws BlockStoreException {
+        if (!(blockStore instanceof ReplayableBlockStore)) {
+            return null;
+        }
+        ReplayableBlockStore replayableBlockStore = (ReplayableBlockStore) blockStore;
+        if (!block.equals(replayableBlockStore.getBlockAtHeight(block.getHeight()))) {
+            return null;
+        }
+        return replayableBlockStore.getBlockAtHeight(height);
+    }
+
+    @Override
+    protected double getStoreCacheHitRatio() {
+        if (!(blockStore instanceof ReplayableBlockStore)) {
+            return Double.NaN;
+        }
+        ReplayableBlockStore replayableBlockStore = (ReplayableBlockStore) blockStore;
+        long hits = replayableBlockStore.getCacheHitCount();
+        long lookups = hits + replayableBlockStore.getCacheMissCount();
+        return lookups == 0 ? Double.NaN : (double) hits / lookups;
+    }
+
 }
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Spends the outputs that have been in the block chain longest first, the largest first for outputs of the same age,
+ * so coins are not left unspent forever and few inputs are needed.
+ */
+public class OldestFirstCoinSelector implements CoinSelector {
+    static final Comparator<SpendCandidate> OLDEST_FIRST = new Comparator<SpendCandidate>() {
+        public int compare(SpendCandidate candidate1, SpendCandidate candidate2) {
+            int height1 = candidate1.getAppearedAtChainHeight();
+            int height2 = candidate2.getAppearedAtChainHeight();
+            if (height1 != height2)
+                return height1 < height2 ? -1 : 1;
+            return candidate2.getValue().compareTo(candidate1.getValue());
+        }
+    };
+
+    public List<SpendCandidate> select(BigInteger target, List<SpendCandidate> candidates) {
+        Collections.sort(candidates, OLDEST_FIRST);
+        return takeInOrder(target, candidates);
+    }
+
+    public BigInteger getMaximumExcess() {
+        return BigInteger.ZERO;
+    }
+
+    /**
+     * Take candidates in order until they are worth the target.
+     */
+    static List<SpendCandidate> takeInOrder(BigInteger target, List<SpendCandidate> candidates) {
+        List<SpendCandidate> selected = new ArrayList<SpendCandidate>();
+        BigInteger value = BigInteger.ZERO;
+        for (SpendCandidate candidate : candidates) {
+            if (value.compareTo(target) >= 0)
+                break;
+            selected.add(candidate);
+            value = value.add(candidate.getValue());
+        }
+        return value.compareTo(target) >= 0 ? selected : null;
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Spends the smallest outputs first, which uses up dust and keeps the number of outputs in the wallet down at the
+ * cost of larger transactions.
+ */
+public class SmallestFirstCoinSelector implements CoinSelector {
+    static final Comparator<SpendCandidate> SMALLEST_FIRST = new Comparator<SpendCandidate>() {
+        public int compare(SpendCandidate candidate1, SpendCandidate candidate2) {
+            return candidate1.getValue().compareTo(candidate2.getValue());
+        }
+    };
+
+    public List<SpendCandidate> select(BigInteger target, List<SpendCandidate> candidates) {
+        Collections.sort(candidates, SMALLEST_FIRST);
+        return OldestFirstCoinSelector.takeInOrder(target, candidates);
+    }
+
+    public BigInteger getMaximumExcess() {
+        return BigInteger.ZERO;
+    }
+}
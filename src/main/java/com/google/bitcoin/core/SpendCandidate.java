@@ -0,0 +1,56 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+
+/**
+ * An output a {@link Wallet} can spend, with the transaction it belongs to so a {@link CoinSelector} can tell how
+ * old it is.
+ */
+public final class SpendCandidate {
+    private final Transaction transaction;
+    private final TransactionOutput output;
+    private final BigInteger value;
+
+    SpendCandidate(Transaction transaction, TransactionOutput output) {
+        this.transaction = transaction;
+        this.output = output;
+        this.value = output.getValue();
+    }
+
+    public Transaction getTransaction() {
+        return transaction;
+    }
+
+    public TransactionOutput getOutput() {
+        return output;
+    }
+
+    public BigInteger getValue() {
+        return value;
+    }
+
+    /**
+     * @return the height of the block the transaction appeared in, or {@link Integer#MAX_VALUE} if it is not known
+     */
+    public int getAppearedAtChainHeight() {
+        TransactionConfidence confidence = transaction.getConfidence();
+        if (confidence.getConfidenceType() != TransactionConfidence.ConfidenceType.BUILDING)
+            return Integer.MAX_VALUE;
+        return confidence.getAppearedAtChainHeight();
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outputs a {@link Wallet} can spend: its own outputs of the transactions in the unspent pool that are not
+ * spent yet, and what they are worth in total. The wallet updates the set for each transaction that moves into or
+ * out of the unspent pool or has outputs spent, so sending coins does not have to look at every output of every
+ * transaction to find what it can spend.<p>
+ *
+ * What the wallet's own outputs of pending transactions are worth is kept up to date the same way, so both the
+ * available and the estimated balance are known without adding anything up, see
+ * {@link Wallet#getBalance(Wallet.BalanceType)}.<p>
+ *
+ * Not thread safe, it is only used with the wallet locked.
+ */
+class SpendableOutputs {
+    private final Map<Sha256Hash, List<SpendCandidate>> byTransaction = new HashMap<Sha256Hash, List<SpendCandidate>>();
+    private final int keyCount;
+    private BigInteger value = BigInteger.ZERO;
+    private int size;
+    private final Map<Sha256Hash, BigInteger> pendingValues = new HashMap<Sha256Hash, BigInteger>();
+    private BigInteger pendingValue = BigInteger.ZERO;
+
+    /**
+     * @param keyCount the number of keys in the wallet, whose outputs are the ones that can be spent
+     */
+    SpendableOutputs(int keyCount) {
+        this.keyCount = keyCount;
+    }
+
+    /**
+     * Look again at the outputs of a transaction.
+     *
+     * @param inUnspentPool whether the transaction is in the unspent pool of the wallet
+     * @param inPendingPool whether the transaction is in the pending pool of the wallet
+     */
+    void update(Transaction tx, boolean inUnspentPool, boolean inPendingPool, Wallet wallet) {
+        remove(tx.getHash());
+        if (inPendingPool) {
+            BigInteger txValue = BigInteger.ZERO;
+            for (TransactionOutput output : tx.getOutputs()) {
+                if (output.isMine(wallet))
+                    txValue = txValue.add(output.getValue());
+            }
+            pendingValues.put(tx.getHash(), txValue);
+            pendingValue = pendingValue.add(txValue);
+        }
+        if (!inUnspentPool)
+            return;
+        List<SpendCandidate> candidates = null;
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (!output.isAvailableForSpending() || !output.isMine(wallet))
+                continue;
+            if (candidates == null)
+                candidates = new ArrayList<SpendCandidate>(1);
+            SpendCandidate candidate = new SpendCandidate(tx, output);
+            candidates.add(candidate);
+            value = value.add(candidate.getValue());
+        }
+        if (candidates != null) {
+            byTransaction.put(tx.getHash(), candidates);
+            size += candidates.size();
+        }
+    }
+
+    void remove(Sha256Hash txHash) {
+        BigInteger txValue = pendingValues.remove(txHash);
+        if (txValue != null)
+            pendingValue = pendingValue.subtract(txValue);
+        List<SpendCandidate> candidates = byTransaction.remove(txHash);
+        if (candidates == null)
+            return;
+        for (SpendCandidate candidate : candidates)
+            value = value.subtract(candidate.getValue());
+        size -= candidates.size();
+    }
+
+    /**
+     * @return a new list of the outputs that can be spent
+     */
+    List<SpendCandidate> getCandidates() {
+        List<SpendCandidate> candidates = new ArrayList<SpendCandidate>(size);
+        for (List<SpendCandidate> forTransaction : byTransaction.values())
+            candidates.addAll(forTransaction);
+        return candidates;
+    }
+
+    /**
+     * @return what the outputs that can be spent are worth
+     */
+    BigInteger getValue() {
+        return value;
+    }
+
+    /**
+     * @return what the wallet's own outputs of pending transactions are worth
+     */
+    BigInteger getPendingValue() {
+        return pendingValue;
+    }
+
+    int getKeyCount() {
+        return keyCount;
+    }
+}
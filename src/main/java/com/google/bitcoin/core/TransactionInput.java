@@ -274,7 +274,17 @@ public class TransactionInput extends ChildMessage implements Serializable, IsMu
      * @return true if connection took place, false if the referenced transaction was not in the list.
      */
     ConnectionResult connect(Map<Sha256Hash, Transaction> transactions, boolean disconnect) {
-        Transaction tx = transactions.get(outpoint.getHash());
+        return connect(transactions.get(outpoint.getHash()), disconnect);
+    }
+
+    /**
+     * Connects this input to the relevant output of the given transaction, which has already been looked up by the
+     * hash in the outpoint.
+     *
+     * @param tx         The transaction the outpoint refers to, or null if it was not found.
+     * @param disconnect Whether to abort if there's a pre-existing connection or not.
+     */
+    ConnectionResult connect(Transaction tx, boolean disconnect) {
         if (tx == null)
             return TransactionInput.ConnectionResult.NO_SUCH_TX;
         TransactionOutput out = tx.getOutputs().get((int) outpoint.getIndex());
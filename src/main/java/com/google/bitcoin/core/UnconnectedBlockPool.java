@@ -0,0 +1,123 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Holds blocks that a {@link BlockChain} has received but cannot connect yet because their previous block is not
+ * known, keyed by the hash of the previous block so the children of a block are found with a single lookup when it
+ * connects.<p>
+ *
+ * The pool is bounded. Blocks older than {@link #MAXIMUM_AGE_MILLIS} are dropped, and once there are more than
+ * {@link #MAXIMUM_SIZE} blocks the oldest are dropped. A dropped block is simply downloaded again if it turns out
+ * to be needed.<p>
+ *
+ * Not thread safe, it is only used with the block chain locked.
+ */
+class UnconnectedBlockPool {
+    static final int MAXIMUM_SIZE = 500;
+    static final long MAXIMUM_AGE_MILLIS = 60 * 60 * 1000;
+
+    private static class Entry {
+        final Block block;
+        final long sequence;
+        final long arrivalMillis;
+
+        Entry(Block block, long sequence, long arrivalMillis) {
+            this.block = block;
+            this.sequence = sequence;
+            this.arrivalMillis = arrivalMillis;
+        }
+    }
+
+    // Blocks by the hash of their previous block.
+    private final Map<Sha256Hash, List<Entry>> byPrevHash = new HashMap<Sha256Hash, List<Entry>>();
+    // The same blocks in the order they arrived, oldest first.
+    private final TreeMap<Long, Entry> byArrival = new TreeMap<Long, Entry>();
+    private long nextSequence;
+
+    /**
+     * Add a block to the pool, dropping old blocks if need be.
+     *
+     * @return false if the block was already in the pool
+     */
+    boolean add(Block block) {
+        Sha256Hash prevHash = block.getPrevBlockHash();
+        List<Entry> siblings = byPrevHash.get(prevHash);
+        if (siblings == null) {
+            siblings = new ArrayList<Entry>(1);
+            byPrevHash.put(prevHash, siblings);
+        } else {
+            for (Entry sibling : siblings) {
+                if (sibling.block.equals(block))
+                    return false;
+            }
+        }
+        long now = Utils.now().getTime();
+        Entry entry = new Entry(block, nextSequence++, now);
+        siblings.add(entry);
+        byArrival.put(entry.sequence, entry);
+
+        while (!byArrival.isEmpty()) {
+            Entry oldest = byArrival.firstEntry().getValue();
+            if (byArrival.size() <= MAXIMUM_SIZE && now - oldest.arrivalMillis <= MAXIMUM_AGE_MILLIS)
+                break;
+            remove(oldest);
+        }
+        return true;
+    }
+
+    /**
+     * Remove and return the blocks whose previous block is the given one, in the order they arrived.
+     */
+    List<Block> removeChildren(Sha256Hash prevHash) {
+        List<Entry> children = byPrevHash.remove(prevHash);
+        if (children == null)
+            return Collections.emptyList();
+        List<Block> blocks = new ArrayList<Block>(children.size());
+        for (Entry child : children) {
+            byArrival.remove(child.sequence);
+            blocks.add(child.block);
+        }
+        return blocks;
+    }
+
+    /**
+     * @return the block that arrived most recently or null if the pool is empty
+     */
+    Block getNewest() {
+        return byArrival.isEmpty() ? null : byArrival.lastEntry().getValue().block;
+    }
+
+    int size() {
+        return byArrival.size();
+    }
+
+    private void remove(Entry entry) {
+        byArrival.remove(entry.sequence);
+        Sha256Hash prevHash = entry.block.getPrevBlockHash();
+        List<Entry> siblings = byPrevHash.get(prevHash);
+        siblings.remove(entry);
+        if (siblings.isEmpty())
+            byPrevHash.remove(prevHash);
+    }
+}
@@ -18,13 +18,13 @@ package com.google.bitcoin.core;
 
 import static com.google.bitcoin.core.Utils.bitcoinValueToFriendlyString;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.math.BigInteger;
@@ -38,6 +38,7 @@ import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -58,10 +59,9 @@ import com.google.bitcoin.utils.EventListenerInvoker;
  * given combined value.
  * <p>
  * <p/>
- * The Wallet is read and written from disk, so be sure to follow the Java
- * serialization versioning rules here. We use the built in Java serialization
- * to avoid the need to pull in a potentially large (code-size) third party
- * serialization library.
+ * The Wallet is written to disk by {@link BinaryWalletSerializer}. Wallets
+ * saved by older versions with the built in Java serialization can still be
+ * read, so be sure to follow the Java serialization versioning rules here.
  * <p>
  */
 public class Wallet implements Serializable, IsMultiBitClass {
@@ -198,6 +198,28 @@ public class Wallet implements Serializable, IsMultiBitClass {
 
     transient private ArrayList<WalletEventListener> eventListeners;
 
+    // Block hash to the hashes of the transactions that appear in the block,
+    // so a re-org can find the transactions it affects. Built when first
+    // needed and thrown away when transactions are added or removed in bulk.
+    transient private Map<Sha256Hash, Set<Sha256Hash>> transactionsByBlock;
+
+    // The keys by public key hash and by public key. Keys are added straight
+    // to the public keychain in many places, so rather than being told about
+    // new keys the indexes catch up with the keychain when they are used, see
+    // updateKeyIndexes.
+    transient private Map<ByteArrayKey, ECKey> keysByPubKeyHash;
+    transient private Map<ByteArrayKey, ECKey> keysByPubKey;
+    transient private int indexedKeyCount;
+    transient private ECKey lastIndexedKey;
+
+    // The outputs that can be spent and the value of the pending outputs,
+    // which make up the balances. Built when first needed and kept up to date
+    // as transactions move pool, see updateSpendableOutputs. Thrown away when
+    // transactions are added or removed in bulk.
+    transient private SpendableOutputs spendableOutputs;
+
+    transient private CoinSelector coinSelector;
+
     /**
      * Creates a new, empty wallet with no keys and no transactions. If you want
      * to restore a wallet from disk instead, see loadFromFile.
@@ -226,7 +248,7 @@ public class Wallet implements Serializable, IsMultiBitClass {
     }
 
     /**
-     * Uses Java serialization to save the wallet to the given file.
+     * Saves the wallet to the given file with {@link BinaryWalletSerializer}.
      */
     public synchronized void saveToFile(File f) throws IOException {
         log.debug("Saving wallet to file " + f.getAbsolutePath());
@@ -241,12 +263,11 @@ public class Wallet implements Serializable, IsMultiBitClass {
     }
 
     /**
-     * Uses Java serialization to save the wallet to the given file stream.
+     * Saves the wallet to the given file stream with {@link BinaryWalletSerializer}.
      */
     public synchronized void saveToFileStream(OutputStream f) throws IOException {
-        ObjectOutputStream oos = new ObjectOutputStream(f);
-        oos.writeObject(this);
-        oos.close();
+        BinaryWalletSerializer.writeWallet(this, f);
+        f.close();
     }
 
     /** Returns the parameters this wallet was created with. */
@@ -261,22 +282,40 @@ public class Wallet implements Serializable, IsMultiBitClass {
         return loadFromFileStream(new FileInputStream(f));
     }
 
-    private boolean isConsistent() {
+    synchronized boolean isConsistent() {
         // Pending and inactive can overlap, so merge them before counting
         HashSet<Transaction> pendingInactive = new HashSet<Transaction>();
         pendingInactive.addAll(pending.values());
         pendingInactive.addAll(inactive.values());
 
-        return getTransactions(true, true).size() == unspent.size() + spent.size() + pendingInactive.size() + dead.size();
+        if (getTransactions(true, true).size() != unspent.size() + spent.size() + pendingInactive.size() + dead.size())
+            return false;
+        // The balances kept as transactions move pool must match adding them up from scratch.
+        if (spendableOutputs != null) {
+            if (!getBalance(BalanceType.AVAILABLE).equals(calculateBalance(BalanceType.AVAILABLE)))
+                return false;
+            if (!getBalance(BalanceType.ESTIMATED).equals(calculateBalance(BalanceType.ESTIMATED)))
+                return false;
+        }
+        return true;
     }
 
     /**
-     * Returns a wallet deserialized from the given input stream.
+     * Returns a wallet deserialized from the given input stream, which can be in the format written by
+     * {@link BinaryWalletSerializer} or a Java serialized wallet saved by an older version.
      */
     public static Wallet loadFromFileStream(InputStream f) throws IOException {
+        InputStream buffered = new BufferedInputStream(f);
+        if (BinaryWalletSerializer.isBinaryWallet(buffered)) {
+            try {
+                return BinaryWalletSerializer.readWallet(buffered);
+            } finally {
+                buffered.close();
+            }
+        }
         ObjectInputStream ois = null;
         try {
-            ois = new ObjectInputStream(f);
+            ois = new ObjectInputStream(buffered);
             return (Wallet) ois.readObject();
         } catch (ClassNotFoundException e) {
             throw new RuntimeException(e);
@@ -580,6 +619,7 @@ public class Wallet implements Serializable, IsMultiBitClass {
                 // 'waiting to be included in best chain'.
                 pending.put(tx.getHash(), tx);
             }
+            updateSpendableOutputs(tx);
         } else {
             // This TX didn't originate with us. It could be sending us coins
             // and also spending our own coins if keys
@@ -609,6 +649,8 @@ public class Wallet implements Serializable, IsMultiBitClass {
         // transaction update its confidence and timestamp bookkeeping data.
         if (block != null) {
             tx.setBlockAppearance(block, bestChain);
+            if (transactionsByBlock != null)
+                indexBlockAppearance(block.getHeader().getHash(), tx);
             invokeOnTransactionConfidenceChanged(tx);
         }
 
@@ -662,6 +704,7 @@ public class Wallet implements Serializable, IsMultiBitClass {
             log.info("  new tx ->unspent");
             boolean alreadyPresent = unspent.put(tx.getHash(), tx) != null;
             assert !alreadyPresent : "TX was received twice";
+            updateSpendableOutputs(tx);
         } else if (!tx.getValueSentFromMe(this).equals(BigInteger.ZERO)) {
             // It spent some of our coins and did not send us any.
             log.info("  new tx ->spent");
@@ -698,6 +741,7 @@ public class Wallet implements Serializable, IsMultiBitClass {
             log.warn("  <-pending ->dead");
             pending.remove(doubleSpend.getHash());
             dead.put(doubleSpend.getHash(), doubleSpend);
+            updateSpendableOutputs(doubleSpend);
             // Inform the event listeners of the newly dead tx.
             doubleSpend.getConfidence().setOverridingTransaction(tx);
             invokeOnTransactionConfidenceChanged(doubleSpend);
@@ -764,6 +808,7 @@ public class Wallet implements Serializable, IsMultiBitClass {
                                     log.warn("  <-pending ->dead");
                                     pending.remove(connected.getHash());
                                     dead.put(connected.getHash(), connected);
+                                    updateSpendableOutputs(connected);
                                     // Now forcibly change the connection.
                                     input.connect(unspent, true);
                                     // Inform the [tx] event listeners of the
@@ -798,6 +843,7 @@ public class Wallet implements Serializable, IsMultiBitClass {
                 // us to use. Move if not.
                 Transaction connected = input.getOutpoint().fromTx;
                 maybeMoveTxToSpent(connected, "prevtx");
+                updateSpendableOutputs(connected);
             }
         }
     }
@@ -869,6 +915,7 @@ public class Wallet implements Serializable, IsMultiBitClass {
         // transaction on the best chain.
         log.info("->pending: {}", tx.getHashAsString());
         pending.put(tx.getHash(), tx);
+        updateSpendableOutputs(tx);
 
         assert isConsistent();
     }
@@ -928,6 +975,8 @@ public class Wallet implements Serializable, IsMultiBitClass {
     }
 
     public synchronized void addWalletTransaction(WalletTransaction wtx) {
+        transactionsByBlock = null;
+        spendableOutputs = null;
         switch (wtx.getPool()) {
         case UNSPENT:
             unspent.put(wtx.getTransaction().getHash(), wtx.getTransaction());
@@ -1026,6 +1075,8 @@ public class Wallet implements Serializable, IsMultiBitClass {
             pending.clear();
             inactive.clear();
             dead.clear();
+            transactionsByBlock = null;
+            spendableOutputs = null;
         } else {
             throw new UnsupportedOperationException();
         }
@@ -1042,12 +1093,16 @@ public class Wallet implements Serializable, IsMultiBitClass {
             pending.clear();
             inactive.clear();
             dead.clear();
+            transactionsByBlock = null;
+            spendableOutputs = null;
         } else {
             removeEntriesAfterDate(unspent, fromDate);
             removeEntriesAfterDate(spent, fromDate);
             removeEntriesAfterDate(pending, fromDate);
             removeEntriesAfterDate(inactive, fromDate);
             removeEntriesAfterDate(dead, fromDate);
+            transactionsByBlock = null;
+            spendableOutputs = null;
         }
     }
 
@@ -1328,37 +1383,33 @@ public class Wallet implements Serializable, IsMultiBitClass {
         log.info("Completing send tx with {} outputs totalling {}", sendTx.getOutputs().size(),
                 bitcoinValueToFriendlyString(nanocoins));
 
-        // To send money to somebody else, we need to do gather up transactions
-        // with unspent outputs until we have
-        // sufficient value. Many coin selection algorithms are possible, we use
-        // a simple but suboptimal one.
-        // TODO: Sort coins so we use the smallest first, to combat wallet
-        // fragmentation and reduce fees.
+        // To send money to somebody else, we need to gather up outputs until
+        // we have sufficient value. The coin selector chooses which.
+        SpendableOutputs spendable = getSpendableOutputs();
+        CoinSelector selector = getCoinSelector();
         BigInteger valueGathered = BigInteger.ZERO;
-        List<TransactionOutput> gathered = new LinkedList<TransactionOutput>();
-        for (Transaction tx : unspent.values()) {
-            for (TransactionOutput output : tx.getOutputs()) {
-                if (!output.isAvailableForSpending())
-                    continue;
-                if (!output.isMine(this))
-                    continue;
-                gathered.add(output);
-                valueGathered = valueGathered.add(output.getValue());
-            }
-            if (valueGathered.compareTo(total) >= 0)
-                break;
+        List<SpendCandidate> gathered = null;
+        if (spendable.getValue().compareTo(total) >= 0)
+            gathered = selector.select(total, spendable.getCandidates());
+        if (gathered != null) {
+            for (SpendCandidate candidate : gathered)
+                valueGathered = valueGathered.add(candidate.getValue());
         }
         // Can we afford this?
-        if (valueGathered.compareTo(total) < 0) {
+        if (gathered == null || valueGathered.compareTo(total) < 0) {
             log.info("Insufficient value in wallet for send, missing "
-                    + bitcoinValueToFriendlyString(nanocoins.subtract(valueGathered)));
+                    + bitcoinValueToFriendlyString(total.subtract(spendable.getValue())));
             // TODO: Should throw an exception here.
             return false;
         }
         assert gathered.size() > 0;
         sendTx.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.NOT_SEEN_IN_CHAIN);
         BigInteger change = valueGathered.subtract(total);
-        if (change.compareTo(BigInteger.ZERO) > 0) {
+        if (change.compareTo(selector.getMaximumExcess()) <= 0) {
+            // Close enough to need no change output, the excess is left to the miners as fee.
+            if (change.signum() > 0)
+                log.info("  with " + bitcoinValueToFriendlyString(change) + " coins excess given up as fee");
+        } else if (change.compareTo(BigInteger.ZERO) > 0) {
             // The value of the inputs is greater than what we want to send.
             // Just like in real life then,
             // we need to take back some coins ... this is called "change". Add
@@ -1367,8 +1418,8 @@ public class Wallet implements Serializable, IsMultiBitClass {
             log.info("  with " + bitcoinValueToFriendlyString(change) + " coins change");
             sendTx.addOutput(new TransactionOutput(params, sendTx, change, changeAddress));
         }
-        for (TransactionOutput output : gathered) {
-            sendTx.addInput(output);
+        for (SpendCandidate candidate : gathered) {
+            sendTx.addInput(candidate.getOutput());
         }
 
         // Now sign the inputs, thus proving that we are entitled to redeem the
@@ -1406,6 +1457,47 @@ public class Wallet implements Serializable, IsMultiBitClass {
         return completeTx(sendTx, getChangeAddress(), fee);
     }
 
+    /**
+     * Sets how {@link #completeTx(Transaction, Address, BigInteger)} chooses the outputs to spend. By default a
+     * {@link BranchAndBoundCoinSelector} looks for outputs that need no change, and otherwise spends the oldest first.
+     * The selector is not saved with the wallet.
+     */
+    public synchronized void setCoinSelector(CoinSelector coinSelector) {
+        this.coinSelector = coinSelector;
+    }
+
+    public synchronized CoinSelector getCoinSelector() {
+        if (coinSelector == null)
+            coinSelector = new BranchAndBoundCoinSelector();
+        return coinSelector;
+    }
+
+    /**
+     * Returns the outputs that can be spent, finding them in the unspent pool if they have not been found since the
+     * last bulk change to the wallet or since keys were added.
+     */
+    private SpendableOutputs getSpendableOutputs() {
+        if (spendableOutputs == null || spendableOutputs.getKeyCount() != keychain.size()) {
+            spendableOutputs = new SpendableOutputs(keychain.size());
+            for (Transaction tx : unspent.values())
+                spendableOutputs.update(tx, true, false, this);
+            for (Transaction tx : pending.values())
+                spendableOutputs.update(tx, false, true, this);
+        }
+        return spendableOutputs;
+    }
+
+    /**
+     * Look again at the outputs of a transaction that has moved into or out of the unspent or pending pool or had
+     * outputs spent.
+     */
+    private void updateSpendableOutputs(Transaction tx) {
+        if (spendableOutputs != null) {
+            Sha256Hash hash = tx.getHash();
+            spendableOutputs.update(tx, unspent.get(hash) == tx, pending.get(hash) == tx, this);
+        }
+    }
+
     synchronized Address getChangeAddress() {
         // For now let's just pick the first key in our keychain. In future we
         // might want to do something else to
@@ -1432,11 +1524,8 @@ public class Wallet implements Serializable, IsMultiBitClass {
      * @return ECKey object or null if no such key was found.
      */
     public synchronized ECKey findKeyFromPubHash(byte[] pubkeyHash) {
-        for (ECKey key : keychain) {
-            if (Arrays.equals(key.getPubKeyHash(), pubkeyHash))
-                return key;
-        }
-        return null;
+        updateKeyIndexes();
+        return keysByPubKeyHash.get(new ByteArrayKey(pubkeyHash));
     }
 
     /**
@@ -1453,11 +1542,33 @@ public class Wallet implements Serializable, IsMultiBitClass {
      * @return ECKey or null if no such key was found.
      */
     public synchronized ECKey findKeyFromPubKey(byte[] pubkey) {
-        for (ECKey key : keychain) {
-            if (Arrays.equals(key.getPubKey(), pubkey))
-                return key;
-        }
-        return null;
+        updateKeyIndexes();
+        return keysByPubKey.get(new ByteArrayKey(pubkey));
+    }
+
+    /**
+     * Index the keys added to the keychain since the indexes were last used. Keys are never removed from a wallet,
+     * but should the keychain be changed other than by adding keys, the indexes are built again from scratch.
+     */
+    private void updateKeyIndexes() {
+        if (keysByPubKeyHash == null || indexedKeyCount > keychain.size()
+                || (indexedKeyCount > 0 && keychain.get(indexedKeyCount - 1) != lastIndexedKey)) {
+            keysByPubKeyHash = new HashMap<ByteArrayKey, ECKey>();
+            keysByPubKey = new HashMap<ByteArrayKey, ECKey>();
+            indexedKeyCount = 0;
+        }
+        for (int i = indexedKeyCount; i < keychain.size(); i++) {
+            ECKey key = keychain.get(i);
+            // The first of any duplicate keys is found, as when the keychain was searched in order.
+            ByteArrayKey pubKeyHash = new ByteArrayKey(key.getPubKeyHash());
+            if (!keysByPubKeyHash.containsKey(pubKeyHash))
+                keysByPubKeyHash.put(pubKeyHash, key);
+            ByteArrayKey pubKey = new ByteArrayKey(key.getPubKey());
+            if (!keysByPubKey.containsKey(pubKey))
+                keysByPubKey.put(pubKey, key);
+            lastIndexedKey = key;
+        }
+        indexedKeyCount = keychain.size();
     }
 
     /**
@@ -1516,6 +1627,18 @@ public class Wallet implements Serializable, IsMultiBitClass {
      * balanceType.
      */
     public synchronized BigInteger getBalance(BalanceType balanceType) {
+        SpendableOutputs spendable = getSpendableOutputs();
+        if (balanceType == BalanceType.AVAILABLE)
+            return spendable.getValue();
+        assert balanceType == BalanceType.ESTIMATED;
+        return spendable.getValue().add(spendable.getPendingValue());
+    }
+
+    /**
+     * Adds up the balance from every transaction in the unspent and pending pools, to check the balances kept as
+     * transactions move pool.
+     */
+    private BigInteger calculateBalance(BalanceType balanceType) {
         BigInteger available = BigInteger.ZERO;
         for (Transaction tx : unspent.values()) {
             for (TransactionOutput output : tx.getOutputs()) {
@@ -1639,50 +1762,15 @@ public class Wallet implements Serializable, IsMultiBitClass {
             newBlockHashes.add(b.getHeader().getHash());
         }
 
-        // Transactions that appear in the old chain segment.
-        Map<Sha256Hash, Transaction> oldChainTransactions = new HashMap<Sha256Hash, Transaction>();
+        // Find the transactions in each chain segment through the block index
+        // rather than looking at every transaction in the wallet, so a short
+        // re-org only costs time for the transactions it affects.
+        Map<Sha256Hash, Transaction> oldChainTransactions = findTransactionsInBlocks(oldBlockHashes);
+        Map<Sha256Hash, Transaction> newChainTransactions = findTransactionsInBlocks(newBlockHashes);
         // Transactions that appear in the old chain segment and NOT the new
         // chain segment.
-        Map<Sha256Hash, Transaction> onlyOldChainTransactions = new HashMap<Sha256Hash, Transaction>();
-        // Transactions that appear in the new chain segment.
-        Map<Sha256Hash, Transaction> newChainTransactions = new HashMap<Sha256Hash, Transaction>();
-        // Transactions that don't appear in either the new or the old section,
-        // ie, the shared trunk.
-        Map<Sha256Hash, Transaction> commonChainTransactions = new HashMap<Sha256Hash, Transaction>();
-
-        Map<Sha256Hash, Transaction> all = new HashMap<Sha256Hash, Transaction>();
-        all.putAll(unspent);
-        all.putAll(spent);
-        all.putAll(inactive);
-        for (Transaction tx : all.values()) {
-            Collection<Sha256Hash> appearsIn = tx.getAppearsInHashes();
-            assert appearsIn != null;
-            // If the set of blocks this transaction appears in is disjoint with
-            // one of the chain segments it means
-            // the transaction was never incorporated by a miner into that side
-            // of the chain.
-            boolean inOldSection = !Collections.disjoint(appearsIn, oldBlockHashes);
-            boolean inNewSection = !Collections.disjoint(appearsIn, newBlockHashes);
-            boolean inCommonSection = !inNewSection && !inOldSection;
-
-            if (inCommonSection) {
-                boolean alreadyPresent = commonChainTransactions.put(tx.getHash(), tx) != null;
-                assert !alreadyPresent : "Transaction appears twice in common chain segment";
-            } else {
-                if (inOldSection) {
-                    boolean alreadyPresent = oldChainTransactions.put(tx.getHash(), tx) != null;
-                    assert !alreadyPresent : "Transaction appears twice in old chain segment";
-                    if (!inNewSection) {
-                        alreadyPresent = onlyOldChainTransactions.put(tx.getHash(), tx) != null;
-                        assert !alreadyPresent : "Transaction appears twice in only-old map";
-                    }
-                }
-                if (inNewSection) {
-                    boolean alreadyPresent = newChainTransactions.put(tx.getHash(), tx) != null;
-                    assert !alreadyPresent : "Transaction appears twice in new chain segment";
-                }
-            }
-        }
+        Map<Sha256Hash, Transaction> onlyOldChainTransactions = new HashMap<Sha256Hash, Transaction>(oldChainTransactions);
+        onlyOldChainTransactions.keySet().removeAll(newChainTransactions.keySet());
 
         // If there is no difference it means we have nothing we need to do and
         // the user does not care.
@@ -1691,16 +1779,10 @@ public class Wallet implements Serializable, IsMultiBitClass {
         if (!affectedUs)
             return;
 
-        // For simplicity we will reprocess every transaction to ensure it's in
-        // the right bucket and has the right
-        // connections. Attempting to update each one with minimal work is
-        // possible but complex and was leading to
-        // edge cases that were hard to fix. As re-orgs are rare the amount of
-        // work this implies should be manageable
-        // unless the user has an enormous wallet. As an optimization fully
-        // spent transactions buried deeper than
-        // 1000 blocks could be put into yet another bucket which we never touch
-        // and assume re-orgs cannot affect.
+        // The transactions in the shared trunk of the chain keep their pools
+        // and connections. Only the transactions in either chain segment and
+        // the pending transactions are taken apart and processed again, the
+        // same way as when they were first received.
 
         for (Transaction tx : onlyOldChainTransactions.values())
             log.info("  Only Old: {}", tx.getHashAsString());
@@ -1709,36 +1791,30 @@ public class Wallet implements Serializable, IsMultiBitClass {
         for (Transaction tx : newChainTransactions.values())
             log.info("  New: {}", tx.getHashAsString());
 
-        // Break all the existing connections.
-        for (Transaction tx : all.values())
-            tx.disconnectInputs();
+        Map<Sha256Hash, Transaction> affected = new HashMap<Sha256Hash, Transaction>();
+        affected.putAll(oldChainTransactions);
+        affected.putAll(newChainTransactions);
+
+        // Break the connections of the affected transactions, remembering the
+        // transactions they spent from. Those may have outputs available for
+        // spending again once this is over and need to move pool.
+        Map<Sha256Hash, Transaction> spentFrom = new HashMap<Sha256Hash, Transaction>();
+        for (Transaction tx : affected.values())
+            disconnectInputs(tx, spentFrom);
         for (Transaction tx : pending.values())
-            tx.disconnectInputs();
-        // Reconnect the transactions in the common part of the chain.
-        for (Transaction tx : commonChainTransactions.values()) {
-            TransactionInput badInput = tx.connectForReorganize(all);
-            assert badInput == null : "Failed to connect " + tx.getHashAsString() + ", " + badInput.toString();
-        }
-        // Recalculate the unspent/spent buckets for the transactions the re-org
-        // did not affect.
+            disconnectInputs(tx, spentFrom);
         log.info("Moving transactions");
-        unspent.clear();
-        spent.clear();
-        inactive.clear();
-        for (Transaction tx : commonChainTransactions.values()) {
-            int unspentOutputs = 0;
-            for (TransactionOutput output : tx.getOutputs()) {
-                if (output.isAvailableForSpending())
-                    unspentOutputs++;
-            }
-            if (unspentOutputs > 0) {
-                log.info("  TX {}: ->unspent", tx.getHashAsString());
-                unspent.put(tx.getHash(), tx);
-            } else {
-                log.info("  TX {}: ->spent", tx.getHashAsString());
-                spent.put(tx.getHash(), tx);
-            }
-        }
+        for (Transaction tx : affected.values()) {
+            Sha256Hash hash = tx.getHash();
+            unspent.remove(hash);
+            spent.remove(hash);
+            inactive.remove(hash);
+            updateSpendableOutputs(tx);
+        }
+        // The outputs the affected and pending transactions spent are
+        // available again until the transactions are connected again.
+        for (Transaction tx : spentFrom.values())
+            updateSpendableOutputs(tx);
         // Inform all transactions that exist only in the old chain that they
         // have moved, so they can update confidence
         // and timestamps. Transactions will be told they're on the new best
@@ -1755,15 +1831,15 @@ public class Wallet implements Serializable, IsMultiBitClass {
                                         // top-to-bottom.
         for (StoredBlock b : newBlocks) {
             log.info("Replaying block {}", b.getHeader().getHashAsString());
-            Set<Transaction> txns = new HashSet<Transaction>();
-            Sha256Hash blockHash = b.getHeader().getHash();
-            for (Transaction tx : newChainTransactions.values()) {
-                if (tx.getAppearsInHashes().contains(blockHash)) {
-                    txns.add(tx);
-                    log.info("  containing tx {}", tx.getHashAsString());
-                }
-            }
-            for (Transaction t : txns) {
+            Set<Sha256Hash> txHashes = getTransactionsByBlock().get(b.getHeader().getHash());
+            if (txHashes == null)
+                continue;
+            // Copied as receiving the transactions adds to the index.
+            for (Sha256Hash txHash : new ArrayList<Sha256Hash>(txHashes)) {
+                Transaction t = newChainTransactions.get(txHash);
+                if (t == null)
+                    continue;
+                log.info("  containing tx {}", t.getHashAsString());
                 try {
                     receive(t, b, BlockChain.NewBlockType.BEST_CHAIN, true);
                 } catch (ScriptException e) {
@@ -1785,10 +1861,7 @@ public class Wallet implements Serializable, IsMultiBitClass {
         // put them back into the pending pool if we can reconnect them, so we
         // don't create a double spend whilst the
         // network heals itself.
-        Map<Sha256Hash, Transaction> pool = new HashMap<Sha256Hash, Transaction>();
-        pool.putAll(unspent);
-        pool.putAll(spent);
-        pool.putAll(pending);
+        Map<Sha256Hash, Transaction> pendingBeforeReprocessing = new HashMap<Sha256Hash, Transaction>(pending);
         Map<Sha256Hash, Transaction> toReprocess = new HashMap<Sha256Hash, Transaction>();
         toReprocess.putAll(onlyOldChainTransactions);
         toReprocess.putAll(pending);
@@ -1808,11 +1881,27 @@ public class Wallet implements Serializable, IsMultiBitClass {
         // dead instead of pending.
         //
         // This only occurs when we are double spending our own coins.
-        for (Transaction tx : dead.values()) {
-            reprocessTxAfterReorg(pool, tx);
+        for (Transaction tx : new ArrayList<Transaction>(dead.values())) {
+            reprocessTxAfterReorg(pendingBeforeReprocessing, tx);
         }
         for (Transaction tx : toReprocess.values()) {
-            reprocessTxAfterReorg(pool, tx);
+            reprocessTxAfterReorg(pendingBeforeReprocessing, tx);
+        }
+
+        // The transactions spent from by the affected transactions are the
+        // only ones that can have changed between spent and unspent.
+        for (Transaction tx : spentFrom.values()) {
+            Sha256Hash hash = tx.getHash();
+            if (tx.isEveryOwnedOutputSpent(this)) {
+                if (unspent.remove(hash) != null) {
+                    log.info("  TX {}: ->spent", tx.getHashAsString());
+                    spent.put(hash, tx);
+                }
+            } else if (spent.remove(hash) != null) {
+                log.info("  TX {}: ->unspent", tx.getHashAsString());
+                unspent.put(hash, tx);
+            }
+            updateSpendableOutputs(tx);
         }
 
         log.info("post-reorg balance is {}", Utils.bitcoinValueToFriendlyString(getBalance()));
@@ -1828,7 +1917,83 @@ public class Wallet implements Serializable, IsMultiBitClass {
         assert isConsistent();
     }
 
-    private void reprocessTxAfterReorg(Map<Sha256Hash, Transaction> pool, Transaction tx) {
+    /**
+     * Returns the transactions in the unspent, spent and inactive pools that
+     * appear in any of the given blocks.
+     */
+    private Map<Sha256Hash, Transaction> findTransactionsInBlocks(List<Sha256Hash> blockHashes) {
+        Map<Sha256Hash, Set<Sha256Hash>> transactionsByBlock = getTransactionsByBlock();
+        Map<Sha256Hash, Transaction> found = new HashMap<Sha256Hash, Transaction>();
+        for (Sha256Hash blockHash : blockHashes) {
+            Set<Sha256Hash> txHashes = transactionsByBlock.get(blockHash);
+            if (txHashes == null)
+                continue;
+            for (Sha256Hash txHash : txHashes) {
+                Transaction tx;
+                if ((tx = unspent.get(txHash)) != null || (tx = spent.get(txHash)) != null
+                        || (tx = inactive.get(txHash)) != null)
+                    found.put(txHash, tx);
+            }
+        }
+        return found;
+    }
+
+    private static void disconnectInputs(Transaction tx, Map<Sha256Hash, Transaction> spentFrom) {
+        for (TransactionInput input : tx.getInputs()) {
+            Transaction from = input.getOutpoint().fromTx;
+            if (from != null)
+                spentFrom.put(from.getHash(), from);
+        }
+        tx.disconnectInputs();
+    }
+
+    /**
+     * Returns the index of block hash to the hashes of the transactions in
+     * this wallet that appear in the block, building it from the transactions
+     * if need be. Entries are not removed when a transaction leaves the
+     * wallet, so the transactions have to be looked up in the pools.
+     */
+    private Map<Sha256Hash, Set<Sha256Hash>> getTransactionsByBlock() {
+        if (transactionsByBlock == null) {
+            transactionsByBlock = new HashMap<Sha256Hash, Set<Sha256Hash>>();
+            for (Map<Sha256Hash, Transaction> pool : Arrays.asList(unspent, spent, inactive, pending, dead)) {
+                for (Transaction tx : pool.values()) {
+                    Collection<Sha256Hash> appearsIn = tx.getAppearsInHashes();
+                    if (appearsIn == null)
+                        continue;
+                    for (Sha256Hash blockHash : appearsIn)
+                        indexBlockAppearance(blockHash, tx);
+                }
+            }
+        }
+        return transactionsByBlock;
+    }
+
+    private void indexBlockAppearance(Sha256Hash blockHash, Transaction tx) {
+        Set<Sha256Hash> txHashes = transactionsByBlock.get(blockHash);
+        if (txHashes == null) {
+            txHashes = new LinkedHashSet<Sha256Hash>();
+            transactionsByBlock.put(blockHash, txHashes);
+        }
+        txHashes.add(tx.getHash());
+    }
+
+    /**
+     * Find a transaction in the pools an input can connect to after a re-org,
+     * without copying the pools into one map. The pending pool is as it was
+     * before reprocessing started, and takes precedence over spent, which
+     * takes precedence over unspent.
+     */
+    private Transaction findReorgConnection(Sha256Hash hash, Map<Sha256Hash, Transaction> pendingBeforeReprocessing) {
+        Transaction tx = pendingBeforeReprocessing.get(hash);
+        if (tx == null)
+            tx = spent.get(hash);
+        if (tx == null)
+            tx = unspent.get(hash);
+        return tx;
+    }
+
+    private void reprocessTxAfterReorg(Map<Sha256Hash, Transaction> pendingBeforeReprocessing, Transaction tx) {
         log.info("TX {}", tx.getHashAsString());
         int numInputs = tx.getInputs().size();
         int noSuchTx = 0;
@@ -1841,9 +2006,12 @@ public class Wallet implements Serializable, IsMultiBitClass {
                 noSuchTx++;
                 continue;
             }
-            TransactionInput.ConnectionResult result = input.connect(pool, false);
+            TransactionOutPoint outpoint = input.getOutpoint();
+            Transaction connectedTx = findReorgConnection(outpoint.getHash(), pendingBeforeReprocessing);
+            TransactionInput.ConnectionResult result = input.connect(connectedTx, false);
             if (result == TransactionInput.ConnectionResult.SUCCESS) {
                 success++;
+                updateSpendableOutputs(connectedTx);
             } else if (result == TransactionInput.ConnectionResult.NO_SUCH_TX) {
                 noSuchTx++;
             } else if (result == TransactionInput.ConnectionResult.ALREADY_SPENT) {
@@ -1852,12 +2020,13 @@ public class Wallet implements Serializable, IsMultiBitClass {
                 // chain. Did you just reverse
                 // your own transaction? I hope not!!
                 log.info("   ->dead, will not confirm now unless there's another re-org", tx.getHashAsString());
-                TransactionOutput doubleSpent = input.getConnectedOutput(pool);
+                TransactionOutput doubleSpent = connectedTx.getOutputs().get((int) outpoint.getIndex());
                 Transaction replacement = doubleSpent.getSpentBy().getParentTransaction();
                 dead.put(tx.getHash(), tx);
                 pending.remove(tx.getHash());
                 // This updates the tx confidence type automatically.
                 tx.getConfidence().setOverridingTransaction(replacement);
+                updateSpendableOutputs(tx);
                 invokeOnTransactionConfidenceChanged(tx);
                 break;
             }
@@ -1874,6 +2043,7 @@ public class Wallet implements Serializable, IsMultiBitClass {
             log.info("   ->pending", tx.getHashAsString());
             pending.put(tx.getHash(), tx);
             dead.remove(tx.getHash());
+            updateSpendableOutputs(tx);
         }
     }
 
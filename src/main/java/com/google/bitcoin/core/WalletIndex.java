@@ -0,0 +1,145 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the wallets of a {@link BlockChain} that a transaction might be relevant to with a hash lookup per output
+ * and input, rather than asking every wallet about every transaction.<p>
+ *
+ * Two indexes are kept:
+ * <ul>
+ * <li>public key hash to the wallets holding the key. Outputs are looked up by the hash in their scriptPubKey and
+ * inputs by the hash of the public key in their scriptSig, which is how an input spending one of our outputs is
+ * spotted.</li>
+ * <li>outpoint to the wallets with a pending transaction spending it, which finds double spends of pending
+ * transactions.</li>
+ * </ul>
+ *
+ * Keys are added to wallets straight through {@link Wallet#keychain} in many places so the index is not told about
+ * new keys. Instead, as keys are never removed from a wallet, {@link #update(List)} indexes the keys past the number
+ * already indexed for each wallet. The pending transactions of a wallet change all the time but there are few of
+ * them, so their outpoints are indexed afresh on each update.<p>
+ *
+ * The index only narrows down the wallets to ask - {@link Wallet#isTransactionRelevant(Transaction, boolean)} still
+ * makes the decision, so the result is the same as asking every wallet.<p>
+ *
+ * {@link #update(List)} returns an immutable {@link Snapshot} to look transactions up in, so blocks from different
+ * threads can be scanned at once. The maps are copied rather than changed when keys are added.
+ */
+class WalletIndex {
+    /**
+     * The index as it was at one update. Never changed, so any number of threads can use it.
+     */
+    static final class Snapshot {
+        private final Map<ByteArrayKey, List<Wallet>> walletsByKeyHash;
+        private final Map<TransactionOutPoint, List<Wallet>> walletsByPendingSpend;
+
+        private Snapshot(Map<ByteArrayKey, List<Wallet>> walletsByKeyHash,
+                Map<TransactionOutPoint, List<Wallet>> walletsByPendingSpend) {
+            this.walletsByKeyHash = walletsByKeyHash;
+            this.walletsByPendingSpend = walletsByPendingSpend;
+        }
+
+        /**
+         * Add the wallets the transaction might be relevant to to the given set.
+         */
+        void findWallets(Transaction tx, Set<Wallet> candidates) {
+            for (TransactionOutput output : tx.getOutputs()) {
+                try {
+                    byte[] pubKeyHash = output.getScriptPubKey().getPubKeyHash();
+                    addAll(candidates, walletsByKeyHash.get(new ByteArrayKey(pubKeyHash)));
+                } catch (ScriptException e) {
+                    // Not sent to an address so cannot be one of ours.
+                }
+            }
+            for (TransactionInput input : tx.getInputs()) {
+                if (input.isCoinBase())
+                    continue;
+                addAll(candidates, walletsByPendingSpend.get(input.getOutpoint()));
+                try {
+                    byte[] pubKey = input.getScriptSig().getPubKey();
+                    addAll(candidates, walletsByKeyHash.get(new ByteArrayKey(Utils.sha256hash160(pubKey))));
+                } catch (ScriptException e) {
+                    // No public key in the scriptSig so it cannot be spending one of our outputs.
+                }
+            }
+        }
+    }
+
+    // Replaced, never changed, once a snapshot has been taken of it.
+    private Map<ByteArrayKey, List<Wallet>> walletsByKeyHash = new HashMap<ByteArrayKey, List<Wallet>>();
+    private final Map<Wallet, Integer> indexedKeyCounts = new IdentityHashMap<Wallet, Integer>();
+
+    /**
+     * Index any keys added to the wallets since the last update and the outpoints spent by their pending
+     * transactions.
+     *
+     * @return the index as it is now
+     */
+    synchronized Snapshot update(List<Wallet> wallets) {
+        Map<ByteArrayKey, List<Wallet>> keyHashes = walletsByKeyHash;
+        Map<TransactionOutPoint, List<Wallet>> walletsByPendingSpend = new HashMap<TransactionOutPoint, List<Wallet>>();
+        for (Wallet wallet : wallets) {
+            synchronized (wallet) {
+                Integer indexed = indexedKeyCounts.get(wallet);
+                int keyCount = wallet.keychain.size();
+                for (int i = indexed == null ? 0 : indexed; i < keyCount; i++) {
+                    if (keyHashes == walletsByKeyHash)
+                        keyHashes = new HashMap<ByteArrayKey, List<Wallet>>(walletsByKeyHash);
+                    ByteArrayKey keyHash = new ByteArrayKey(wallet.keychain.get(i).getPubKeyHash());
+                    // The list may be shared with an earlier snapshot so is copied too.
+                    List<Wallet> holders = keyHashes.get(keyHash);
+                    if (holders == null || !holders.contains(wallet)) {
+                        List<Wallet> copy = holders == null ? new ArrayList<Wallet>(1) : new ArrayList<Wallet>(holders);
+                        copy.add(wallet);
+                        keyHashes.put(keyHash, copy);
+                    }
+                }
+                indexedKeyCounts.put(wallet, keyCount);
+
+                for (Transaction pending : wallet.pending.values()) {
+                    for (TransactionInput input : pending.getInputs()) {
+                        add(walletsByPendingSpend, input.getOutpoint(), wallet);
+                    }
+                }
+            }
+        }
+        walletsByKeyHash = keyHashes;
+        return new Snapshot(keyHashes, walletsByPendingSpend);
+    }
+
+    private static <K> void add(Map<K, List<Wallet>> index, K key, Wallet wallet) {
+        List<Wallet> wallets = index.get(key);
+        if (wallets == null) {
+            wallets = new ArrayList<Wallet>(1);
+            index.put(key, wallets);
+        }
+        if (!wallets.contains(wallet))
+            wallets.add(wallet);
+    }
+
+    private static void addAll(Set<Wallet> candidates, List<Wallet> wallets) {
+        if (wallets != null)
+            candidates.addAll(wallets);
+    }
+}
@@ -0,0 +1,423 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Saves a {@link Wallet} as a snapshot in the {@link BinaryWalletSerializer} format plus a journal of the changes
+ * made since, so that saving a wallet writes what changed rather than the whole wallet.<p>
+ *
+ * The journal is a file next to the wallet, named after it with {@link #JOURNAL_SUFFIX}. It starts with the SHA-256
+ * of the snapshot it belongs to, followed by batches of entries: new keys, new transactions, the new state of
+ * transactions that changed pool or confidence, and transactions that were removed. Each batch ends with a commit
+ * entry holding a checksum of the batch, and only whole batches are replayed, so a save cut short leaves the wallet
+ * as it was at the previous save. A journal whose hash does not match the snapshot, because the snapshot was replaced
+ * after the journal was started, is ignored.<p>
+ *
+ * {@link #save(Wallet)} works out what changed by comparing the encoded state of each transaction with what was last
+ * written, so it does not depend on the wallet telling it about changes. Once the journal is more than half the size
+ * of the snapshot, or the keychain changed other than by adding keys, the save writes a new snapshot and starts an
+ * empty journal instead. Where the new snapshot cannot be renamed over the old one (Windows) the old one is moved
+ * aside first, and {@link #recoverSnapshot(File)} puts a snapshot back if that was cut short.<p>
+ *
+ * Not thread safe, a journal is only used by the thread saving its wallet.
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    public static final String JOURNAL_SUFFIX = ".journal";
+    static final String TEMPORARY_SUFFIX = ".tmp";
+    static final String BACKUP_SUFFIX = ".bak";
+
+    private static final byte[] MAGIC = { 'M', 'B', 'W', 'J' };
+    // Version 1 wrote a key entry per key, which are still read.
+    private static final int VERSION = 2;
+    // magic (4), version (4), SHA-256 of the snapshot (32)
+    private static final int HEADER_SIZE = 40;
+
+    private static final byte KEY = 1;
+    private static final byte TRANSACTION = 2;
+    private static final byte STATE = 3;
+    private static final byte REMOVE = 4;
+    private static final byte COMMIT = 5;
+    private static final byte KEYS = 6;
+
+    // A new snapshot is not written until the journal is at least this big.
+    static final long MINIMUM_COMPACTION_SIZE = 64 * 1024;
+
+    private final File walletFile;
+    private final File journalFile;
+
+    // What the snapshot and journal on disk hold, to work out what changed at the next save.
+    private final Map<Sha256Hash, byte[]> savedStates = new HashMap<Sha256Hash, byte[]>();
+    private int savedKeyCount;
+    private ECKey lastSavedKey;
+
+    // Null until there is a snapshot in the binary format that the journal belongs to.
+    private byte[] snapshotDigest;
+    private long snapshotSize;
+    private long journalSize;
+
+    public WalletJournal(File walletFile) {
+        this.walletFile = walletFile;
+        this.journalFile = journalFileFor(walletFile);
+    }
+
+    public static File journalFileFor(File walletFile) {
+        return new File(walletFile.getPath() + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Load the wallet from its snapshot and replay the journal over it. A wallet saved with Java serialization by an
+     * older version is loaded as it is, and the first save writes it as a snapshot.
+     */
+    public Wallet load() throws IOException {
+        recoverSnapshot(walletFile);
+        snapshotDigest = null;
+        Wallet wallet;
+        if (BinaryWalletSerializer.isBinaryWallet(walletFile)) {
+            MessageDigest digest = newDigest();
+            InputStream in = new DigestInputStream(new FileInputStream(walletFile), digest);
+            BinaryWalletSerializer.WalletRecords records;
+            try {
+                records = BinaryWalletSerializer.readRecords(in);
+                // Hash whatever follows the wallet too, so the digest covers the whole file.
+                byte[] buffer = new byte[4096];
+                while (in.read(buffer) >= 0)
+                    ;
+            } finally {
+                in.close();
+            }
+            byte[] loadedDigest = digest.digest();
+            snapshotSize = walletFile.length();
+            if (replay(records, loadedDigest))
+                snapshotDigest = loadedDigest;
+            wallet = BinaryWalletSerializer.buildWallet(records);
+        } else {
+            wallet = Wallet.loadFromFile(walletFile);
+        }
+        remember(wallet);
+        return wallet;
+    }
+
+    /**
+     * Put the snapshot of a wallet back if a compaction was cut short after moving the old snapshot aside, leaving no
+     * wallet file. The new snapshot was written in full before the old one was moved, so it is used if it is there,
+     * otherwise the old one. A journal belonging to the old snapshot is ignored with the new one, which already holds
+     * everything in it. Does nothing if the wallet file is there, other than deleting a left over old snapshot.
+     */
+    public static void recoverSnapshot(File walletFile) throws IOException {
+        File backupFile = new File(walletFile.getPath() + BACKUP_SUFFIX);
+        if (!backupFile.exists())
+            return;
+        if (!walletFile.exists()) {
+            File temporaryFile = new File(walletFile.getPath() + TEMPORARY_SUFFIX);
+            File recovered = temporaryFile.exists() ? temporaryFile : backupFile;
+            log.warn("Saving " + walletFile + " was cut short, recovering it from " + recovered);
+            if (!recovered.renameTo(walletFile))
+                throw new IOException("Could not recover " + walletFile + " from " + recovered);
+        }
+        if (backupFile.exists() && !backupFile.delete())
+            log.warn("Could not delete " + backupFile);
+    }
+
+    /**
+     * Append the changes to the wallet since the last save to the journal, or write a new snapshot if it is time to.
+     */
+    public void save(Wallet wallet) throws IOException {
+        synchronized (wallet) {
+            List<ECKey> keychain = wallet.keychain;
+            boolean keychainChanged = keychain.size() < savedKeyCount
+                    || (savedKeyCount > 0 && keychain.get(savedKeyCount - 1) != lastSavedKey);
+            if (snapshotDigest == null || keychainChanged || !journalFile.exists()
+                    || journalSize > Math.max(MINIMUM_COMPACTION_SIZE, snapshotSize / 2)) {
+                compact(wallet);
+                return;
+            }
+
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(batch);
+            CRC32 checksum = new CRC32();
+            if (keychain.size() > savedKeyCount) {
+                writeEntry(out, checksum, KEYS,
+                        BinaryWalletSerializer.encodeKeys(keychain.subList(savedKeyCount, keychain.size())));
+            }
+
+            Map<Sha256Hash, byte[]> changedStates = new HashMap<Sha256Hash, byte[]>();
+            Set<Sha256Hash> removed = new HashSet<Sha256Hash>(savedStates.keySet());
+            for (WalletTransaction wtx : wallet.getWalletTransactions()) {
+                Transaction tx = wtx.getTransaction();
+                removed.remove(tx.getHash());
+                byte[] state = BinaryWalletSerializer.encodeState(wtx);
+                byte[] savedState = savedStates.get(tx.getHash());
+                if (savedState == null) {
+                    writeEntry(out, checksum, TRANSACTION, BinaryWalletSerializer.encodeTransaction(tx, state));
+                } else if (!Arrays.equals(savedState, state)) {
+                    ByteArrayOutputStream entry = new ByteArrayOutputStream(32 + state.length);
+                    entry.write(tx.getHash().getBytes());
+                    entry.write(state);
+                    writeEntry(out, checksum, STATE, entry.toByteArray());
+                } else {
+                    continue;
+                }
+                changedStates.put(tx.getHash(), state);
+            }
+            for (Sha256Hash hash : removed)
+                writeEntry(out, checksum, REMOVE, hash.getBytes());
+
+            if (batch.size() == 0)
+                return;
+            out.writeByte(COMMIT);
+            out.writeInt(8);
+            out.writeLong(checksum.getValue());
+
+            // Nothing can safely follow a batch that was only partly written, so start afresh next time if need be.
+            long journalSizeBefore = journalSize;
+            journalSize = Long.MAX_VALUE;
+            FileOutputStream journal = new FileOutputStream(journalFile, true);
+            try {
+                batch.writeTo(journal);
+                journal.getChannel().force(false);
+            } finally {
+                journal.close();
+            }
+            journalSize = journalSizeBefore + batch.size();
+
+            savedStates.putAll(changedStates);
+            savedStates.keySet().removeAll(removed);
+            savedKeyCount = keychain.size();
+            lastSavedKey = savedKeyCount == 0 ? null : keychain.get(savedKeyCount - 1);
+            log.debug("Appended " + batch.size() + " bytes to " + journalFile);
+        }
+    }
+
+    /**
+     * Write the whole wallet as a new snapshot and start an empty journal.
+     */
+    public void compact(Wallet wallet) throws IOException {
+        synchronized (wallet) {
+            snapshotDigest = null;
+            MessageDigest digest = newDigest();
+            File temporaryFile = new File(walletFile.getPath() + TEMPORARY_SUFFIX);
+            FileOutputStream snapshot = new FileOutputStream(temporaryFile);
+            try {
+                BinaryWalletSerializer.writeWallet(wallet, new DigestOutputStream(snapshot, digest));
+                snapshot.getChannel().force(false);
+            } finally {
+                snapshot.close();
+            }
+            if (!temporaryFile.renameTo(walletFile)) {
+                // Renaming over an existing file fails on Windows. The old snapshot is moved aside rather than
+                // deleted so that a whole snapshot is always there for recoverSnapshot().
+                File backupFile = new File(walletFile.getPath() + BACKUP_SUFFIX);
+                if (backupFile.exists() && !backupFile.delete())
+                    throw new IOException("Could not delete " + backupFile);
+                if (!walletFile.renameTo(backupFile) || !temporaryFile.renameTo(walletFile))
+                    throw new IOException("Could not replace " + walletFile + " with " + temporaryFile);
+                if (!backupFile.delete())
+                    log.warn("Could not delete " + backupFile);
+            }
+            byte[] newDigest = digest.digest();
+            snapshotSize = walletFile.length();
+
+            // A journal left from the old snapshot does not match the new one, so is ignored if this is cut short.
+            FileOutputStream journal = new FileOutputStream(journalFile);
+            try {
+                DataOutputStream out = new DataOutputStream(journal);
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.write(newDigest);
+                journal.getChannel().force(false);
+            } finally {
+                journal.close();
+            }
+            journalSize = HEADER_SIZE;
+            snapshotDigest = newDigest;
+            remember(wallet);
+            log.debug("Wrote a " + snapshotSize + " byte snapshot to " + walletFile);
+        }
+    }
+
+    /**
+     * Replay the whole batches in the journal over the records, and cut off anything after the last whole batch.
+     *
+     * @return true if there is a journal for the snapshot with the given digest
+     */
+    private boolean replay(BinaryWalletSerializer.WalletRecords records, byte[] digest) throws IOException {
+        if (!journalFile.exists())
+            return false;
+        long committedSize;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            byte[] journalDigest = new byte[digest.length];
+            int version;
+            try {
+                in.readFully(magic);
+                version = in.readInt();
+                in.readFully(journalDigest);
+            } catch (EOFException e) {
+                return false;
+            }
+            if (!Arrays.equals(MAGIC, magic) || !Arrays.equals(digest, journalDigest)) {
+                log.info("Ignoring " + journalFile + " as it does not belong to " + walletFile);
+                return false;
+            }
+            if (version > VERSION)
+                throw new IOException("Journal version " + version + " is newer than this software can read");
+
+            committedSize = HEADER_SIZE;
+            long position = HEADER_SIZE;
+            long remaining = journalFile.length() - HEADER_SIZE;
+            CRC32 checksum = new CRC32();
+            List<byte[]> entries = new ArrayList<byte[]>();
+            while (true) {
+                int type = in.read();
+                if (type < 0 || remaining < 5)
+                    break;
+                int length = in.readInt();
+                if (length < 0 || length > remaining - 5)
+                    break;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                position += 5 + length;
+                remaining -= 5 + length;
+                if (type == COMMIT) {
+                    if (length != 8 || readLong(payload) != checksum.getValue())
+                        break;
+                    for (byte[] entry : entries)
+                        apply(records, entry);
+                    entries.clear();
+                    checksum.reset();
+                    committedSize = position;
+                } else {
+                    byte[] entry = new byte[1 + length];
+                    entry[0] = (byte) type;
+                    System.arraycopy(payload, 0, entry, 1, length);
+                    checksum.update(entry);
+                    entries.add(entry);
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        if (committedSize < journalFile.length()) {
+            log.warn("Discarding " + (journalFile.length() - committedSize) + " bytes after the last whole save in "
+                    + journalFile);
+            RandomAccessFile journal = new RandomAccessFile(journalFile, "rw");
+            try {
+                journal.setLength(committedSize);
+            } finally {
+                journal.close();
+            }
+        }
+        journalSize = committedSize;
+        return true;
+    }
+
+    private static void apply(BinaryWalletSerializer.WalletRecords records, byte[] entry) throws IOException {
+        byte[] payload = Arrays.copyOfRange(entry, 1, entry.length);
+        switch (entry[0]) {
+        case KEY:
+            records.keys.add(BinaryWalletSerializer.decodeKey(payload));
+            break;
+        case KEYS:
+            records.keys.addAll(BinaryWalletSerializer.decodeKeys(payload));
+            break;
+        case TRANSACTION:
+            records.put(BinaryWalletSerializer.decodeTransaction(records.params, payload));
+            break;
+        case STATE:
+            BinaryWalletSerializer.TransactionRecord record = records.transactions.get(new Sha256Hash(
+                    Arrays.copyOf(payload, 32)));
+            if (record == null) {
+                log.warn("Ignoring the state of a transaction that is not in the wallet");
+                break;
+            }
+            record.state = Arrays.copyOfRange(payload, 32, payload.length);
+            break;
+        case REMOVE:
+            records.transactions.remove(new Sha256Hash(payload));
+            break;
+        default:
+            throw new IOException("Unknown journal entry " + entry[0]);
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, CRC32 checksum, byte type, byte[] payload)
+            throws IOException {
+        out.writeByte(type);
+        out.writeInt(payload.length);
+        out.write(payload);
+        checksum.update(type);
+        checksum.update(payload);
+    }
+
+    private static long readLong(byte[] bytes) {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+            value = (value << 8) | (bytes[i] & 0xFFL);
+        return value;
+    }
+
+    /**
+     * Remember the state of the wallet as the state on disk.
+     */
+    private void remember(Wallet wallet) throws IOException {
+        synchronized (wallet) {
+            savedStates.clear();
+            for (WalletTransaction wtx : wallet.getWalletTransactions())
+                savedStates.put(wtx.getTransaction().getHash(), BinaryWalletSerializer.encodeState(wtx));
+            savedKeyCount = wallet.keychain.size();
+            lastSavedKey = savedKeyCount == 0 ? null : wallet.keychain.get(savedKeyCount - 1);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+    }
+}
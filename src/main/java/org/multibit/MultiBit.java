@@ -21,7 +21,6 @@ import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
-import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.Properties;
@@ -174,13 +173,9 @@ public class MultiBit {
         String numberOfWalletsAsString = userPreferences.getProperty(MultiBitModel.NUMBER_OF_WALLETS);
         log.debug("When loading wallets, there were " + numberOfWalletsAsString);
 
-        boolean useFastCatchup = false;
-        
         if (numberOfWalletsAsString == null || "".equals(numberOfWalletsAsString)) {
             // if this is missing then there is just the one wallet (old format
             // properties or user has just started up for the first time)
-            useFastCatchup = true;
-            
             try {
                 // activeWalletFilename may be null on first time startup
                 controller.addWalletFromFilename(activeWalletFilename);
@@ -263,11 +258,6 @@ public class MultiBit {
         controller.handleOpenURI();
 
         log.debug("Downloading blockchain");
-        if (useFastCatchup) {
-            long earliestTimeSecs = controller.getModel().getActiveWallet().getEarliestKeyCreationTime();
-            controller.getMultiBitService().getPeerGroup().setFastCatchupTimeSecs(earliestTimeSecs);
-            log.debug("Using FastCatchup for blockchain sync with time of " + (new Date(earliestTimeSecs)).toString());
-        }
         multiBitService.downloadBlockChain();
     }
 
@@ -42,7 +42,9 @@ import org.multibit.utils.DateUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.bitcoin.core.BinaryWalletSerializer;
 import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.core.WalletJournal;
 
 /**
  * a class consolidating the File IO in MultiBit for wallets and wallet infos
@@ -77,17 +79,24 @@ public class FileHandler {
         }
 
         String walletFilename = walletFile.getAbsolutePath();
-        Wallet wallet = Wallet.loadFromFile(walletFile);
+        WalletJournal walletJournal = new WalletJournal(walletFile);
+        Wallet wallet = walletJournal.load();
+        // only known once the load has recovered a wallet file left missing by a save that was cut short
+        boolean javaSerialized = !BinaryWalletSerializer.isBinaryWallet(walletFile);
 
         // add the new wallet into the model
         PerWalletModelData perWalletModelData = controller.getModel().addWallet(wallet, walletFilename);
+        perWalletModelData.setWalletJournal(walletJournal);
 
         WalletInfo walletInfo = new WalletInfo(walletFilename);
         perWalletModelData.setWalletInfo(walletInfo);
 
         synchronized (walletInfo) {
             rememberFileSizesAndLastModified(walletFile, walletInfo);
-            perWalletModelData.setDirty(false);
+
+            // wallets saved with Java serialization by older versions are
+            // marked dirty so the next save writes them in the binary format
+            perWalletModelData.setDirty(javaSerialized);
         }
 
         return perWalletModelData;
@@ -138,7 +147,16 @@ public class FileHandler {
                         }
 
                         if (perWalletModelData.getWallet() != null) {
-                            perWalletModelData.getWallet().saveToFile(walletFile);
+                            backupJavaSerializedWallet(walletFile);
+
+                            // only the changes since the last save are
+                            // appended to the journal of the wallet
+                            WalletJournal walletJournal = perWalletModelData.getWalletJournal();
+                            if (walletJournal == null) {
+                                walletJournal = new WalletJournal(walletFile);
+                                perWalletModelData.setWalletJournal(walletJournal);
+                            }
+                            walletJournal.save(perWalletModelData.getWallet());
                         }
 
                         rememberFileSizesAndLastModified(walletFile, walletInfo);
@@ -188,6 +206,21 @@ public class FileHandler {
         return;
     }
 
+    /**
+     * keep a copy of a wallet saved with Java serialization before it is
+     * overwritten in the binary format, so that it can still be opened by an
+     * older version of MultiBit
+     */
+    private void backupJavaSerializedWallet(File walletFile) throws IOException {
+        if (!walletFile.exists() || walletFile.length() == 0 || BinaryWalletSerializer.isBinaryWallet(walletFile)) {
+            return;
+        }
+        String backupFilename = createBackupFilename(walletFile, false);
+        copyFile(walletFile, new File(backupFilename));
+        log.info("Backed up wallet '" + walletFile.getAbsolutePath() + "' to '" + backupFilename
+                + "' before saving it in the binary wallet format");
+    }
+
     /**
      * delete the wallet and the wallet info file
      * 
@@ -210,9 +243,13 @@ public class FileHandler {
                 throw new DeleteWalletException(controller.getLocaliser().getString("deleteWalletException.walletWasReadonly"));
             }
             
-            // delete the wallet info file first, then the wallet
+            // delete the wallet info file first, then the wallet and its journal
             boolean success = walletInfoFile.delete();
             if (success) {
+                File walletJournalFile = WalletJournal.journalFileFor(walletFile);
+                if (walletJournalFile.exists() && !walletJournalFile.delete()) {
+                    log.error("Could not delete wallet journal '" + walletJournalFile.getAbsolutePath() + "'");
+                }
                 success = walletFile.delete();
                 if (success) {
                     // wallet file deleted ok
@@ -244,6 +281,7 @@ public class FileHandler {
         String walletInfoFilename = WalletInfo.createWalletInfoFilename(perWalletModelData.getWalletFilename());
         File walletInfoFile = new File(walletInfoFilename);
         File walletFile = new File(perWalletModelData.getWalletFilename());
+        File walletJournalFile = WalletJournal.journalFileFor(walletFile);
 
         WalletInfo walletInfo = perWalletModelData.getWalletInfo();
 
@@ -253,6 +291,8 @@ public class FileHandler {
                 String walletFileLastModified = "" + walletFile.lastModified();
                 String walletInfoFileSize = "" + walletInfoFile.length();
                 String walletInfoFileLastModified = "" + walletInfoFile.lastModified();
+                String walletJournalFileSize = "" + walletJournalFile.length();
+                String walletJournalFileLastModified = "" + walletJournalFile.lastModified();
                 if (walletInfo != null) {
                     if (!walletFileSize.equals(walletInfo.getProperty(MultiBitModel.WALLET_FILE_SIZE))) {
                         haveFilesChanged = true;
@@ -269,6 +309,16 @@ public class FileHandler {
                     if (!walletInfoFileLastModified.equals(walletInfo.getProperty(MultiBitModel.WALLET_INFO_FILE_LAST_MODIFIED))) {
                         haveFilesChanged = true;
                     }
+
+                    // a save by another copy of MultiBit usually only
+                    // appends to the journal, leaving the wallet file as it was
+                    if (!walletJournalFileSize.equals(walletInfo.getProperty(MultiBitModel.WALLET_JOURNAL_FILE_SIZE))) {
+                        haveFilesChanged = true;
+                    }
+
+                    if (!walletJournalFileLastModified.equals(walletInfo.getProperty(MultiBitModel.WALLET_JOURNAL_FILE_LAST_MODIFIED))) {
+                        haveFilesChanged = true;
+                    }
                 }
                 if (haveFilesChanged) {
                     log.debug("Result of check of whether files have changed for wallet filename "
@@ -294,8 +344,8 @@ public class FileHandler {
     }
 
     /**
-     * keep a record of the wallet and wallet info files sizes and date last
-     * modified
+     * keep a record of the wallet, wallet journal and wallet info files sizes
+     * and date last modified
      * 
      * @param walletFile
      *            The wallet file
@@ -317,17 +367,24 @@ public class FileHandler {
         File walletInfoFile = new File(walletInfoFilename);
         long walletInfoFileSize = walletInfoFile.length();
         long walletInfoFileLastModified = walletInfoFile.lastModified();
+        File walletJournalFile = WalletJournal.journalFileFor(walletFile);
+        long walletJournalFileSize = walletJournalFile.length();
+        long walletJournalFileLastModified = walletJournalFile.lastModified();
 
         walletInfo.put(MultiBitModel.WALLET_FILE_SIZE, "" + walletFileSize);
         walletInfo.put(MultiBitModel.WALLET_FILE_LAST_MODIFIED, "" + walletFileLastModified);
         walletInfo.put(MultiBitModel.WALLET_INFO_FILE_SIZE, "" + walletInfoFileSize);
         walletInfo.put(MultiBitModel.WALLET_INFO_FILE_LAST_MODIFIED, "" + walletInfoFileLastModified);
+        walletInfo.put(MultiBitModel.WALLET_JOURNAL_FILE_SIZE, "" + walletJournalFileSize);
+        walletInfo.put(MultiBitModel.WALLET_JOURNAL_FILE_LAST_MODIFIED, "" + walletJournalFileLastModified);
 
         // TODO Fix this - create a toString()
         log.debug("rememberFileSizesAndLastModified: Wallet filename " + walletFilename + " , " + MultiBitModel.WALLET_FILE_SIZE + " " + walletFileSize + " ,"
                 + MultiBitModel.WALLET_FILE_LAST_MODIFIED + " " + walletFileLastModified + " ,"
                 + MultiBitModel.WALLET_INFO_FILE_SIZE + " " + walletInfoFileSize + " ,"
-                + MultiBitModel.WALLET_INFO_FILE_LAST_MODIFIED + " " + walletInfoFileLastModified);
+                + MultiBitModel.WALLET_INFO_FILE_LAST_MODIFIED + " " + walletInfoFileLastModified + " ,"
+                + MultiBitModel.WALLET_JOURNAL_FILE_SIZE + " " + walletJournalFileSize + " ,"
+                + MultiBitModel.WALLET_JOURNAL_FILE_LAST_MODIFIED + " " + walletJournalFileLastModified);
     }
 
     public static void writeUserPreferences(MultiBitController controller) {
@@ -145,6 +145,19 @@ public class MultiBitModel {
     // connect to single node
     public static final String SINGLE_NODE_CONNECTION = "singleNodeConnection";
 
+    // block store tuning
+    public static final String BLOCK_STORE_MEMORY_MAPPED = "blockStoreMemoryMapped";
+    public static final String BLOCK_STORE_GROUP_COMMIT_BLOCKS = "blockStoreGroupCommitBlocks";
+    public static final String BLOCK_STORE_GROUP_COMMIT_MILLIS = "blockStoreGroupCommitMillis";
+
+    // when replaying the blockchain, take the headers before the earliest
+    // wallet key from the block store rather than downloading those blocks
+    public static final String HEADERS_FIRST_SYNC = "headersFirstSync";
+
+    // download blocks from all connected peers at once when replaying the
+    // blockchain
+    public static final String PARALLEL_BLOCK_DOWNLOAD = "parallelBlockDownload";
+
     // sizes and last modified dates of files
     public static final String WALLET_FILE_SIZE = "walletFileSize";
     public static final String WALLET_FILE_LAST_MODIFIED = "walletFileLastModified";
@@ -152,6 +165,10 @@ public class MultiBitModel {
     public static final String WALLET_INFO_FILE_SIZE = "walletInfoFileSize";
     public static final String WALLET_INFO_FILE_LAST_MODIFIED = "walletInfoFileLastModified";
 
+    // most saves only append to the wallet journal
+    public static final String WALLET_JOURNAL_FILE_SIZE = "walletJournalFileSize";
+    public static final String WALLET_JOURNAL_FILE_LAST_MODIFIED = "walletJournalFileLastModified";
+
     // merchant menu
     public static final String SHOW_MERCHANT_MENU = "showMerchantMenu";
 
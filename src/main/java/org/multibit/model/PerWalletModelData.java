@@ -18,6 +18,7 @@ package org.multibit.model;
 import java.util.List;
 
 import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.core.WalletJournal;
 
 /**
  * this wrapper class wraps all the data pertaining to a single wallet
@@ -53,6 +54,12 @@ public class PerWalletModelData {
      * the PerWalletModelData has changed since last been written to disk
      */
     private boolean isDirty;
+
+    /**
+     * the journal the wallet is saved to, null until the wallet is first
+     * loaded or saved
+     */
+    private WalletJournal walletJournal;
     
 //    /**
 //     * the PerWalletModelData has received incoming receipts since last been written to disk
@@ -132,6 +139,14 @@ public class PerWalletModelData {
         this.isDirty = isDirty;
     }
 
+    public WalletJournal getWalletJournal() {
+        return walletJournal;
+    }
+
+    public void setWalletJournal(WalletJournal walletJournal) {
+        this.walletJournal = walletJournal;
+    }
+
     public String getWalletBackupFilename() {
         return walletBackupFilename;
     }
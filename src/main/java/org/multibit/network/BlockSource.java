@@ -0,0 +1,35 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.Sha256Hash;
+
+/**
+ * Somewhere full blocks can be downloaded from, such as a peer answering
+ * getdata messages.
+ */
+public interface BlockSource {
+    /**
+     * Ask for the block with the given hash.
+     * 
+     * @return the block when it arrives
+     */
+    Future<Block> getBlock(Sha256Hash hash) throws IOException;
+}
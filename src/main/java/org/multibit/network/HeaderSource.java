@@ -0,0 +1,41 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.Sha256Hash;
+
+/**
+ * Somewhere block headers can be downloaded from, such as a peer answering
+ * getheaders messages.
+ */
+public interface HeaderSource {
+    /**
+     * Get the headers that follow the first block in the locator that the
+     * source knows about, in chain order, like a getheaders message.
+     * 
+     * @param locator
+     *            block hashes from the top of our best chain downwards, ending
+     *            with the genesis block
+     * @param maximumHeaders
+     *            the most headers to return
+     * @return the headers, or an empty list if there are no more
+     */
+    List<Block> getHeaders(List<Sha256Hash> locator, int maximumHeaders) throws IOException;
+}
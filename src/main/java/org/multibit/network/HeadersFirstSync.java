@@ -0,0 +1,177 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.multibit.store.ReplayableBlockStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.BlockChain;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.ScriptException;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.VerificationException;
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
+
+/**
+ * Brings a block chain up to date with headers only, up to the time the
+ * wallets need full blocks from.
+ * 
+ * <p>
+ * The block store keeps only headers anyway and blocks from before the
+ * earliest key in any wallet cannot hold any of our transactions, so there is
+ * no point downloading their transactions. Headers are asked for in batches
+ * of up to {@link #MAXIMUM_HEADERS}. Each batch is checked to be one chain
+ * connecting to ours before any of it is added, then each header is added to
+ * the block chain, which checks its proof of work and difficulty, and the
+ * batch is flushed to a {@link ReplayableBlockStore} in one go.
+ * 
+ * <p>
+ * Once the headers reach the given time the normal block download carries
+ * on from the new chain head with full blocks.
+ */
+public class HeadersFirstSync {
+    private static final Logger log = LoggerFactory.getLogger(HeadersFirstSync.class);
+
+    /**
+     * The most headers asked for at once, the most a peer sends in one headers
+     * message.
+     */
+    public static final int MAXIMUM_HEADERS = 2000;
+
+    // Number of blocks below the chain head named one by one in a locator
+    // before the steps start to double.
+    private static final int LOCATOR_DENSE_BLOCKS = 10;
+
+    private final BlockChain chain;
+    private final NetworkParameters params;
+    private int maximumHeaders = MAXIMUM_HEADERS;
+
+    public HeadersFirstSync(NetworkParameters params, BlockChain chain) {
+        this.params = params;
+        this.chain = chain;
+    }
+
+    /**
+     * Change the number of headers asked for at once.
+     */
+    public void setMaximumHeaders(int maximumHeaders) {
+        this.maximumHeaders = maximumHeaders;
+    }
+
+    /**
+     * Add headers from the source to the chain until the next header is at or
+     * after fullBlocksFromTimeSecs or the source has no more.
+     * 
+     * @return the number of headers added
+     */
+    public int downloadHeaders(HeaderSource source, long fullBlocksFromTimeSecs) throws IOException,
+            BlockStoreException, VerificationException {
+        int added = 0;
+        while (true) {
+            StoredBlock chainHead = chain.getChainHead();
+            if (chainHead.getHeader().getTimeSeconds() >= fullBlocksFromTimeSecs) {
+                break;
+            }
+            List<Block> headers = source.getHeaders(buildLocator(chainHead), maximumHeaders);
+            if (headers.isEmpty()) {
+                break;
+            }
+            checkConnected(headers);
+
+            boolean reachedFullBlocks = false;
+            for (Block header : headers) {
+                if (header.getTimeSeconds() >= fullBlocksFromTimeSecs) {
+                    reachedFullBlocks = true;
+                    break;
+                }
+                try {
+                    // Only the header is wanted even if the source sent more.
+                    chain.add(header.cloneAsHeader());
+                } catch (ScriptException e) {
+                    // Headers have no scripts.
+                    throw new VerificationException(e.getMessage());
+                }
+                added++;
+            }
+            flush();
+            log.debug("Added headers up to height " + chain.getBestChainHeight());
+
+            // Stop on a batch that did not move the chain on, such as a
+            // side chain with less work, rather than ask for it again.
+            if (reachedFullBlocks || chain.getChainHead().equals(chainHead)) {
+                break;
+            }
+        }
+        log.info("Headers first sync added " + added + " headers, chain is now at height " + chain.getBestChainHeight());
+        return added;
+    }
+
+    /**
+     * Check the headers form one chain, starting from a block we already
+     * have.
+     */
+    private void checkConnected(List<Block> headers) throws BlockStoreException, VerificationException {
+        Block first = headers.get(0);
+        if (chain.getBlockStore().get(first.getPrevBlockHash()) == null) {
+            throw new VerificationException("Headers do not connect to the block chain at " + first.getHashAsString());
+        }
+        for (int i = 1; i < headers.size(); i++) {
+            if (!headers.get(i).getPrevBlockHash().equals(headers.get(i - 1).getHash())) {
+                throw new VerificationException("Headers are not a chain at " + headers.get(i).getHashAsString());
+            }
+        }
+    }
+
+    /**
+     * The chain head, the blocks just below it and then blocks at doubling
+     * distances down to the genesis block. Blocks below the chain head can
+     * only be found quickly in a {@link ReplayableBlockStore}, with other
+     * stores the locator is just the chain head and the genesis block.
+     */
+    List<Sha256Hash> buildLocator(StoredBlock chainHead) throws BlockStoreException {
+        List<Sha256Hash> locator = new ArrayList<Sha256Hash>();
+        locator.add(chainHead.getHeader().getHash());
+        BlockStore store = chain.getBlockStore();
+        if (store instanceof ReplayableBlockStore) {
+            ReplayableBlockStore replayableBlockStore = (ReplayableBlockStore) store;
+            int step = 1;
+            for (int height = chainHead.getHeight() - 1; height > 0; height -= step) {
+                StoredBlock block = replayableBlockStore.getBlockAtHeight(height);
+                if (block == null) {
+                    // Below the checkpoint the store was seeded from.
+                    break;
+                }
+                locator.add(block.getHeader().getHash());
+                if (locator.size() > LOCATOR_DENSE_BLOCKS) {
+                    step *= 2;
+                }
+            }
+        }
+        Sha256Hash genesisHash = params.genesisBlock.getHash();
+        if (!locator.get(locator.size() - 1).equals(genesisHash)) {
+            locator.add(genesisHash);
+        }
+        return locator;
+    }
+}
@@ -15,32 +15,275 @@
  */
 package org.multibit.network;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Future;
+
 import org.multibit.controller.MultiBitController;
+import org.multibit.model.PerWalletModelData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.google.bitcoin.core.AbstractPeerEventListener;
+import com.google.bitcoin.core.Block;
 import com.google.bitcoin.core.BlockChain;
 import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Peer;
 import com.google.bitcoin.core.PeerGroup;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.VerificationException;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.store.BlockStoreException;
 
 public class MultiBitPeerGroup extends PeerGroup {
+    private static final Logger log = LoggerFactory.getLogger(MultiBitPeerGroup.class);
+
+    // Full blocks are downloaded from this long before the earliest key as
+    // block times are only roughly right.
+    static final long KEY_TIME_MARGIN_SECS = 24 * 60 * 60;
+
+    // Downloading blocks in parallel needs at least this many peers.
+    static final int PARALLEL_DOWNLOAD_PEERS = 2;
+    static final long DEFAULT_PEER_WAIT_MILLIS = 30 * 1000;
+
     MultiBitController controller;
     MultiBitDownloadListener multiBitDownloadListener = null;
-    
+
+    private final NetworkParameters params;
+    private final BlockChain chain;
+
+    private volatile boolean headersFirst;
+    private volatile boolean parallelBlockDownload;
+    private volatile HeaderSource headerSource;
+    private volatile long fastCatchupTimeSecs = -1;
+    private volatile long peerWaitMillis = DEFAULT_PEER_WAIT_MILLIS;
+
+    // The peers currently connected, for downloading blocks from all of them.
+    // Waited on for peers to connect.
+    private final List<BlockSource> connectedPeers = new ArrayList<BlockSource>();
+
     public MultiBitPeerGroup(MultiBitController controller, NetworkParameters params, BlockChain chain) {
         super(params, chain);
         this.controller = controller;
+        this.params = params;
+        this.chain = chain;
+        addEventListener(new AbstractPeerEventListener() {
+            @Override
+            public void onPeerConnected(Peer peer, int peerCount) {
+                peerConnected(new PeerBlockSource(peer));
+            }
+
+            @Override
+            public void onPeerDisconnected(Peer peer, int peerCount) {
+                peerDisconnected(new PeerBlockSource(peer));
+            }
+        });
     }
-    
+
+    /**
+     * Add the headers of blocks from before the earliest key in any wallet
+     * from the header source before downloading anything from peers, see
+     * {@link HeadersFirstSync}. Only a replay of the blockchain sets a header
+     * source, so this has no effect on other downloads, which always ask
+     * peers for headers only up to the fast catchup time.
+     */
+    public void setHeadersFirst(boolean headersFirst) {
+        this.headersFirst = headersFirst;
+    }
+
+    public boolean isHeadersFirst() {
+        return headersFirst;
+    }
+
+    /**
+     * Download the full blocks from all the connected peers at once, see
+     * {@link ParallelBlockDownload}. The hashes of the blocks to download
+     * come from the header source so this needs one to be set.
+     */
+    public void setParallelBlockDownload(boolean parallelBlockDownload) {
+        this.parallelBlockDownload = parallelBlockDownload;
+    }
+
+    public boolean isParallelBlockDownload() {
+        return parallelBlockDownload;
+    }
+
+    /**
+     * Download the headers from the given source before downloading from
+     * peers when syncing headers first, and take the hashes of the blocks to
+     * download in parallel from it. Without a header source the peers
+     * download the headers themselves, using the fast catchup time, and the
+     * blocks come from the download peer.
+     * <p>
+     * The source is used by the next download only. A replay of the
+     * blockchain sets a {@link ReplayHeaderSource}.
+     */
+    public void setHeaderSource(HeaderSource headerSource) {
+        this.headerSource = headerSource;
+    }
+
+    /**
+     * Change how long a download waits for enough peers to connect to
+     * download blocks in parallel before downloading from one peer.
+     */
+    public void setPeerWaitMillis(long peerWaitMillis) {
+        this.peerWaitMillis = peerWaitMillis;
+    }
+
+    void peerConnected(BlockSource peer) {
+        synchronized (connectedPeers) {
+            connectedPeers.add(peer);
+            connectedPeers.notifyAll();
+        }
+    }
+
+    void peerDisconnected(BlockSource peer) {
+        synchronized (connectedPeers) {
+            connectedPeers.remove(peer);
+        }
+    }
+
+    /**
+     * Wait for at least the given number of peers to be connected.
+     * 
+     * @return the connected peers, or null if too few connected in time
+     */
+    private List<BlockSource> waitForPeers(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (connectedPeers) {
+            while (connectedPeers.size() < count) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                connectedPeers.wait(remaining);
+            }
+            return new ArrayList<BlockSource>(connectedPeers);
+        }
+    }
+
     /**
      * Download the blockchain from peers.
      * 
      * <p>This method wait until the download is complete.  "Complete" is defined as downloading
      * from at least one peer all the blocks that are in that peer's inventory.
+     * 
+     * <p>A download with a header source that downloads blocks in parallel
+     * is usually started before the peers have connected, so it first waits
+     * a while for enough of them.
      */
     @Override
     public void downloadBlockChain() {
         if (multiBitDownloadListener == null) {
             multiBitDownloadListener = new MultiBitDownloadListener(controller);
         }
+        HeaderSource source = headerSource;
+        if (headersFirst) {
+            long fullBlocksFromTimeSecs = getFullBlocksFromTimeSecs();
+            if (source != null) {
+                try {
+                    new HeadersFirstSync(params, chain).downloadHeaders(source, fullBlocksFromTimeSecs);
+                } catch (IOException e) {
+                    log.warn("Headers first sync stopped, carrying on with the block download: " + e.getMessage());
+                } catch (BlockStoreException e) {
+                    log.error("Headers first sync failed: " + e.getMessage(), e);
+                } catch (VerificationException e) {
+                    log.warn("Headers first sync was sent bad headers, carrying on with the block download: "
+                            + e.getMessage());
+                }
+            }
+        }
+        // Peers ask for headers rather than full blocks up to this time.
+        updateFastCatchupTime();
+        if (parallelBlockDownload && source != null) {
+            try {
+                List<BlockSource> blockSources = waitForPeers(PARALLEL_DOWNLOAD_PEERS, peerWaitMillis);
+                if (blockSources != null) {
+                    new ParallelBlockDownload(params, chain).download(source, blockSources);
+                } else {
+                    log.debug("Too few peers connected to download blocks in parallel");
+                }
+            } catch (IOException e) {
+                log.warn("Parallel block download stopped, carrying on from one peer: " + e.getMessage());
+            } catch (BlockStoreException e) {
+                log.error("Parallel block download failed: " + e.getMessage(), e);
+            } catch (VerificationException e) {
+                log.warn("Parallel block download was sent a bad block, carrying on from one peer: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        // The source is only used by this download.
+        if (headerSource == source) {
+            headerSource = null;
+        }
+        // Whatever is left, or everything if the blocks were not downloaded
+        // in parallel, comes from the download peer.
         startBlockChainDownload(multiBitDownloadListener);
     }
+
+    /**
+     * Downloads blocks from a bitcoinj peer.
+     */
+    private static class PeerBlockSource implements BlockSource {
+        private final Peer peer;
+
+        PeerBlockSource(Peer peer) {
+            this.peer = peer;
+        }
+
+        public Future<Block> getBlock(Sha256Hash hash) throws IOException {
+            return peer.getBlock(hash);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof PeerBlockSource && ((PeerBlockSource) o).peer == peer;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(peer);
+        }
+    }
+
+    /**
+     * Download only the headers of blocks from before the earliest key in any
+     * wallet, and full blocks after. This is called when the download starts
+     * and should be called again when a wallet is added or keys are imported,
+     * which can only move the time back.
+     */
+    public void updateFastCatchupTime() {
+        long fullBlocksFromTimeSecs = getFullBlocksFromTimeSecs();
+        if (fullBlocksFromTimeSecs != fastCatchupTimeSecs) {
+            fastCatchupTimeSecs = fullBlocksFromTimeSecs;
+            setFastCatchupTimeSecs(fullBlocksFromTimeSecs);
+            log.debug("Downloading full blocks from " + new Date(fullBlocksFromTimeSecs * 1000));
+        }
+    }
+
+    /**
+     * The time full blocks are needed from, a little before the earliest key
+     * in any wallet.
+     */
+    long getFullBlocksFromTimeSecs() {
+        long earliestKeyTime = Long.MAX_VALUE;
+        List<PerWalletModelData> perWalletModelDataList = controller.getModel().getPerWalletModelDataList();
+        if (perWalletModelDataList != null) {
+            for (PerWalletModelData perWalletModelData : perWalletModelDataList) {
+                Wallet wallet = perWalletModelData.getWallet();
+                if (wallet != null) {
+                    earliestKeyTime = Math.min(earliestKeyTime, wallet.getEarliestKeyCreationTime());
+                }
+            }
+        }
+        if (earliestKeyTime == Long.MAX_VALUE) {
+            // No wallets so no blocks are needed in full yet.
+            earliestKeyTime = System.currentTimeMillis() / 1000;
+        }
+        return Math.max(0, earliestKeyTime - KEY_TIME_MARGIN_SECS);
+    }
 }
@@ -17,6 +17,7 @@ package org.multibit.network;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -28,13 +29,18 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.SimpleTimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
+import javax.management.JMException;
 import javax.swing.SwingWorker;
 
 import org.multibit.controller.MultiBitController;
 import org.multibit.model.MultiBitModel;
 import org.multibit.model.PerWalletModelData;
 import org.multibit.model.WalletInfo;
+import org.multibit.store.BlockCheckpoints;
 import org.multibit.store.ReplayableBlockStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,7 +48,6 @@ import org.slf4j.LoggerFactory;
 import com.google.bitcoin.core.AbstractPeerEventListener;
 import com.google.bitcoin.core.Address;
 import com.google.bitcoin.core.AddressFormatException;
-import com.google.bitcoin.core.Block;
 import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.core.MultiBitBlockChain;
 import com.google.bitcoin.core.NetworkParameters;
@@ -54,6 +59,7 @@ import com.google.bitcoin.core.StoredBlock;
 import com.google.bitcoin.core.Transaction;
 import com.google.bitcoin.core.Utils;
 import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.core.WalletJournal;
 import com.google.bitcoin.discovery.DnsDiscovery;
 import com.google.bitcoin.discovery.IrcDiscovery;
 import com.google.bitcoin.store.BlockStore;
@@ -78,6 +84,22 @@ public class MultiBitService {
     private static final int NUMBER_OF_MILLISECOND_IN_A_SECOND = 1000;
     private static final int MAXIMUM_EXPECTED_LENGTH_OF_ALTERNATE_CHAIN = 6;
 
+    // Block store group commit - write new blocks to disk in batches of up to
+    // this many blocks, and at least this often.
+    private static final int DEFAULT_GROUP_COMMIT_BLOCKS = 500;
+    private static final int DEFAULT_GROUP_COMMIT_MILLIS = 1000;
+
+    // Scans the transactions of large blocks for the block chain, shared by
+    // every block chain created by the service.
+    private static final ExecutorService blockScanExecutor = Executors.newFixedThreadPool(Runtime.getRuntime()
+            .availableProcessors(), new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Block scanner");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     public static final String MULTIBIT_PREFIX = "multibit";
     public static final String TEST_NET_PREFIX = "testnet";
     public static final String SEPARATOR = "-";
@@ -101,6 +123,9 @@ public class MultiBitService {
 
     private ReplayableBlockStore blockStore;
 
+    // may be null if there are no checkpoints for the network
+    private BlockCheckpoints checkpoints;
+
     private boolean useTestNet;
 
     private MultiBitController controller;
@@ -167,16 +192,29 @@ public class MultiBitService {
                         + filePrefix + BLOCKCHAIN_SUFFIX;
             }
 
-            // check to see if the user has a blockchain and copy over the
-            // installed one if they do not
-            controller.getFileHandler().copyBlockChainFromInstallationDirectory(this, blockchainFilename);
+            checkpoints = BlockCheckpoints.loadResource(networkParameters, filePrefix + BlockCheckpoints.CHECKPOINTS_SUFFIX);
 
-            log.debug("Reading block store '{}' from disk", blockchainFilename);
+            File blockchainFile = new File(blockchainFilename);
+            if (!blockchainFile.exists() && checkpoints != null && checkpoints.getLatest() != null) {
+                // new user - start from the latest checkpoint rather than
+                // copying over the installed blockchain
+                log.debug("Creating block store '{}' from checkpoints", blockchainFilename);
+                blockStore = new ReplayableBlockStore(networkParameters, blockchainFile, true);
+                blockStore.seedFromCheckpoint(checkpoints.getLatest());
+            } else {
+                // check to see if the user has a blockchain and copy over the
+                // installed one if they do not
+                controller.getFileHandler().copyBlockChainFromInstallationDirectory(this, blockchainFilename);
 
-            blockStore = new ReplayableBlockStore(networkParameters, new File(blockchainFilename), false);
+                log.debug("Reading block store '{}' from disk", blockchainFilename);
+
+                blockStore = new ReplayableBlockStore(networkParameters, blockchainFile, false);
+            }
+            configureBlockStore();
 
             log.debug("Creating blockchain ...");
             blockChain = new MultiBitBlockChain(networkParameters, blockStore);
+            configureBlockChain();
             log.debug("Created blockchain '" + blockChain + "'");
 
             log.debug("Creating peergroup ...");
@@ -195,7 +233,11 @@ public class MultiBitService {
 
     private MultiBitPeerGroup createNewPeerGroup() {
         MultiBitPeerGroup peerGroup = new MultiBitPeerGroup(controller, networkParameters, blockChain);
-        peerGroup.setFastCatchupTimeSecs(0); // genesis block
+        peerGroup.updateFastCatchupTime();
+        String headersFirstString = controller.getModel().getUserPreference(MultiBitModel.HEADERS_FIRST_SYNC);
+        peerGroup.setHeadersFirst(Boolean.TRUE.toString().equalsIgnoreCase(headersFirstString));
+        String parallelString = controller.getModel().getUserPreference(MultiBitModel.PARALLEL_BLOCK_DOWNLOAD);
+        peerGroup.setParallelBlockDownload(Boolean.TRUE.toString().equalsIgnoreCase(parallelString));
         peerGroup.setUserAgent("MultiBit", controller.getLocaliser().getVersionNumber());
 
         String singleNodeConnection = controller.getModel().getUserPreference(MultiBitModel.SINGLE_NODE_CONNECTION);
@@ -219,6 +261,44 @@ public class MultiBitService {
         return peerGroup;
     }
 
+    /**
+     * apply the block store options in the user preferences
+     */
+    private void configureBlockStore() throws BlockStoreException {
+        String memoryMappedString = controller.getModel().getUserPreference(MultiBitModel.BLOCK_STORE_MEMORY_MAPPED);
+        blockStore.setMemoryMapped(Boolean.TRUE.toString().equalsIgnoreCase(memoryMappedString));
+
+        int groupCommitBlocks = getIntegerUserPreference(MultiBitModel.BLOCK_STORE_GROUP_COMMIT_BLOCKS,
+                DEFAULT_GROUP_COMMIT_BLOCKS);
+        int groupCommitMillis = getIntegerUserPreference(MultiBitModel.BLOCK_STORE_GROUP_COMMIT_MILLIS,
+                DEFAULT_GROUP_COMMIT_MILLIS);
+        blockStore.setGroupCommit(groupCommitBlocks, Math.max(1, groupCommitMillis));
+    }
+
+    private void configureBlockChain() {
+        blockChain.setScanExecutor(blockScanExecutor);
+
+        // Show the block processing metrics over JMX. They replace those of
+        // any block chain created before.
+        try {
+            blockChain.getMetrics().register(ManagementFactory.getPlatformMBeanServer());
+        } catch (JMException e) {
+            log.warn("Could not register the block chain metrics: " + e.getMessage());
+        }
+    }
+
+    private int getIntegerUserPreference(String key, int defaultValue) {
+        String valueString = controller.getModel().getUserPreference(key);
+        if (valueString != null) {
+            try {
+                return Integer.parseInt(valueString.trim());
+            } catch (NumberFormatException nfe) {
+                log.error("Ignoring user preference '" + key + "' = '" + valueString + "'");
+            }
+        }
+        return defaultValue;
+    }
+
     public String getFilePrefix() {
         return useTestNet ? MULTIBIT_PREFIX + SEPARATOR + TEST_NET_PREFIX : MULTIBIT_PREFIX;
     }
@@ -260,6 +340,9 @@ public class MultiBitService {
             }
 
             walletFile = new File(walletFilename);
+            // a save cut short can leave the wallet file missing, in which
+            // case it must be recovered rather than a new wallet created
+            WalletJournal.recoverSnapshot(walletFile);
 
             if (walletFile.exists()) {
                 // wallet file exists with default name
@@ -315,6 +398,10 @@ public class MultiBitService {
             // add wallet to blockchain
             if (blockChain != null) {
                 blockChain.addWallet(wallet);
+                if (peerGroup != null) {
+                    // the wallet may have keys older than any loaded so far
+                    peerGroup.updateFastCatchupTime();
+                }
             } else {
                 log.error("Could not add wallet '" + walletFilename + "' to the blockChain as the blockChain is missing.\n"
                         + "This is bad. MultiBit is currently looking for a blockChain at '" + blockchainFilename + "'");
@@ -336,6 +423,41 @@ public class MultiBitService {
         return perWalletModelDataToReturn;
     }
 
+    /**
+     * find the block in the block store to replay from
+     * 
+     * @param dateToReplayFrom
+     *            the date on the blockchain to replay from
+     * @return the block or null if the block store does not go back as far
+     *         as the date
+     */
+    private StoredBlock findBlockToReplayFrom(Date dateToReplayFrom) throws BlockStoreException {
+        StoredBlock chainHead = blockStore.getChainHead();
+
+        assert chainHead != null;
+
+        // find the last block before the replay date using the block store
+        // height index rather than walking back block by block
+        StoredBlock storedBlock = blockStore.getBlockBefore(dateToReplayFrom.getTime() / NUMBER_OF_MILLISECOND_IN_A_SECOND);
+        if (storedBlock == null) {
+            // the block store starts from a checkpoint after the date
+            return null;
+        }
+
+        // in case the chain head was on an alternate fork go back more
+        // blocks to ensure back on the main chain
+        int maximumHeight = chainHead.getHeight() - MAXIMUM_EXPECTED_LENGTH_OF_ALTERNATE_CHAIN;
+        if (storedBlock.getHeight() > maximumHeight) {
+            StoredBlock earlierBlock = blockStore.getBlockAtHeight(Math.max(0, maximumHeight));
+            if (earlierBlock != null) {
+                storedBlock = earlierBlock;
+            }
+        }
+        log.debug("Replaying from block at height " + storedBlock.getHeight() + ", "
+                + (chainHead.getHeight() - storedBlock.getHeight()) + " blocks before the chain head");
+        return storedBlock;
+    }
+
     /**
      * replay blockchain
      * 
@@ -348,88 +470,58 @@ public class MultiBitService {
         // time to go
         log.debug("Starting replay of blockchain from date = '" + dateToReplayFrom + "'");
 
-        if (dateToReplayFrom == null || genesisBlockCreationDate.after(dateToReplayFrom)) {
-            // create empty new block store
-            blockStore = new ReplayableBlockStore(networkParameters, new File(blockchainFilename), true);
+        StoredBlock storedBlock = null;
+        if (dateToReplayFrom != null && !genesisBlockCreationDate.after(dateToReplayFrom)) {
+            storedBlock = findBlockToReplayFrom(dateToReplayFrom);
+        }
 
-            log.debug("Creating new blockStore.2 - need to redownload from Genesis block");
-            blockChain = new MultiBitBlockChain(networkParameters, (BlockStore) blockStore);
-            log.debug("Created new blockStore.2 '" + blockChain + "'");
-        } else {
-            StoredBlock storedBlock = blockStore.getChainHead();
+        StoredBlock checkpoint = null;
+        if (storedBlock == null && dateToReplayFrom != null && checkpoints != null) {
+            checkpoint = checkpoints.getCheckpointBefore(dateToReplayFrom.getTime() / NUMBER_OF_MILLISECOND_IN_A_SECOND);
+        }
 
-            assert storedBlock != null;
+        // remember the headers of the blocks about to be downloaded again so
+        // that they can be fetched from all the peers at once
+        int replayStartHeight = 0;
+        if (storedBlock != null) {
+            replayStartHeight = storedBlock.getHeight();
+        } else if (checkpoint != null) {
+            replayStartHeight = checkpoint.getHeight();
+        }
+        ReplayHeaderSource replayHeaderSource = ReplayHeaderSource.fromStore(blockStore, replayStartHeight);
 
-            boolean haveGoneBackInTimeEnough = false;
-            int numberOfBlocksGoneBackward = 0;
+        // stop the peers before the block store is truncated or replaced so
+        // that they are not adding blocks to it meanwhile
+        String message = controller.getLocaliser().getString("multiBitService.stoppingBitcoinNetworkConnection");
+        controller.updateStatusLabel(message, false);
+        peerGroup.stop();
 
-            while (!haveGoneBackInTimeEnough) {
-                if (storedBlock == null) {
-                    // null result of previous get previous - will have to stop
-                    // navigating backwards
-                    break;
-                }
-                Block header = storedBlock.getHeader();
-                if (header == null) {
-                    log.debug("No header for stored block " + storedBlock.getHeight());
-                    break;
-                }
+        // reset UI to zero peers
+        controller.onPeerDisconnected(null, 0);
 
-                long headerTimeInSeconds = header.getTimeSeconds();
-                if (headerTimeInSeconds < (dateToReplayFrom.getTime() / NUMBER_OF_MILLISECOND_IN_A_SECOND)) {
-                    haveGoneBackInTimeEnough = true;
-                } else {
-                    try {
-                        StoredBlock previousBlock = storedBlock.getPrev(blockStore);
-                        if (previousBlock == null) {
-                            log.debug("Could not navigate backwards form storedBlock " + storedBlock.getHeight());
-                            break;
-                        } else {
-                            storedBlock = previousBlock;
-                        }
-                        numberOfBlocksGoneBackward++;
-                    } catch (BlockStoreException e) {
-                        e.printStackTrace();
-                        // we have to stop navigating backwards
-                        break;
-                    }
-                }
-            }
+        if (storedBlock == null) {
+            // create empty new block store, starting from the last checkpoint
+            // before the replay date if there is one
+            blockStore.close();
+            blockStore = new ReplayableBlockStore(networkParameters, new File(blockchainFilename), true);
+            configureBlockStore();
 
-            // in case the chain head was on an alternate fork go back more
-            // blocks to ensure back on the main chain
-            while (numberOfBlocksGoneBackward < MAXIMUM_EXPECTED_LENGTH_OF_ALTERNATE_CHAIN) {
-                try {
-                    StoredBlock previousBlock = storedBlock.getPrev(blockStore);
-                    if (previousBlock == null) {
-                        log.debug("Could not navigate backwards form storedBlock " + storedBlock.getHeight());
-                        break;
-                    } else {
-                        storedBlock = previousBlock;
-                    }
-                    numberOfBlocksGoneBackward++;
-                } catch (BlockStoreException e) {
-                    e.printStackTrace();
-                    // we have to stop - fail
-                    break;
-                }
+            if (checkpoint == null) {
+                log.debug("Creating new blockStore.2 - need to redownload from Genesis block");
+            } else {
+                log.debug("Creating new blockStore.2 - redownloading from checkpoint at height " + checkpoint.getHeight());
+                blockStore.seedFromCheckpoint(checkpoint);
             }
-
-            assert storedBlock != null;
-
+            blockChain = new MultiBitBlockChain(networkParameters, (BlockStore) blockStore);
+            configureBlockChain();
+            log.debug("Created new blockStore.2 '" + blockChain + "'");
+        } else {
             // set the block chain head to the block just before the
             // earliest transaction in the wallet
             blockChain.setChainHeadClearCachesAndTruncateBlockStore(storedBlock);
         }
 
         // restart peerGroup and download
-        String message = controller.getLocaliser().getString("multiBitService.stoppingBitcoinNetworkConnection");
-        controller.updateStatusLabel(message, false);
-        peerGroup.stop();
-
-        // reset UI to zero peers
-        controller.onPeerDisconnected(null, 0);
-
         if (dateToReplayFrom != null) {
             message = controller.getLocaliser().getString(
                     "resetTransactionSubmitAction.replayingBlockchain",
@@ -444,6 +536,7 @@ public class MultiBitService {
         controller.updateStatusLabel(message, false);
 
         peerGroup = createNewPeerGroup();
+        peerGroup.setHeaderSource(replayHeaderSource);
         peerGroup.start();
  
         downloadBlockChain();
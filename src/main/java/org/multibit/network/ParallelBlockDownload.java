@@ -0,0 +1,376 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.BlockChain;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.ScriptException;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.VerificationException;
+import com.google.bitcoin.store.BlockStoreException;
+
+/**
+ * Downloads full blocks from several peers at once and adds them to the
+ * block chain in order.
+ * 
+ * <p>
+ * The hashes of the blocks after the chain head are found from a
+ * {@link HeaderSource}, a batch at a time. The blocks of a batch are spread
+ * over the {@link BlockSource}s, each of which has at most
+ * {@link #MAXIMUM_IN_FLIGHT_PER_SOURCE} blocks outstanding by default, and the lowest
+ * blocks still wanted are always asked for first. Blocks arriving out of order
+ * wait in a reassembly buffer until the blocks before them have been added to
+ * the chain. No block more than {@link #REASSEMBLY_WINDOW} blocks ahead of the
+ * next one to add is asked for, which bounds the buffer.
+ * 
+ * <p>
+ * A block that has not arrived after the stall timeout is asked for from
+ * another source. Requests to peers cannot be called off, so the stalled
+ * request still counts against its source until it is answered, and the
+ * block is used from whichever source sends it first. A source that fails,
+ * sends the wrong block or stalls {@link #MAXIMUM_STALLS} times is dropped,
+ * and the download gives up if every source has been dropped.
+ */
+public class ParallelBlockDownload {
+    private static final Logger log = LoggerFactory.getLogger(ParallelBlockDownload.class);
+
+    public static final int MAXIMUM_IN_FLIGHT_PER_SOURCE = 16;
+    public static final int REASSEMBLY_WINDOW = 500;
+    public static final int MAXIMUM_STALLS = 3;
+    public static final long DEFAULT_STALL_TIMEOUT_MILLIS = 30 * 1000;
+
+    // How long to wait for the next block before looking for stalls again.
+    private static final long POLL_MILLIS = 100;
+
+    private final BlockChain chain;
+    private final HeadersFirstSync locatorBuilder;
+    private long stallTimeoutMillis = DEFAULT_STALL_TIMEOUT_MILLIS;
+    private int maximumInFlightPerSource = MAXIMUM_IN_FLIGHT_PER_SOURCE;
+
+    // A block that has been asked for.
+    private static class Request {
+        final int index;
+        final Sha256Hash hash;
+        final SourceState source;
+        final Future<Block> future;
+        final long startMillis;
+
+        Request(int index, Sha256Hash hash, SourceState source, Future<Block> future, long startMillis) {
+            this.index = index;
+            this.hash = hash;
+            this.source = source;
+            this.future = future;
+            this.startMillis = startMillis;
+        }
+    }
+
+    private static class SourceState {
+        final BlockSource source;
+        // Requests outstanding, including stalled ones, which are also kept
+        // in stalled until they are answered.
+        int inFlight;
+        final List<Request> stalled = new ArrayList<Request>();
+        int stalls;
+        boolean dropped;
+
+        SourceState(BlockSource source) {
+            this.source = source;
+        }
+    }
+
+    private static final Comparator<SourceState> FEWEST_STALLS = new Comparator<SourceState>() {
+        public int compare(SourceState source1, SourceState source2) {
+            return source1.stalls - source2.stalls;
+        }
+    };
+
+    public ParallelBlockDownload(NetworkParameters params, BlockChain chain) {
+        this.chain = chain;
+        this.locatorBuilder = new HeadersFirstSync(params, chain);
+    }
+
+    /**
+     * Change how long a block can be outstanding before it is asked for from
+     * another source.
+     */
+    public void setStallTimeoutMillis(long stallTimeoutMillis) {
+        this.stallTimeoutMillis = stallTimeoutMillis;
+    }
+
+    /**
+     * Change the most blocks asked for from one source at a time.
+     */
+    public void setMaximumInFlightPerSource(int maximumInFlightPerSource) {
+        this.maximumInFlightPerSource = maximumInFlightPerSource;
+    }
+
+    /**
+     * Download blocks until the header source has no more.
+     * 
+     * @return the number of blocks added to the chain, not counting ones
+     *         the block store already had
+     */
+    public int download(HeaderSource headerSource, List<? extends BlockSource> blockSources) throws IOException,
+            BlockStoreException, VerificationException, InterruptedException {
+        List<SourceState> sources = new ArrayList<SourceState>();
+        for (BlockSource blockSource : blockSources) {
+            sources.add(new SourceState(blockSource));
+        }
+        int added = 0;
+        while (true) {
+            StoredBlock chainHead = chain.getChainHead();
+            List<Block> headers = headerSource.getHeaders(locatorBuilder.buildLocator(chainHead),
+                    HeadersFirstSync.MAXIMUM_HEADERS);
+            if (headers.isEmpty()) {
+                break;
+            }
+            List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(headers.size());
+            for (Block header : headers) {
+                hashes.add(header.getHash());
+            }
+            added += downloadBatch(hashes, sources);
+            log.debug("Added blocks up to height " + chain.getBestChainHeight());
+
+            // Stop on a batch that did not move the chain on, such as a
+            // side chain with less work or blocks we already have, rather
+            // than ask for it again.
+            if (chain.getChainHead().equals(chainHead)) {
+                break;
+            }
+        }
+        return added;
+    }
+
+    private int downloadBatch(List<Sha256Hash> hashes, List<SourceState> sources) throws IOException,
+            BlockStoreException, VerificationException, InterruptedException {
+        TreeSet<Integer> wanted = new TreeSet<Integer>();
+        for (int i = 0; i < hashes.size(); i++) {
+            wanted.add(i);
+        }
+        Map<Integer, Request> inFlight = new HashMap<Integer, Request>();
+        TreeMap<Integer, Block> arrived = new TreeMap<Integer, Block>();
+        int next = 0;
+        int added = 0;
+
+        while (next < hashes.size()) {
+            assignRequests(hashes, sources, wanted, inFlight, next);
+
+            // Wait a little for the next block in order, it is the one
+            // holding everything up.
+            Request nextRequest = inFlight.get(next);
+            if (nextRequest != null) {
+                try {
+                    nextRequest.future.get(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // Look for stalls below.
+                } catch (ExecutionException e) {
+                    // Dealt with below.
+                }
+            } else if (!arrived.containsKey(next)) {
+                // Nothing is in flight for the next block, so every source
+                // is busy or has been dropped.
+                Thread.sleep(POLL_MILLIS);
+            }
+
+            collectResults(hashes, sources, wanted, inFlight, arrived, next);
+
+            while (arrived.containsKey(next)) {
+                Block block = arrived.remove(next);
+                next++;
+                if (chain.getBlockStore().get(block.getHash()) != null) {
+                    continue;
+                }
+                try {
+                    if (!chain.add(block)) {
+                        throw new VerificationException("Downloaded block does not connect: " + block.getHashAsString());
+                    }
+                } catch (ScriptException e) {
+                    throw new VerificationException(e.getMessage());
+                }
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Ask sources with room for the lowest blocks still wanted.
+     */
+    private void assignRequests(List<Sha256Hash> hashes, List<SourceState> sources, TreeSet<Integer> wanted,
+            Map<Integer, Request> inFlight, int next) throws IOException {
+        if (wanted.isEmpty()) {
+            return;
+        }
+        // Sources that have stalled least go first, so a block taken away
+        // from a stalled source goes to another one if it has room.
+        List<SourceState> active = new ArrayList<SourceState>();
+        for (SourceState source : sources) {
+            if (!source.dropped) {
+                active.add(source);
+            }
+        }
+        if (active.isEmpty()) {
+            throw new IOException("No block sources left to download from");
+        }
+        Collections.sort(active, FEWEST_STALLS);
+        for (SourceState source : active) {
+            while (source.inFlight < maximumInFlightPerSource && !wanted.isEmpty()
+                    && wanted.first() < next + REASSEMBLY_WINDOW) {
+                int index = wanted.pollFirst();
+                try {
+                    Sha256Hash hash = hashes.get(index);
+                    Future<Block> future = source.source.getBlock(hash);
+                    inFlight.put(index, new Request(index, hash, source, future, System.currentTimeMillis()));
+                    source.inFlight++;
+                } catch (IOException e) {
+                    log.warn("Dropping block source after it failed: " + e.getMessage());
+                    wanted.add(index);
+                    source.dropped = true;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Move arrived blocks into the reassembly buffer and put blocks that
+     * failed or stalled back on the wanted list.
+     */
+    private void collectResults(List<Sha256Hash> hashes, List<SourceState> sources, TreeSet<Integer> wanted,
+            Map<Integer, Request> inFlight, TreeMap<Integer, Block> arrived, int next) throws InterruptedException {
+        collectStalled(hashes, sources, wanted, arrived, next);
+
+        long now = System.currentTimeMillis();
+        Iterator<Request> iterator = inFlight.values().iterator();
+        while (iterator.hasNext()) {
+            Request request = iterator.next();
+            SourceState source = request.source;
+            if (request.future.isDone()) {
+                iterator.remove();
+                source.inFlight--;
+                try {
+                    Block block = request.future.get();
+                    if (block != null && block.getHash().equals(request.hash)) {
+                        // The stalled request for it may have got there first.
+                        if (isStillNeeded(request.index, arrived, next)) {
+                            arrived.put(request.index, block);
+                        }
+                        continue;
+                    }
+                    log.warn("Dropping block source after it sent the wrong block");
+                } catch (ExecutionException e) {
+                    log.warn("Dropping block source after it failed: " + e.getCause());
+                } catch (CancellationException e) {
+                    log.warn("Dropping block source after it cancelled a request");
+                }
+                source.dropped = true;
+                if (isStillNeeded(request.index, arrived, next)) {
+                    wanted.add(request.index);
+                }
+            } else if (now - request.startMillis > stallTimeoutMillis) {
+                // Left outstanding, and in the source's count, rather than
+                // cancelled, as a peer carries on with it regardless.
+                iterator.remove();
+                source.stalled.add(request);
+                if (isStillNeeded(request.index, arrived, next)) {
+                    wanted.add(request.index);
+                }
+                source.stalls++;
+                log.debug("Block " + hashes.get(request.index) + " stalled, asking another source");
+                if (source.stalls >= MAXIMUM_STALLS) {
+                    log.warn("Dropping block source after it stalled " + source.stalls + " times");
+                    source.dropped = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether a block has still to arrive, rather than having come from
+     * another source after it was asked for again.
+     */
+    private static boolean isStillNeeded(int index, TreeMap<Integer, Block> arrived, int next) {
+        return index >= next && !arrived.containsKey(index);
+    }
+
+    /**
+     * Free the room taken by stalled requests that have been answered, and
+     * use the block if it is from this batch and still needed. A stalled
+     * request that is still not answered after another stall timeout is
+     * given up on, which counts as another stall, so a source that never
+     * answers is dropped rather than holding its room for good.
+     */
+    private void collectStalled(List<Sha256Hash> hashes, List<SourceState> sources, TreeSet<Integer> wanted,
+            TreeMap<Integer, Block> arrived, int next) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        for (SourceState source : sources) {
+            Iterator<Request> iterator = source.stalled.iterator();
+            while (iterator.hasNext()) {
+                Request request = iterator.next();
+                if (!request.future.isDone()) {
+                    if (now - request.startMillis > 2 * stallTimeoutMillis) {
+                        iterator.remove();
+                        source.inFlight--;
+                        source.stalls++;
+                        if (source.stalls >= MAXIMUM_STALLS && !source.dropped) {
+                            log.warn("Dropping block source after it stalled " + source.stalls + " times");
+                            source.dropped = true;
+                        }
+                    }
+                    continue;
+                }
+                iterator.remove();
+                source.inFlight--;
+                try {
+                    Block block = request.future.get();
+                    if (block != null && block.getHash().equals(request.hash) && request.index < hashes.size()
+                            && request.hash.equals(hashes.get(request.index))
+                            && isStillNeeded(request.index, arrived, next)) {
+                        // Any request for it from another source is ignored
+                        // when it is answered.
+                        arrived.put(request.index, block);
+                        wanted.remove(request.index);
+                    }
+                } catch (ExecutionException e) {
+                    // It has been asked for again already.
+                } catch (CancellationException e) {
+                    // It has been asked for again already.
+                }
+            }
+        }
+    }
+}
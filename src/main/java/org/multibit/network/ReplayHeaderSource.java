@@ -0,0 +1,97 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.multibit.store.ReplayableBlockStore;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.store.BlockStoreException;
+
+/**
+ * Serves the headers of blocks that a replay of the blockchain is about to
+ * download again. The headers are read from the block store before the
+ * replay truncates it, so the replay can use {@link HeadersFirstSync} and
+ * {@link ParallelBlockDownload}.
+ * <p>
+ *
+ * bitcoinj peers cannot be asked for headers, so this is the only header
+ * source outside the tests. At most {@link #MAXIMUM_HEADERS} headers are
+ * kept; any blocks after them come from the download peer as before.
+ */
+public class ReplayHeaderSource implements HeaderSource {
+    static final int MAXIMUM_HEADERS = 50000;
+
+    private final List<Block> headers;
+
+    // The position in headers of the header after each block.
+    private final Map<Sha256Hash, Integer> nextPositions;
+
+    ReplayHeaderSource(Sha256Hash startHash, List<Block> headers) {
+        this.headers = headers;
+        nextPositions = new HashMap<Sha256Hash, Integer>(headers.size() * 2);
+        nextPositions.put(startHash, 0);
+        for (int i = 0; i < headers.size(); i++) {
+            nextPositions.put(headers.get(i).getHash(), i + 1);
+        }
+    }
+
+    /**
+     * Read the headers of the best chain in the store after the block at the
+     * given height.
+     * 
+     * @return the header source, or null if the store has no blocks after the
+     *         given height
+     */
+    public static ReplayHeaderSource fromStore(ReplayableBlockStore blockStore, int startHeight)
+            throws BlockStoreException {
+        StoredBlock start = blockStore.getBlockAtHeight(startHeight);
+        if (start == null) {
+            return null;
+        }
+        int endHeight = Math.min(blockStore.getChainHead().getHeight(), startHeight + MAXIMUM_HEADERS);
+        List<Block> headers = new ArrayList<Block>(Math.max(0, endHeight - startHeight));
+        for (int height = startHeight + 1; height <= endHeight; height++) {
+            StoredBlock block = blockStore.getBlockAtHeight(height);
+            if (block == null) {
+                break;
+            }
+            headers.add(block.getHeader());
+        }
+        if (headers.isEmpty()) {
+            return null;
+        }
+        return new ReplayHeaderSource(start.getHeader().getHash(), headers);
+    }
+
+    public List<Block> getHeaders(List<Sha256Hash> locator, int maximumHeaders) {
+        for (Sha256Hash hash : locator) {
+            Integer from = nextPositions.get(hash);
+            if (from != null) {
+                int to = Math.min(headers.size(), from + maximumHeaders);
+                return new ArrayList<Block>(headers.subList(from, to));
+            }
+        }
+        return Collections.emptyList();
+    }
+}
@@ -0,0 +1,239 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.store;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.ProtocolException;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.store.BlockStoreException;
+
+/**
+ * A table of blocks at difficulty transition points on the main chain that a
+ * new {@link ReplayableBlockStore} can be seeded from, see
+ * {@link ReplayableBlockStore#seedFromCheckpoint(StoredBlock)}, rather than
+ * downloading every header from the genesis block.
+ * <p>
+ *
+ * Each checkpoint is the height, chain work and header of the block, in the
+ * same 100 byte layout as a block store record but without its checksum. A
+ * block at a difficulty transition point is all that is needed to check the
+ * difficulty of the blocks that follow it.
+ * <p>
+ *
+ * The table is generated from an existing block store by running this class:
+ *
+ * <pre>
+ * java org.multibit.store.BlockCheckpoints multibit.blockchain multibit.checkpoints [testnet]
+ * </pre>
+ */
+public class BlockCheckpoints {
+    private static final Logger log = LoggerFactory.getLogger(BlockCheckpoints.class);
+
+    public static final String CHECKPOINTS_SUFFIX = ".checkpoints";
+
+    private static final byte FILE_FORMAT_VERSION = 1;
+
+    private final List<StoredBlock> checkpoints;
+
+    BlockCheckpoints(List<StoredBlock> checkpoints) {
+        this.checkpoints = Collections.unmodifiableList(checkpoints);
+    }
+
+    /**
+     * Read a checkpoint table from the class path.
+     *
+     * @param resourceName
+     *            The name of the table, for instance "multibit.checkpoints".
+     * @return the checkpoints or null if there is no such table or it could
+     *         not be read
+     */
+    public static BlockCheckpoints loadResource(NetworkParameters params, String resourceName) {
+        InputStream inputStream = BlockCheckpoints.class.getResourceAsStream("/" + resourceName);
+        if (inputStream == null) {
+            log.debug("No block checkpoints called '{}'", resourceName);
+            return null;
+        }
+        try {
+            try {
+                BlockCheckpoints checkpoints = read(params, inputStream);
+                log.debug("Read {} block checkpoints from '{}'", checkpoints.size(), resourceName);
+                return checkpoints;
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            log.error("Could not read block checkpoints '" + resourceName + "'", e);
+            return null;
+        } catch (ProtocolException e) {
+            log.error("Could not read block checkpoints '" + resourceName + "'", e);
+            return null;
+        }
+    }
+
+    /**
+     * Read a checkpoint table written by {@link #write(OutputStream)}.
+     */
+    public static BlockCheckpoints read(NetworkParameters params, InputStream inputStream) throws IOException,
+            ProtocolException {
+        DataInputStream dataInputStream = new DataInputStream(inputStream);
+        int version = dataInputStream.readByte();
+        if (version != FILE_FORMAT_VERSION) {
+            throw new IOException("Bad block checkpoints version number: " + version);
+        }
+        int count = dataInputStream.readInt();
+        if (count < 0) {
+            throw new IOException("Bad number of block checkpoints: " + count);
+        }
+        List<StoredBlock> checkpoints = new ArrayList<StoredBlock>(count);
+        byte[] recordBytes = new byte[ReplayableBlockStore.Record.DATA_SIZE];
+        ReplayableBlockStore.Record record = new ReplayableBlockStore.Record();
+        int previousHeight = -1;
+        for (int i = 0; i < count; i++) {
+            dataInputStream.readFully(recordBytes);
+            record.read(ByteBuffer.wrap(recordBytes), 0);
+            if (record.getHeight() <= previousHeight || record.getHeight() % params.interval != 0) {
+                throw new IOException("Block checkpoint at height " + record.getHeight()
+                        + " is out of order or not at a difficulty transition point");
+            }
+            previousHeight = record.getHeight();
+            checkpoints.add(record.toStoredBlock(params));
+        }
+        return new BlockCheckpoints(checkpoints);
+    }
+
+    /**
+     * Write the checkpoints in the format read by
+     * {@link #read(NetworkParameters, InputStream)}.
+     */
+    public void write(OutputStream outputStream) throws IOException {
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        dataOutputStream.writeByte(FILE_FORMAT_VERSION);
+        dataOutputStream.writeInt(checkpoints.size());
+        ByteBuffer buffer = ByteBuffer.allocate(ReplayableBlockStore.Record.DATA_SIZE);
+        for (StoredBlock checkpoint : checkpoints) {
+            buffer.clear();
+            ReplayableBlockStore.Record.writeData(buffer, checkpoint);
+            dataOutputStream.write(buffer.array());
+        }
+        dataOutputStream.flush();
+    }
+
+    public int size() {
+        return checkpoints.size();
+    }
+
+    public List<StoredBlock> getCheckpoints() {
+        return checkpoints;
+    }
+
+    /**
+     * @return the checkpoint with the greatest height or null if there are no
+     *         checkpoints
+     */
+    public StoredBlock getLatest() {
+        return checkpoints.isEmpty() ? null : checkpoints.get(checkpoints.size() - 1);
+    }
+
+    /**
+     * Get the last checkpoint with a timestamp before the given time. A block
+     * store seeded from it holds every block from the time onwards.
+     *
+     * @param timeSeconds
+     *            The time in seconds since the epoch.
+     * @return the checkpoint or null if no checkpoint is before the time
+     */
+    public StoredBlock getCheckpointBefore(long timeSeconds) {
+        StoredBlock before = null;
+        for (StoredBlock checkpoint : checkpoints) {
+            if (checkpoint.getHeader().getTimeSeconds() >= timeSeconds) {
+                break;
+            }
+            before = checkpoint;
+        }
+        return before;
+    }
+
+    /**
+     * Create a checkpoint table holding the block at every difficulty
+     * transition point, other than the genesis block, on the main chain of a
+     * block store.
+     */
+    public static BlockCheckpoints create(NetworkParameters params, ReplayableBlockStore blockStore)
+            throws BlockStoreException {
+        List<StoredBlock> checkpoints = new ArrayList<StoredBlock>();
+        int chainHeight = blockStore.getChainHead().getHeight();
+        for (int height = params.interval; height <= chainHeight; height += params.interval) {
+            StoredBlock checkpoint = blockStore.getBlockAtHeight(height);
+            if (checkpoint != null) {
+                checkpoints.add(checkpoint);
+            }
+        }
+        return new BlockCheckpoints(checkpoints);
+    }
+
+    /**
+     * Generate a checkpoint table from a block store.
+     *
+     * @param args
+     *            The block store file, the checkpoint file to write and
+     *            optionally "testnet" if the block store is for the test
+     *            network.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: BlockCheckpoints <block store file> <checkpoint file> [testnet]");
+            System.exit(1);
+        }
+        File blockStoreFile = new File(args[0]);
+        if (!blockStoreFile.exists()) {
+            System.err.println("No block store '" + blockStoreFile + "'");
+            System.exit(1);
+        }
+        NetworkParameters params = args.length > 2 && "testnet".equalsIgnoreCase(args[2]) ? NetworkParameters.testNet()
+                : NetworkParameters.prodNet();
+
+        ReplayableBlockStore blockStore = new ReplayableBlockStore(params, blockStoreFile, false);
+        try {
+            BlockCheckpoints checkpoints = create(params, blockStore);
+            OutputStream outputStream = new FileOutputStream(args[1]);
+            try {
+                checkpoints.write(outputStream);
+            } finally {
+                outputStream.close();
+            }
+            StoredBlock latest = checkpoints.getLatest();
+            System.out.println("Wrote " + checkpoints.size() + " checkpoints to '" + args[1] + "'"
+                    + (latest == null ? "" : ", the latest at height " + latest.getHeight()));
+        } finally {
+            blockStore.close();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.google.bitcoin.core.Sha256Hash;
+
+/**
+ * A Bloom filter of the hashes of every block in a {@link ReplayableBlockStore}.
+ * <p>
+ *
+ * The store asks the filter before the {@link BlockHashIndex} so most lookups
+ * of blocks that were never stored, such as the parents of orphan blocks,
+ * are answered without reading the index. A hash that the filter says might
+ * be stored is looked up in the index as before.
+ * <p>
+ *
+ * Block hashes are already evenly distributed so the bit positions are taken
+ * straight from the hash bytes. The filter is sized for twice the number of
+ * blocks when it is reset, at about 10 bits per block for a false positive
+ * rate of around 1%, and the store rebuilds it at twice the size once it
+ * fills up. Blocks removed from the store are not removed from the filter, they
+ * only make false positives a little more likely until the next rebuild.
+ * <p>
+ *
+ * Like {@link BlockHeightIndex} the filter is held in memory, saved to a file
+ * next to the block store when the store is closed and only trusted on the
+ * next load if it was saved cleanly.
+ */
+class BlockHashFilter {
+    public static final String FILTER_SUFFIX = ".filter";
+
+    private static final byte FILE_FORMAT_VERSION = 1;
+
+    // version (1), clean flag (1), padding (2), number of longs (4), block
+    // store record count (4), padding (4)
+    private static final int HEADER_SIZE = 16;
+    private static final int CLEAN_FLAG_OFFSET = 1;
+
+    private static final int BITS_PER_HASH = 10;
+    private static final int HASH_FUNCTIONS = 7;
+
+    static final int MINIMUM_CAPACITY = 1 << 16;
+
+    // Number of longs read or written at once.
+    private static final int BATCH_LONGS = 4096;
+
+    private final File file;
+
+    private long[] bits;
+    private long bitCount;
+
+    BlockHashFilter(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Read the filter saved by {@link #save(int)}.
+     *
+     * @return true if the saved filter was written cleanly for a block store
+     *         with the given number of records
+     */
+    boolean load(int storeRecordCount) throws IOException {
+        bits = null;
+        if (!file.exists()) {
+            return false;
+        }
+        RandomAccessFile filterFile = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = filterFile.getChannel();
+            if (channel.size() < HEADER_SIZE) {
+                return false;
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (channel.read(header, 0) < HEADER_SIZE) {
+                return false;
+            }
+            int longs = header.getInt(4);
+            if (header.get(0) != FILE_FORMAT_VERSION || header.get(CLEAN_FLAG_OFFSET) != 1
+                    || header.getInt(8) != storeRecordCount || longs <= 0
+                    || channel.size() != HEADER_SIZE + 8L * longs) {
+                return false;
+            }
+
+            // The filter in memory is about to diverge from the file.
+            ByteBuffer flag = ByteBuffer.allocate(1);
+            channel.write(flag, CLEAN_FLAG_OFFSET);
+            channel.force(false);
+
+            long[] loaded = new long[longs];
+            ByteBuffer batch = ByteBuffer.allocate(8 * BATCH_LONGS);
+            long position = HEADER_SIZE;
+            for (int first = 0; first < longs; first += BATCH_LONGS) {
+                int count = Math.min(BATCH_LONGS, longs - first);
+                batch.clear();
+                batch.limit(8 * count);
+                while (batch.hasRemaining()) {
+                    int read = channel.read(batch, position);
+                    if (read < 0) {
+                        return false;
+                    }
+                    position += read;
+                }
+                batch.flip();
+                batch.asLongBuffer().get(loaded, first, count);
+            }
+            setBits(loaded);
+            return true;
+        } finally {
+            filterFile.close();
+        }
+    }
+
+    /**
+     * Write the filter to disk and mark it clean.
+     */
+    void save(int storeRecordCount) throws IOException {
+        RandomAccessFile filterFile = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = filterFile.getChannel();
+            channel.truncate(0);
+
+            ByteBuffer batch = ByteBuffer.allocate(8 * BATCH_LONGS);
+            long position = HEADER_SIZE;
+            for (int first = 0; first < bits.length; first += BATCH_LONGS) {
+                int count = Math.min(BATCH_LONGS, bits.length - first);
+                batch.clear();
+                batch.asLongBuffer().put(bits, first, count);
+                batch.limit(8 * count);
+                while (batch.hasRemaining()) {
+                    position += channel.write(batch, position);
+                }
+            }
+            channel.force(false);
+
+            // Only mark the filter clean once it is all on disk.
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put(0, FILE_FORMAT_VERSION);
+            header.put(CLEAN_FLAG_OFFSET, (byte) 1);
+            header.putInt(4, bits.length);
+            header.putInt(8, storeRecordCount);
+            channel.write(header, 0);
+            channel.force(false);
+        } finally {
+            filterFile.close();
+        }
+    }
+
+    /**
+     * Empty the filter and size it for twice the given number of hashes.
+     */
+    void reset(int hashes) {
+        long capacity = Math.max(MINIMUM_CAPACITY, 2L * hashes);
+        setBits(new long[(int) ((capacity * BITS_PER_HASH + 63) / 64)]);
+    }
+
+    /**
+     * @return true if the filter holds more hashes than it was sized for
+     */
+    boolean isFull(int hashes) {
+        return (long) hashes * BITS_PER_HASH > bitCount;
+    }
+
+    void put(byte[] hash) {
+        long h1 = readInt(hash, hash.length - 4);
+        long h2 = readInt(hash, hash.length - 8);
+        for (int i = 0; i < HASH_FUNCTIONS; i++) {
+            long bit = (h1 + i * h2) % bitCount;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    void put(Sha256Hash hash) {
+        put(hash.getBytes());
+    }
+
+    /**
+     * @return false if the hash was definitely never put in the filter
+     */
+    boolean mightContain(byte[] hash) {
+        long h1 = readInt(hash, hash.length - 4);
+        long h2 = readInt(hash, hash.length - 8);
+        for (int i = 0; i < HASH_FUNCTIONS; i++) {
+            long bit = (h1 + i * h2) % bitCount;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean mightContain(Sha256Hash hash) {
+        return mightContain(hash.getBytes());
+    }
+
+    private void setBits(long[] bits) {
+        this.bits = bits;
+        this.bitCount = 64L * bits.length;
+    }
+
+    // The low order bytes of a block hash, as returned by
+    // Sha256Hash.getBytes(), are the random ones - the high order bytes are
+    // zero because of the proof of work.
+    private static long readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFFL) << 24) | ((bytes[offset + 1] & 0xFFL) << 16)
+                | ((bytes[offset + 2] & 0xFFL) << 8) | (bytes[offset + 3] & 0xFFL);
+    }
+}
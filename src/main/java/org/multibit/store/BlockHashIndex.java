@@ -0,0 +1,405 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Sha256Hash;
+
+/**
+ * An on-disk hash table mapping block hashes to record numbers in a
+ * {@link ReplayableBlockStore}.
+ * <p>
+ *
+ * The index lives in a file next to the block store and is an open addressing
+ * table with linear probing. Each slot holds the 32 byte block hash followed by
+ * the record number plus one, so that an all zero slot is empty. The table is
+ * kept at most half full so a lookup costs on average less than two slot
+ * reads, regardless of the size of the block chain.
+ * <p>
+ *
+ * The index can always be recreated from the block store so it is written
+ * without forcing to disk. A clean flag in the header is cleared on the first
+ * write and only set again by {@link #close(int)} - an index that was not
+ * closed cleanly is not trusted and is rebuilt by the block store. The header
+ * also holds the number of records and the checksum of the last record of
+ * the store the index was closed with, so an index left next to a store it
+ * does not belong to is rebuilt too. Lookups can then trust a matching slot
+ * without reading back the block.
+ */
+class BlockHashIndex {
+    private static final Logger log = LoggerFactory.getLogger(BlockHashIndex.class);
+
+    public static final String INDEX_SUFFIX = ".index";
+
+    // The first version had no last record checksum.
+    private static final byte FILE_FORMAT_VERSION = 2;
+
+    // version (1), clean flag (1), padding (2), capacity (4), occupied (4),
+    // record count (4), last record checksum (4)
+    private static final int HEADER_SIZE = 20;
+    private static final int CLEAN_FLAG_OFFSET = 1;
+
+    private static final int HASH_BYTES = 32;
+    private static final int SLOT_SIZE = HASH_BYTES + 4;
+
+    private static final int EMPTY = 0;
+    // Marks a slot whose record was truncated away. Tombstones keep probe
+    // chains intact and are dropped when the table grows.
+    private static final int TOMBSTONE = -1;
+
+    private static final int MINIMUM_CAPACITY = 1024;
+
+    // Number of slots read at once when scanning the whole table.
+    private static final int SCAN_SLOTS = 2048;
+
+    private final File file;
+    private RandomAccessFile indexFile;
+    private FileChannel channel;
+
+    private int capacity;
+    private int occupied;
+    private int recordCount;
+    private int lastRecordChecksum;
+
+    // True if the header read at open time was consistent and marked clean.
+    private boolean usable;
+    private boolean dirty;
+
+    // Used when changing the index, which the block store only does with its
+    // write lock held.
+    private final ByteBuffer slotBuffer = ByteBuffer.allocate(SLOT_SIZE);
+
+    // Lookups can run on several threads at once so each has its own buffer.
+    private final ThreadLocal<ByteBuffer> lookupBuffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(SLOT_SIZE);
+        }
+    };
+
+    BlockHashIndex(File file) throws IOException {
+        this.file = file;
+        open();
+    }
+
+    private void open() throws IOException {
+        indexFile = new RandomAccessFile(file, "rw");
+        channel = indexFile.getChannel();
+        usable = readHeader();
+        dirty = false;
+    }
+
+    private boolean readHeader() throws IOException {
+        if (channel.size() < HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (channel.read(header, 0) < HEADER_SIZE) {
+            return false;
+        }
+        if (header.get(0) != FILE_FORMAT_VERSION || header.get(CLEAN_FLAG_OFFSET) != 1) {
+            return false;
+        }
+        capacity = header.getInt(4);
+        occupied = header.getInt(8);
+        recordCount = header.getInt(12);
+        lastRecordChecksum = header.getInt(16);
+
+        boolean powerOfTwo = capacity >= MINIMUM_CAPACITY && (capacity & (capacity - 1)) == 0;
+        return powerOfTwo && occupied >= 0 && occupied <= capacity && recordCount >= 0
+                && channel.size() == HEADER_SIZE + (long) capacity * SLOT_SIZE;
+    }
+
+    /**
+     * Returns true if the index was closed cleanly and covers exactly the given
+     * number of block store records, the last of which has the given checksum.
+     */
+    boolean isValidFor(int storeRecordCount, int storeLastRecordChecksum) {
+        return usable && recordCount == storeRecordCount && lastRecordChecksum == storeLastRecordChecksum;
+    }
+
+    /**
+     * Empty the index, sizing it to hold the given number of entries without
+     * growing.
+     */
+    void reset(int expectedEntries) throws IOException {
+        capacity = MINIMUM_CAPACITY;
+        while (capacity < 2L * expectedEntries) {
+            capacity <<= 1;
+        }
+        occupied = 0;
+        recordCount = 0;
+
+        channel.truncate(0);
+        // Zero fill explicitly - the contents of an extended file are not
+        // defined.
+        ByteBuffer zeros = ByteBuffer.allocate(SLOT_SIZE * SCAN_SLOTS);
+        long length = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+        long position = HEADER_SIZE;
+        while (position < length) {
+            zeros.clear();
+            zeros.limit((int) Math.min(zeros.capacity(), length - position));
+            position += channel.write(zeros, position);
+        }
+        usable = true;
+        dirty = false;
+        markDirty();
+    }
+
+    /**
+     * Look up the record number of a block hash.
+     *
+     * @return the record number or -1 if the hash is not in the index
+     */
+    int get(Sha256Hash hash) throws IOException {
+        return get(hash.getBytes());
+    }
+
+    /**
+     * Look up the record number of a block hash given as the bytes of a
+     * {@link Sha256Hash}.
+     *
+     * @return the record number or -1 if the hash is not in the index
+     */
+    int get(byte[] key) throws IOException {
+        ByteBuffer lookupBuffer = lookupBuffers.get();
+        int mask = capacity - 1;
+        int slot = slotFor(key) & mask;
+        for (int probes = 0; probes < capacity; probes++) {
+            int value = readSlot(slot, lookupBuffer);
+            if (value == EMPTY) {
+                return -1;
+            }
+            if (value != TOMBSTONE && slotMatches(key, lookupBuffer)) {
+                int recordNumber = value - 1;
+                return recordNumber < recordCount ? recordNumber : -1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Record that the block with the given hash is stored at recordNumber. The
+     * record count covered by the index grows to include it.
+     */
+    void put(Sha256Hash hash, int recordNumber) throws IOException {
+        put(hash.getBytes(), recordNumber);
+    }
+
+    /**
+     * As {@link #put(Sha256Hash, int)} with the hash given as its bytes. The
+     * key is copied so the array can be reused.
+     */
+    void put(byte[] key, int recordNumber) throws IOException {
+        if (2L * (occupied + 1) > capacity) {
+            grow();
+        }
+        markDirty();
+        insert(key, recordNumber);
+        if (recordNumber >= recordCount) {
+            recordCount = recordNumber + 1;
+        }
+    }
+
+    private void insert(byte[] key, int recordNumber) throws IOException {
+        int mask = capacity - 1;
+        int slot = slotFor(key) & mask;
+        while (true) {
+            int value = readSlot(slot, slotBuffer);
+            if (value == EMPTY) {
+                occupied++;
+                break;
+            }
+            if (value != TOMBSTONE && slotMatches(key, slotBuffer)) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        slotBuffer.clear();
+        slotBuffer.put(key, 0, HASH_BYTES);
+        slotBuffer.putInt(recordNumber + 1);
+        slotBuffer.flip();
+        channel.write(slotBuffer, slotPosition(slot));
+    }
+
+    /**
+     * Remove the entry for a record that is being truncated away. The slot is
+     * left as a tombstone so that later probes carry on past it.
+     */
+    void remove(byte[] key, int recordNumber) throws IOException {
+        markDirty();
+        int mask = capacity - 1;
+        int slot = slotFor(key) & mask;
+        for (int probes = 0; probes < capacity; probes++) {
+            int value = readSlot(slot, slotBuffer);
+            if (value == EMPTY) {
+                return;
+            }
+            if (value == recordNumber + 1 && slotMatches(key, slotBuffer)) {
+                ByteBuffer tombstone = ByteBuffer.allocate(4);
+                tombstone.putInt(0, TOMBSTONE);
+                channel.write(tombstone, slotPosition(slot) + HASH_BYTES);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Set the number of block store records covered by the index after the
+     * entries at or beyond newRecordCount have been removed.
+     */
+    void setRecordCount(int newRecordCount) throws IOException {
+        markDirty();
+        recordCount = newRecordCount;
+    }
+
+    /**
+     * Double the capacity of the table, dropping tombstones. The new table is
+     * built in a temporary file and then swapped in.
+     */
+    private void grow() throws IOException {
+        long start = System.currentTimeMillis();
+        File grownFile = new File(file.getPath() + ".tmp");
+        BlockHashIndex grown = new BlockHashIndex(grownFile);
+        try {
+            grown.reset(capacity);
+            ByteBuffer chunk = ByteBuffer.allocate(SLOT_SIZE * SCAN_SLOTS);
+            byte[] key = new byte[HASH_BYTES];
+            for (int first = 0; first < capacity; first += SCAN_SLOTS) {
+                int slots = Math.min(SCAN_SLOTS, capacity - first);
+                readSlots(chunk, first, slots);
+                for (int i = 0; i < slots; i++) {
+                    int value = chunk.getInt(i * SLOT_SIZE + HASH_BYTES);
+                    if (value != EMPTY && value != TOMBSTONE && value - 1 < recordCount) {
+                        chunk.position(i * SLOT_SIZE);
+                        chunk.get(key);
+                        grown.insert(key, value - 1);
+                    }
+                }
+            }
+            grown.recordCount = recordCount;
+        } finally {
+            grown.close(lastRecordChecksum);
+        }
+
+        indexFile.close();
+        if (!file.delete() || !grownFile.renameTo(file)) {
+            throw new IOException("Could not replace block index '" + file + "' with '" + grownFile + "'");
+        }
+        open();
+        log.debug("Grew block index to {} slots in {} msec", capacity, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Write the header, mark the index as clean and close it.
+     *
+     * @param storeLastRecordChecksum
+     *            the checksum of the last record of the block store, checked
+     *            by {@link #isValidFor(int, int)} at the next open
+     */
+    void close(int storeLastRecordChecksum) throws IOException {
+        lastRecordChecksum = storeLastRecordChecksum;
+        try {
+            if (dirty) {
+                // Only mark the index clean once every slot is on disk.
+                channel.force(false);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.put(0, FILE_FORMAT_VERSION);
+                header.put(CLEAN_FLAG_OFFSET, (byte) 1);
+                header.putInt(4, capacity);
+                header.putInt(8, occupied);
+                header.putInt(12, recordCount);
+                header.putInt(16, lastRecordChecksum);
+                channel.write(header, 0);
+                channel.force(false);
+                dirty = false;
+            }
+        } finally {
+            indexFile.close();
+        }
+    }
+
+    /**
+     * Close the index without marking it clean, after a failure that may have
+     * left it incomplete.
+     */
+    void closeWithoutSaving() throws IOException {
+        indexFile.close();
+    }
+
+    private void markDirty() throws IOException {
+        if (!dirty) {
+            ByteBuffer flag = ByteBuffer.allocate(1);
+            flag.put(0, (byte) 0);
+            channel.write(flag, CLEAN_FLAG_OFFSET);
+            // The index must be marked dirty on disk before any slot changes.
+            channel.force(false);
+            dirty = true;
+        }
+    }
+
+    private int readSlot(int slot, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        if (channel.read(buffer, slotPosition(slot)) < SLOT_SIZE) {
+            throw new IOException("Block index '" + file + "' is truncated");
+        }
+        return buffer.getInt(HASH_BYTES);
+    }
+
+    private void readSlots(ByteBuffer chunk, int firstSlot, int slots) throws IOException {
+        chunk.clear();
+        chunk.limit(slots * SLOT_SIZE);
+        long position = slotPosition(firstSlot);
+        while (chunk.hasRemaining()) {
+            int read = channel.read(chunk, position);
+            if (read < 0) {
+                throw new IOException("Block index '" + file + "' is truncated");
+            }
+            position += read;
+        }
+    }
+
+    private static boolean slotMatches(byte[] key, ByteBuffer buffer) {
+        for (int i = 0; i < HASH_BYTES; i++) {
+            if (buffer.get(i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long slotPosition(int slot) {
+        return HEADER_SIZE + (long) slot * SLOT_SIZE;
+    }
+
+    /**
+     * Block hashes are stored with the leading zeros of the proof of work
+     * first, so the well mixed trailing bytes are used to pick a slot.
+     */
+    private static int slotFor(byte[] key) {
+        return ((key[28] & 0xFF) << 24) | ((key[29] & 0xFF) << 16) | ((key[30] & 0xFF) << 8) | (key[31] & 0xFF);
+    }
+}
@@ -0,0 +1,214 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Maps heights on the main chain (the chain ending at the chain head) to
+ * record numbers in a {@link ReplayableBlockStore}.
+ * <p>
+ *
+ * The table is an int per height held in memory - about 4 bytes per block.
+ * It is saved to a file next to the block store when the store is closed and
+ * read back on the next load. As with {@link BlockHashIndex} a clean flag in
+ * the header is cleared as soon as the saved table is read so a table that
+ * was not saved after the last change is not trusted and is rebuilt by the
+ * block store.
+ */
+class BlockHeightIndex {
+    public static final String HEIGHTS_SUFFIX = ".heights";
+
+    private static final byte FILE_FORMAT_VERSION = 1;
+
+    // version (1), clean flag (1), padding (2), number of heights (4), block
+    // store record count (4), padding (4)
+    private static final int HEADER_SIZE = 16;
+    private static final int CLEAN_FLAG_OFFSET = 1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Number of heights read or written at once.
+    private static final int BATCH_HEIGHTS = 4096;
+
+    // Marks a height whose block is not known, for instance below the first
+    // block in the store.
+    private static final int UNKNOWN = -1;
+
+    private final File file;
+
+    private int[] recordNumbers = new int[INITIAL_CAPACITY];
+    private int size;
+
+    BlockHeightIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Read the table saved by {@link #save(int)}.
+     *
+     * @return true if the saved table was written cleanly for a block store
+     *         with the given number of records
+     */
+    boolean load(int storeRecordCount) throws IOException {
+        clear();
+        if (!file.exists()) {
+            return false;
+        }
+        RandomAccessFile heightsFile = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = heightsFile.getChannel();
+            if (channel.size() < HEADER_SIZE) {
+                return false;
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (channel.read(header, 0) < HEADER_SIZE) {
+                return false;
+            }
+            int heights = header.getInt(4);
+            if (header.get(0) != FILE_FORMAT_VERSION || header.get(CLEAN_FLAG_OFFSET) != 1
+                    || header.getInt(8) != storeRecordCount || heights < 0
+                    || channel.size() != HEADER_SIZE + 4L * heights) {
+                return false;
+            }
+
+            // The table in memory is about to diverge from the file.
+            ByteBuffer flag = ByteBuffer.allocate(1);
+            channel.write(flag, CLEAN_FLAG_OFFSET);
+            channel.force(false);
+
+            ensureCapacity(heights);
+            ByteBuffer batch = ByteBuffer.allocate(4 * BATCH_HEIGHTS);
+            long position = HEADER_SIZE;
+            for (int first = 0; first < heights; first += BATCH_HEIGHTS) {
+                int count = Math.min(BATCH_HEIGHTS, heights - first);
+                batch.clear();
+                batch.limit(4 * count);
+                while (batch.hasRemaining()) {
+                    int read = channel.read(batch, position);
+                    if (read < 0) {
+                        clear();
+                        return false;
+                    }
+                    position += read;
+                }
+                batch.flip();
+                batch.asIntBuffer().get(recordNumbers, first, count);
+            }
+            size = heights;
+            return true;
+        } finally {
+            heightsFile.close();
+        }
+    }
+
+    /**
+     * Write the table to disk and mark it clean.
+     */
+    void save(int storeRecordCount) throws IOException {
+        RandomAccessFile heightsFile = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = heightsFile.getChannel();
+            channel.truncate(0);
+
+            ByteBuffer batch = ByteBuffer.allocate(4 * BATCH_HEIGHTS);
+            long position = HEADER_SIZE;
+            for (int first = 0; first < size; first += BATCH_HEIGHTS) {
+                int count = Math.min(BATCH_HEIGHTS, size - first);
+                batch.clear();
+                batch.asIntBuffer().put(recordNumbers, first, count);
+                batch.limit(4 * count);
+                while (batch.hasRemaining()) {
+                    position += channel.write(batch, position);
+                }
+            }
+            channel.force(false);
+
+            // Only mark the table clean once it is all on disk.
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put(0, FILE_FORMAT_VERSION);
+            header.put(CLEAN_FLAG_OFFSET, (byte) 1);
+            header.putInt(4, size);
+            header.putInt(8, storeRecordCount);
+            channel.write(header, 0);
+            channel.force(false);
+        } finally {
+            heightsFile.close();
+        }
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * The number of heights in the table, which is the height of the chain
+     * head plus one.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the record number of the main chain block at the given height or
+     *         -1 if it is not known
+     */
+    int get(int height) {
+        if (height < 0 || height >= size) {
+            return UNKNOWN;
+        }
+        return recordNumbers[height];
+    }
+
+    /**
+     * Set the record number for a height, growing the table if need be.
+     */
+    void set(int height, int recordNumber) {
+        if (height >= size) {
+            ensureCapacity(height + 1);
+            for (int i = size; i < height; i++) {
+                recordNumbers[i] = UNKNOWN;
+            }
+            size = height + 1;
+        }
+        recordNumbers[height] = recordNumber;
+    }
+
+    /**
+     * Forget every height at or above newSize.
+     */
+    void truncate(int newSize) {
+        if (newSize < size) {
+            size = Math.max(0, newSize);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > recordNumbers.length) {
+            int newLength = recordNumbers.length;
+            while (newLength < capacity) {
+                newLength <<= 1;
+            }
+            int[] grown = new int[newLength];
+            System.arraycopy(recordNumbers, 0, grown, 0, size);
+            recordNumbers = grown;
+        }
+    }
+}
@@ -22,9 +22,21 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
 
 import org.multibit.IsMultiBitClass;
 import org.slf4j.Logger;
@@ -50,25 +62,71 @@ import com.google.bitcoin.store.BlockStoreException;
  * <p>
  * 
  * Blocks are stored sequentially. Most blocks are fetched out of a small
- * in-memory cache. The slowest part is traversing difficulty transition points,
- * which requires seeking backwards over around 2000 blocks. On a Google Nexus S
- * phone this takes a couple of seconds. On a MacBook Pro it takes around
- * 50msec.
+ * in-memory cache. Blocks that are not in the cache are located using a
+ * {@link BlockHashIndex} kept in a file next to the block store, so a lookup
+ * costs a couple of index reads and a single record read. The index is
+ * rebuilt from the block store on load if it is missing or was not closed
+ * cleanly. A {@link BlockHashFilter} in front of the index answers most
+ * lookups of blocks that are not in the store without touching the index.
  * <p>
  * 
- * The store has much room for optimization. Expanding the size of the cache
- * will likely allow us to traverse difficulty transitions without using too
- * much memory and without hitting the disk at all, for the case of initial
- * block chain download. Storing the hashes on disk would allow us to avoid
- * deserialization and hashing which is expensive on Android.
+ * Every record carries a checksum which is checked whenever the record is
+ * read. When the index is rebuilt after an unclean shutdown every record is
+ * checked and the store is truncated at the first damaged one, so only the
+ * blocks from there on have to be downloaded again.
+ * <p>
+ * 
+ * Records can optionally be read through memory mapped chunks of the file
+ * rather than with a read call each, see {@link #setMemoryMapped(boolean)}.
+ * <p>
+ * 
+ * The store also keeps the record number of each block on the main chain by
+ * height so blocks can be found by height, see
+ * {@link #getBlockAtHeight(int)}, or by time, see {@link #getBlockBefore(long)},
+ * without walking back from the chain head.
+ * <p>
+ * 
+ * By default every put() and setChainHead() is forced to disk before it
+ * returns. With group commit, see {@link #setGroupCommit(int, long)}, new
+ * records and chain head changes are buffered and written together. Records
+ * are always forced to disk before the chain head that refers to them so
+ * after a crash the store comes back at the last chain head that was written.
+ * <p>
+ * 
+ * Lookups share a read lock and changes take a write lock, so the user
+ * interface is not held up by the download of the block chain other than
+ * whilst a block is actually being written. getChainHead() returns an
+ * immutable snapshot without taking a lock at all.
+ * <p>
  * 
  * This variant of BoundedOverheadBlockStore has the ability to replay blocks
  */
 public class ReplayableBlockStore implements BlockStore, IsMultiBitClass {
     private static final Logger log = LoggerFactory.getLogger(ReplayableBlockStore.class);
-    private static final byte FILE_FORMAT_VERSION = 1;
+    private static final byte FILE_FORMAT_VERSION = 2;
+    // The first version had no record checksums.
+    private static final byte VERSION_1_FILE_FORMAT = 1;
+
+    // A store in the first version is rewritten into a file with this
+    // suffix and the original kept with the backup suffix until the
+    // rewritten store is in place.
+    static final String MIGRATED_SUFFIX = ".migrated";
+    static final String VERSION_1_BACKUP_SUFFIX = ".v1";
+
+    // Version byte followed by the chain head hash.
+    private static final int FILE_HEADER_SIZE = 1 + 32;
+
+    // Number of records read at once when rebuilding the index.
+    private static final int REBUILD_BATCH_RECORDS = 1000;
+
+    // Number of records in each memory mapped chunk of the file (about 2MB).
+    private static final int MAPPED_CHUNK_RECORDS = 16384;
 
     private RandomAccessFile file;
+    // Lookups take the read lock and changes the write lock, so the user
+    // interface can read the store while the block chain is downloading.
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
     // We keep some recently found blocks in the blockCache. It can help to
     // optimize some cases where we are
     // looking up blocks we recently stored or requested. When the cache gets
@@ -104,10 +162,48 @@ public class ReplayableBlockStore implements BlockStore, IsMultiBitClass {
         }
     };
 
+    // Both caches are filled by readers holding the read lock so they are
+    // guarded by the blockCache monitor as well.
+
+    // Number of get() calls answered by either cache and by the file.
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    // An immutable snapshot of the chain head so that getChainHead() does not
+    // need a lock at all.
+    private volatile StoredBlock chainHeadBlock;
+
     private Sha256Hash chainHead;
     private final NetworkParameters params;
     private FileChannel channel;
 
+    // Number of records in the store, including those waiting for a group
+    // commit.
+    private int recordCount;
+    // Number of records that have been written to the file.
+    private int writtenRecordCount;
+    private BlockHashIndex index;
+    private BlockHeightIndex heightIndex;
+    private BlockHashFilter filter;
+
+    // Group commit. Records past writtenRecordCount are held in
+    // pendingRecords and the chain head is only written when headIsPending.
+    private ByteBuffer pendingRecords;
+    private boolean headIsPending;
+    private Timer commitTimer;
+
+    // When memory mapped, each complete chunk of MAPPED_CHUNK_RECORDS records
+    // is mapped the first time it is read. The last, incomplete, chunk holds
+    // the chain tip, which is read most. It is mapped up to the records
+    // written so far and mapped again further when a later record is read.
+    private boolean memoryMapped;
+    private int mappedChunkRecords = MAPPED_CHUNK_RECORDS;
+    private List<MappedByteBuffer> mappedChunks = new ArrayList<MappedByteBuffer>();
+    // Guarded by the mappedChunks monitor.
+    private MappedByteBuffer tailChunk;
+    private int tailChunkStart;
+    private int tailChunkRecords;
+
     public ReplayableBlockStore(NetworkParameters params, File file, boolean alwaysCreateNewStore) throws BlockStoreException {
         this.params = params;
         if (alwaysCreateNewStore) {
@@ -122,14 +218,11 @@ public class ReplayableBlockStore implements BlockStore, IsMultiBitClass {
         }
     }
 
-    synchronized private void createNewStore(NetworkParameters params, File file) throws BlockStoreException {
+    private void createNewStore(NetworkParameters params, File file) throws BlockStoreException {
         // Create a new block store if the file wasn't found or anything went
         // wrong whilst reading.
+        lock.writeLock().lock();
         try {
-            // Create fresh or open existing . The d makes writes synchronous.
-            this.file = new RandomAccessFile(file, "rwd");
-            this.channel = this.file.getChannel();
-
             // Set up the genesis block. When we start out fresh, it is by
             // definition the top of the chain.
             Block genesis = params.genesisBlock.cloneAsHeader();
@@ -138,9 +231,18 @@ public class ReplayableBlockStore implements BlockStore, IsMultiBitClass {
             if (file.exists() && file.length() > 0) {
                 load(file);
             } else {
+                // Create fresh or open existing. Writes are forced to disk
+                // explicitly.
+                this.file = new RandomAccessFile(file, "rw");
+                this.channel = this.file.getChannel();
                 this.file.write(FILE_FORMAT_VERSION);
                 this.chainHead = storedGenesis.getHeader().getHash();
                 this.file.write(this.chainHead.getBytes());
+                recordCount = 0;
+                writtenRecordCount = 0;
+                openIndex(file);
+                index.reset(0);
+                filter.reset(0);
                 put(storedGenesis);
              }
             
@@ -151,14 +253,19 @@ public class ReplayableBlockStore implements BlockStore, IsMultiBitClass {
             throw new RuntimeException(e1); // Cannot happen.
         } catch (IOException e) {
             throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
     private void load(File file) throws IOException, BlockStoreException {
         log.info("Reading block store from {}", file);
-        // Open in synchronous mode. See above.
-        this.file = new RandomAccessFile(file, "rwd");
+        lock.writeLock().lock();
         try {
+            // Before the file is opened, as opening creates it if missing.
+            recoverMigration(file);
+            // Writes are forced to disk explicitly. See above.
+            this.file = new RandomAccessFile(file, "rw");
             channel = this.file.getChannel();
             // Read a version byte.
             int version = this.file.read();
@@ -166,7 +273,13 @@ public class ReplayableBlockStore implements BlockStore, IsMultiBitClass {
                 // No such file or the file was empty.
                 throw new FileNotFoundException(file.getName() + " does not exist or is empty");
             }
-            if (version != FILE_FORMAT_VERSION) {
+            if (version == VERSION_1_FILE_FORMAT) {
+                this.file.close();
+                migrateFromVersion1(file);
+                this.file = new RandomAccessFile(file, "rw");
+                channel = this.file.getChannel();
+                this.file.seek(1);
+            } else if (version != FILE_FORMAT_VERSION) {
                 throw new BlockStoreException("Bad version number: " + version);
             }
             // Chain head pointer is the first thing in the file.
@@ -175,100 +288,888 @@ public class ReplayableBlockStore implements BlockStore, IsMultiBitClass {
                 throw new BlockStoreException("Truncated store: could not read chain head hash.");
             this.chainHead = new Sha256Hash(chainHeadHash);
             log.info("Read chain head from disk: {}", this.chainHead);
-            channel.position(channel.size() - Record.SIZE);
+
+            long recordBytes = channel.size() - FILE_HEADER_SIZE;
+            recordCount = (int) (recordBytes / Record.SIZE);
+            if (recordBytes % Record.SIZE != 0) {
+                // A record was only partly written, probably due to a crash.
+                // Drop it so that later records stay aligned.
+                log.warn("Dropping partly written record at the end of {}", file);
+                this.file.setLength(recordPosition(recordCount));
+            }
+            writtenRecordCount = recordCount;
+
+            openIndex(file);
+            boolean filterLoaded = filter.load(recordCount);
+            if (!index.isValidFor(recordCount, readLastRecordChecksum())) {
+                // The store was not closed cleanly, or the index belongs to
+                // another store, so every record is checked as the index is
+                // rebuilt. The filter is rebuilt with it.
+                rebuildIndex();
+            } else if (!filterLoaded) {
+                rebuildFilter(recordCount);
+            }
+            if (index.get(this.chainHead) < 0) {
+                recoverChainHead();
+            }
+            if (!heightIndex.load(recordCount)
+                    || heightIndex.get(heightIndex.size() - 1) != index.get(this.chainHead)) {
+                rebuildHeightIndex();
+            }
         } catch (IOException e) {
-            this.file.close();
+            closeAfterFailedLoad();
             throw e;
         } catch (BlockStoreException e) {
-            this.file.close();
+            closeAfterFailedLoad();
             throw e;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void openIndex(File file) throws IOException {
+        if (index != null) {
+            index.closeWithoutSaving();
+        }
+        index = new BlockHashIndex(new File(file.getPath() + BlockHashIndex.INDEX_SUFFIX));
+        heightIndex = new BlockHeightIndex(new File(file.getPath() + BlockHeightIndex.HEIGHTS_SUFFIX));
+        filter = new BlockHashFilter(new File(file.getPath() + BlockHashFilter.FILTER_SUFFIX));
+    }
+
+    /**
+     * Rewrite a store in the first file format, which had no checksums, in
+     * the current format. Record numbers do not change so the hash and height
+     * indexes are still valid afterwards.
+     * <p>
+     * 
+     * The new store is written and forced to disk next to the original, the
+     * original is renamed to a backup, the new store renamed into its place
+     * and only then the backup deleted. A crash at any point leaves one
+     * complete store for {@link #recoverMigration(File)} to pick up.
+     */
+    private void migrateFromVersion1(File file) throws IOException {
+        log.info("Adding checksums to block store {}", file);
+        long start = System.currentTimeMillis();
+        File migratedFile = new File(file.getPath() + MIGRATED_SUFFIX);
+        File backupFile = new File(file.getPath() + VERSION_1_BACKUP_SUFFIX);
+        RandomAccessFile oldFile = new RandomAccessFile(file, "r");
+        try {
+            RandomAccessFile newFile = new RandomAccessFile(migratedFile, "rw");
+            try {
+                FileChannel oldChannel = oldFile.getChannel();
+                FileChannel newChannel = newFile.getChannel();
+                newChannel.truncate(0);
+
+                ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+                readFully(oldChannel, header, 0);
+                header.put(0, FILE_FORMAT_VERSION);
+                header.flip();
+                newChannel.write(header, 0);
+
+                int records = (int) ((oldChannel.size() - FILE_HEADER_SIZE) / Record.DATA_SIZE);
+                ByteBuffer oldBatch = ByteBuffer.allocate(Record.DATA_SIZE * REBUILD_BATCH_RECORDS);
+                ByteBuffer newBatch = ByteBuffer.allocate(Record.SIZE * REBUILD_BATCH_RECORDS);
+                CRC32 crc = new CRC32();
+                for (int first = 0; first < records; first += REBUILD_BATCH_RECORDS) {
+                    int batchRecords = Math.min(REBUILD_BATCH_RECORDS, records - first);
+                    oldBatch.clear();
+                    oldBatch.limit(batchRecords * Record.DATA_SIZE);
+                    readFully(oldChannel, oldBatch, FILE_HEADER_SIZE + (long) first * Record.DATA_SIZE);
+                    newBatch.clear();
+                    for (int i = 0; i < batchRecords; i++) {
+                        int offset = i * Record.DATA_SIZE;
+                        crc.reset();
+                        crc.update(oldBatch.array(), offset, Record.DATA_SIZE);
+                        newBatch.put(oldBatch.array(), offset, Record.DATA_SIZE);
+                        newBatch.putInt((int) crc.getValue());
+                    }
+                    newBatch.flip();
+                    long position = recordPosition(first);
+                    while (newBatch.hasRemaining()) {
+                        position += newChannel.write(newBatch, position);
+                    }
+                }
+                newChannel.force(false);
+            } finally {
+                newFile.close();
+            }
+        } finally {
+            oldFile.close();
+        }
+        if (!file.renameTo(backupFile)) {
+            throw new IOException("Could not move block store '" + file + "' to '" + backupFile + "'");
+        }
+        if (!migratedFile.renameTo(file)) {
+            throw new IOException("Could not replace block store '" + file + "' with '" + migratedFile + "'");
+        }
+        if (!backupFile.delete()) {
+            log.warn("Could not delete the old block store '{}'", backupFile);
+        }
+        log.info("Added checksums to block store in {} msec", System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Finish or roll back a migration from the first file format that was
+     * interrupted, see {@link #migrateFromVersion1(File)}. The migrated store
+     * is only complete once the original has been renamed to the backup, so
+     * without the backup a migrated file is a partial one and is dropped.
+     */
+    private static void recoverMigration(File file) throws IOException {
+        File migratedFile = new File(file.getPath() + MIGRATED_SUFFIX);
+        File backupFile = new File(file.getPath() + VERSION_1_BACKUP_SUFFIX);
+        if (backupFile.exists()) {
+            if (!file.exists()) {
+                File recovered = migratedFile.exists() ? migratedFile : backupFile;
+                log.warn("Block store migration was interrupted, recovering '{}'", recovered);
+                if (!recovered.renameTo(file)) {
+                    throw new IOException("Could not recover block store '" + file + "' from '" + recovered + "'");
+                }
+            }
+            if (backupFile.exists() && !backupFile.delete()) {
+                log.warn("Could not delete the old block store '{}'", backupFile);
+            }
+        }
+        if (migratedFile.exists() && !migratedFile.delete()) {
+            log.warn("Could not delete the partly migrated block store '{}'", migratedFile);
+        }
+    }
+
+    /**
+     * Read the checksum of the last record written to the file, or 0 if
+     * there are no records. Saved in the index so that an index is not
+     * trusted with a store it was not closed with.
+     */
+    private int readLastRecordChecksum() throws IOException {
+        if (writtenRecordCount == 0) {
+            return 0;
+        }
+        ByteBuffer checksum = ByteBuffer.allocate(4);
+        readFully(channel, checksum, recordPosition(writtenRecordCount) - checksum.capacity());
+        return checksum.getInt(0);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Block store is shorter than expected");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Recreate the hash index by reading every record and hashing its header.
+     * The checksum of every record is checked on the way and the store is
+     * truncated at the first damaged record, so only the blocks from there on
+     * are downloaded again.
+     */
+    private void rebuildIndex() throws IOException {
+        log.info("Rebuilding block index for {} records", recordCount);
+        long start = System.currentTimeMillis();
+        index.reset(recordCount);
+        filter.reset(recordCount);
+        int goodRecords = indexRecords(0, recordCount, HashAction.INDEX, true);
+        if (goodRecords < recordCount) {
+            log.warn("Block store record {} is damaged, dropping it and the {} records after it", goodRecords,
+                    recordCount - goodRecords - 1);
+            recordCount = goodRecords;
+            writtenRecordCount = recordCount;
+            this.file.setLength(recordPosition(recordCount));
+        }
+        log.info("Rebuilt block index in {} msec", System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Recreate the filter, sized for the given number of records, from every
+     * record in the file.
+     */
+    private void rebuildFilter(int expectedRecords) throws IOException {
+        long start = System.currentTimeMillis();
+        filter.reset(expectedRecords);
+        indexRecords(0, recordCount, HashAction.FILTER, false);
+        log.info("Rebuilt block filter for {} records in {} msec", recordCount, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Make the record with the most chain work the chain head. Used when the
+     * chain head was lost by truncating a damaged store.
+     */
+    private void recoverChainHead() throws IOException, BlockStoreException {
+        if (recordCount == 0) {
+            throw new BlockStoreException("Corrupted block store: no records left");
+        }
+        ByteBuffer batch = ByteBuffer.allocate(Record.SIZE * REBUILD_BATCH_RECORDS);
+        byte[] records = batch.array();
+        int bestRecord = 0;
+        byte[] bestChainWork = new byte[Record.CHAIN_WORK_BYTES];
+        for (int first = 0; first < recordCount; first += REBUILD_BATCH_RECORDS) {
+            int batchRecords = Math.min(REBUILD_BATCH_RECORDS, recordCount - first);
+            batch.clear();
+            batch.limit(batchRecords * Record.SIZE);
+            readFully(channel, batch, recordPosition(first));
+            for (int i = 0; i < batchRecords; i++) {
+                int chainWorkOffset = i * Record.SIZE + Record.CHAIN_WORK_OFFSET;
+                // Chain work is stored as a fixed length unsigned big endian
+                // number so it compares byte by byte.
+                int comparison = 0;
+                for (int j = 0; j < Record.CHAIN_WORK_BYTES && comparison == 0; j++) {
+                    comparison = (records[chainWorkOffset + j] & 0xFF) - (bestChainWork[j] & 0xFF);
+                }
+                if (comparison > 0) {
+                    bestRecord = first + i;
+                    System.arraycopy(records, chainWorkOffset, bestChainWork, 0, Record.CHAIN_WORK_BYTES);
+                }
+            }
+        }
+
+        Record record = this.records.get();
+        readRecord(bestRecord, record);
+        try {
+            this.chainHead = record.getHeader(params).getHash();
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+        writeChainHead();
+        log.warn("Chain head was not in the block store, using block at height {} instead", record.getHeight());
+    }
+
+    /**
+     * What {@link #indexRecords(int, int, HashAction, boolean)} does with the
+     * hash of each record.
+     */
+    private enum HashAction {
+        // Add to the index and the filter.
+        INDEX,
+        // Remove from the index. Hashes cannot be removed from the filter.
+        UNINDEX,
+        // Add to the filter only.
+        FILTER
+    }
+
+    /**
+     * Hash the headers of the records from firstRecord up to, but not
+     * including, endRecord and add them to, or remove them from, the index
+     * and filter.
+     * 
+     * @param verify
+     *            If true, stop at the first record with a bad checksum.
+     * @return the number of the first bad record or endRecord if all the
+     *         records were good or not verified
+     */
+    private int indexRecords(int firstRecord, int endRecord, HashAction action, boolean verify) throws IOException {
+        CRC32 crc = new CRC32();
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+        ByteBuffer batch = ByteBuffer.allocate(Record.SIZE * REBUILD_BATCH_RECORDS);
+        byte[] records = batch.array();
+        byte[] hash = new byte[32];
+        int recordNumber = firstRecord;
+        while (recordNumber < endRecord) {
+            int batchRecords = Math.min(REBUILD_BATCH_RECORDS, endRecord - recordNumber);
+            batch.clear();
+            batch.limit(batchRecords * Record.SIZE);
+            long position = recordPosition(recordNumber);
+            while (batch.hasRemaining()) {
+                int read = channel.read(batch, position);
+                if (read < 0) {
+                    throw new IOException("Block store is shorter than expected");
+                }
+                position += read;
+            }
+            for (int i = 0; i < batchRecords; i++) {
+                if (verify) {
+                    crc.reset();
+                    crc.update(records, i * Record.SIZE, Record.DATA_SIZE);
+                    if ((int) crc.getValue() != batch.getInt(i * Record.SIZE + Record.DATA_SIZE)) {
+                        return recordNumber + i;
+                    }
+                }
+                int headerOffset = i * Record.SIZE + Record.HEADER_OFFSET;
+                // Hash into the same array each time rather than allocating
+                // a hash per record.
+                try {
+                    digest.update(records, headerOffset, Block.HEADER_SIZE);
+                    digest.digest(hash, 0, hash.length);
+                    digest.update(hash);
+                    digest.digest(hash, 0, hash.length);
+                } catch (DigestException e) {
+                    throw new RuntimeException(e); // Cannot happen.
+                }
+                reverse(hash);
+                switch (action) {
+                case INDEX:
+                    index.put(hash, recordNumber + i);
+                    filter.put(hash);
+                    break;
+                case UNINDEX:
+                    index.remove(hash, recordNumber + i);
+                    break;
+                case FILTER:
+                    filter.put(hash);
+                    break;
+                }
+            }
+            recordNumber += batchRecords;
+        }
+        return endRecord;
+    }
+
+    /**
+     * Drop the index entries of records at or beyond newRecordCount. Either
+     * the dropped records are removed one by one or the index is rebuilt from
+     * the records that are kept, whichever touches fewer records, so
+     * truncating a few blocks from the end or truncating back to the genesis
+     * block are both quick.
+     */
+    private void truncateIndex(int newRecordCount) throws IOException {
+        int dropped = recordCount - newRecordCount;
+        if (dropped <= 0) {
+            return;
+        }
+        if (newRecordCount < dropped) {
+            index.reset(newRecordCount);
+            filter.reset(newRecordCount);
+            indexRecords(0, newRecordCount, HashAction.INDEX, false);
+        } else {
+            // The dropped hashes stay in the filter, which only costs an
+            // index lookup if one of them is asked for.
+            indexRecords(newRecordCount, recordCount, HashAction.UNINDEX, false);
+            index.setRecordCount(newRecordCount);
+        }
+    }
+
+    private static void reverse(byte[] bytes) {
+        for (int i = 0, j = bytes.length - 1; i < j; i++, j--) {
+            byte b = bytes[i];
+            bytes[i] = bytes[j];
+            bytes[j] = b;
+        }
+    }
+
+    /**
+     * Recreate the height index by walking back from the chain head.
+     */
+    private void rebuildHeightIndex() throws IOException {
+        long start = System.currentTimeMillis();
+        heightIndex.clear();
+        int recordNumber = index.get(chainHead);
+        if (recordNumber < 0) {
+            // Reported by getChainHead().
+            return;
+        }
+        Record record = records.get();
+        readRecord(recordNumber, record);
+        record.getPrevBlockHash(prevBlockHash);
+        updateHeightIndex(record.getHeight(), recordNumber, prevBlockHash);
+        log.info("Rebuilt block height index for {} blocks in {} msec", heightIndex.size(),
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Make the block at the given record the top of the height index. Heights
+     * are filled in walking back from it until a block already in the index
+     * is reached, which for a block that extends the chain head is its
+     * parent.
+     */
+    private void updateHeightIndex(int height, int recordNumber, byte[] prevBlockHash) throws IOException {
+        heightIndex.truncate(height + 1);
+        Record record = records.get();
+        while (heightIndex.get(height) != recordNumber) {
+            heightIndex.set(height, recordNumber);
+            if (height == 0) {
+                break;
+            }
+            recordNumber = index.get(prevBlockHash);
+            if (recordNumber < 0) {
+                // The store does not go back any further.
+                break;
+            }
+            height--;
+            if (heightIndex.get(height) == recordNumber) {
+                break;
+            }
+            readRecord(recordNumber, record);
+            record.getPrevBlockHash(this.prevBlockHash);
+            prevBlockHash = this.prevBlockHash;
         }
     }
 
-    public synchronized void put(StoredBlock block) throws BlockStoreException {
+    public void put(StoredBlock block) throws BlockStoreException {
+        lock.writeLock().lock();
         try {
+            checkOpen();
             Sha256Hash hash = block.getHeader().getHash();
-            // Append to the end of the file.
-            Record.write(channel, block);
-            blockCache.put(hash, block);
+            if (pendingRecords != null) {
+                // Hold the record until the next group commit.
+                Record.write(pendingRecords, block);
+            } else {
+                // Append to the end of the file.
+                Record.write(channel, recordPosition(recordCount), block, buf);
+                channel.force(false);
+                writtenRecordCount++;
+            }
+            index.put(hash, recordCount);
+            filter.put(hash);
+            recordCount++;
+            synchronized (blockCache) {
+                blockCache.put(hash, block);
+                notFoundCache.remove(hash);
+            }
+
+            if (pendingRecords != null && !pendingRecords.hasRemaining()) {
+                commit();
+            }
+            if (filter.isFull(recordCount)) {
+                // The filter is rebuilt from the file so any pending records
+                // have to be written first.
+                commit();
+                rebuildFilter(recordCount);
+            }
         } catch (IOException e) {
             throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
-    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
         // Check the memory cache first.
-        StoredBlock fromMem = blockCache.get(hash);
-        if (fromMem != null) {
-            return fromMem;
-        }
-        if (notFoundCache.get(hash) == notFoundMarker) {
-            return null;
+        synchronized (blockCache) {
+            StoredBlock fromMem = blockCache.get(hash);
+            if (fromMem != null) {
+                cacheHits.incrementAndGet();
+                return fromMem;
+            }
+            if (notFoundCache.get(hash) == notFoundMarker) {
+                cacheHits.incrementAndGet();
+                return null;
+            }
         }
+        cacheMisses.incrementAndGet();
 
+        lock.readLock().lock();
         try {
+            checkOpen();
             Record fromDisk = getRecord(hash);
             StoredBlock block = null;
-            if (fromDisk == null) {
-                notFoundCache.put(hash, notFoundMarker);
-            } else {
+            if (fromDisk != null) {
                 block = fromDisk.toStoredBlock(params);
-                blockCache.put(hash, block);
+            }
+            synchronized (blockCache) {
+                if (block == null) {
+                    notFoundCache.put(hash, notFoundMarker);
+                } else {
+                    blockCache.put(hash, block);
+                }
             }
             return block;
         } catch (IOException e) {
             throw new BlockStoreException(e);
         } catch (ProtocolException e) {
             throw new BlockStoreException(e);
+        } finally {
+            lock.readLock().unlock();
         }
     }
 
-    private ByteBuffer buf = ByteBuffer.allocateDirect(Record.SIZE);
+    // Records are read or viewed in place in a mapped chunk or the group
+    // commit buffer through a Record per thread. Each read replaces the
+    // previous record so callers take what they need straight away.
+    private final ThreadLocal<Record> records = new ThreadLocal<Record>() {
+        @Override
+        protected Record initialValue() {
+            return new Record();
+        }
+    };
+
+    // Only used with the write lock held.
+    private ByteBuffer buf = ByteBuffer.allocate(Record.SIZE);
+    private final byte[] prevBlockHash = new byte[32];
 
-    private Record getRecord(Sha256Hash hash) throws BlockStoreException, IOException, ProtocolException {
-        long startPos = channel.position();
-        // Use our own file pointer within the tight loop as updating channel
-        // positions is really expensive.
-        long pos = startPos;
-        Record record = new Record();
-        do {
-            if (!record.read(channel, pos, buf))
+    /**
+     * Read the record for the given hash into the Record of this thread.
+     * 
+     * @return the record or null if the hash was never stored
+     */
+    private Record getRecord(Sha256Hash hash) throws IOException {
+        if (!filter.mightContain(hash)) {
+            return null;
+        }
+        int recordNumber = index.get(hash);
+        if (recordNumber < 0) {
+            // Was never stored.
+            return null;
+        }
+        // The index is only trusted with the store it was closed with, so its
+        // entry is not checked against the hash of the record.
+        Record record = records.get();
+        readRecord(recordNumber, record);
+        return record;
+    }
+
+    private void readRecord(int recordNumber, Record record) throws IOException {
+        if (recordNumber >= writtenRecordCount) {
+            // Waiting for a group commit.
+            record.read(pendingRecords, (recordNumber - writtenRecordCount) * Record.SIZE);
+        } else {
+            MappedByteBuffer chunk = getMappedChunk(recordNumber);
+            if (chunk != null) {
+                record.read(chunk, (recordNumber % mappedChunkRecords) * Record.SIZE);
+            } else if (!record.read(channel, recordPosition(recordNumber))) {
                 throw new IOException("Failed to read buffer");
-            if (record.getHeader(params).getHash().equals(hash)) {
-                // Found it. Update file position for next time.
-                channel.position(pos);
-                return record;
-            }
-            // Did not find it.
-            if (pos == 1 + 32) {
-                // At the start so wrap around to the end.
-                pos = channel.size() - Record.SIZE;
-            } else {
-                // Move backwards.
-                pos = pos - Record.SIZE;
-                assert pos >= 1 + 32 : pos;
             }
-        } while (pos != startPos);
-        // Was never stored.
-        channel.position(pos);
-        return null;
+        }
+        if (!record.isValid()) {
+            throw new IOException("Block store record " + recordNumber + " is damaged");
+        }
     }
 
-    public synchronized StoredBlock getChainHead() throws BlockStoreException {
-        StoredBlock head = get(chainHead);
-        if (head == null)
-            throw new BlockStoreException("Corrupted block store: chain head not found");
-        return head;
+    /**
+     * Returns the mapped chunk containing the given written record, mapping
+     * it if necessary, or null if reads are not memory mapped.
+     */
+    private MappedByteBuffer getMappedChunk(int recordNumber) throws IOException {
+        if (!memoryMapped) {
+            return null;
+        }
+        int chunkNumber = recordNumber / mappedChunkRecords;
+        // Chunks are mapped by readers so this needs a lock of its own.
+        synchronized (mappedChunks) {
+            if ((long) (chunkNumber + 1) * mappedChunkRecords > writtenRecordCount) {
+                // The last chunk. Writes only happen with the write lock held
+                // so writtenRecordCount does not change whilst it is read.
+                int chunkStart = chunkNumber * mappedChunkRecords;
+                if (tailChunk == null || tailChunkStart != chunkStart || recordNumber >= chunkStart + tailChunkRecords) {
+                    tailChunkStart = chunkStart;
+                    tailChunkRecords = writtenRecordCount - chunkStart;
+                    tailChunk = channel.map(FileChannel.MapMode.READ_ONLY, recordPosition(chunkStart),
+                            (long) tailChunkRecords * Record.SIZE);
+                }
+                return tailChunk;
+            }
+            while (mappedChunks.size() <= chunkNumber) {
+                long position = recordPosition(mappedChunks.size() * mappedChunkRecords);
+                mappedChunks.add(channel.map(FileChannel.MapMode.READ_ONLY, position, (long) mappedChunkRecords
+                        * Record.SIZE));
+            }
+            return mappedChunks.get(chunkNumber);
+        }
     }
 
-    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+    /**
+     * Drop the mapped chunks that are no longer completely within the file.
+     */
+    private void unmapChunksAfter(int newRecordCount) {
+        int completeChunks = newRecordCount / mappedChunkRecords;
+        synchronized (mappedChunks) {
+            while (mappedChunks.size() > completeChunks) {
+                mappedChunks.remove(mappedChunks.size() - 1);
+            }
+            tailChunk = null;
+        }
+    }
+
+    private void unmapChunks() {
+        synchronized (mappedChunks) {
+            mappedChunks.clear();
+            tailChunk = null;
+        }
+    }
+
+    /**
+     * Read records through memory mapped chunks of the file instead of a read
+     * call per record. Complete chunks are mapped once and the last chunk is
+     * mapped again as the file grows. This relies on the operating system
+     * page cache holding the block chain.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        lock.writeLock().lock();
+        try {
+            this.memoryMapped = memoryMapped;
+            if (!memoryMapped) {
+                unmapChunks();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean isMemoryMapped() {
+        lock.readLock().lock();
+        try {
+            return memoryMapped;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Change the number of records in each mapped chunk. Only used by tests.
+     */
+    void setMappedChunkRecords(int mappedChunkRecords) {
+        lock.writeLock().lock();
+        try {
+            this.mappedChunkRecords = mappedChunkRecords;
+            unmapChunks();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of lookups by hash answered from memory
+     */
+    public long getCacheHitCount() {
+        return cacheHits.get();
+    }
+
+    /**
+     * @return the number of lookups by hash that had to read the index
+     */
+    public long getCacheMissCount() {
+        return cacheMisses.get();
+    }
+
+    private static long recordPosition(int recordNumber) {
+        return FILE_HEADER_SIZE + (long) recordNumber * Record.SIZE;
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
+        StoredBlock head = chainHeadBlock;
+        if (head != null) {
+            return head;
+        }
+        lock.readLock().lock();
         try {
+            head = get(chainHead);
+            if (head == null)
+                throw new BlockStoreException("Corrupted block store: chain head not found");
+            // Still holding the read lock so setChainHead() cannot have
+            // replaced the snapshot in the meantime.
+            chainHeadBlock = head;
+            return head;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the block at the given height on the chain that ends at the chain
+     * head. This is a single record read however far back the block is.
+     * 
+     * @return the block or null if the height is above the chain head or
+     *         below the first block in the store
+     */
+    public StoredBlock getBlockAtHeight(int height) throws BlockStoreException {
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            int recordNumber = heightIndex.get(height);
+            if (recordNumber < 0) {
+                return null;
+            }
+            Record record = records.get();
+            readRecord(recordNumber, record);
+            return record.toStoredBlock(params);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the last block on the chain that ends at the chain head with a
+     * timestamp before the given time. The height index is binary searched so
+     * this reads a handful of records rather than every block back to the
+     * time.
+     * <p>
+     * 
+     * Block timestamps are only roughly in order so a block a little later on
+     * the chain may also be before the time, as when walking back from the
+     * chain head.
+     * 
+     * @param timeSeconds
+     *            The time in seconds since the epoch.
+     * @return the block or null if no block in the store is before the time
+     */
+    public StoredBlock getBlockBefore(long timeSeconds) throws BlockStoreException {
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            Record record = records.get();
+            // Find the highest height that is before the time, treating
+            // heights below the start of the store as before every time.
+            int low = -1;
+            int high = heightIndex.size();
+            while (high - low > 1) {
+                int middle = (low + high) >>> 1;
+                int recordNumber = heightIndex.get(middle);
+                boolean before = true;
+                if (recordNumber >= 0) {
+                    readRecord(recordNumber, record);
+                    before = record.getTimeSeconds() < timeSeconds;
+                }
+                if (before) {
+                    low = middle;
+                } else {
+                    high = middle;
+                }
+            }
+            return low < 0 ? null : getBlockAtHeight(low);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
             this.chainHead = chainHead.getHeader().getHash();
-            // Write out new hash to the first 32 bytes of the file past one
-            // (first byte is version number).
-            channel.write(ByteBuffer.wrap(this.chainHead.getBytes()), 1);
+            this.chainHeadBlock = chainHead;
+            int recordNumber = index.get(this.chainHead);
+            if (recordNumber >= 0) {
+                updateHeightIndex(chainHead.getHeight(), recordNumber, chainHead.getHeader().getPrevBlockHash()
+                        .getBytes());
+            } else {
+                log.error("Chain head {} is not in the block store", this.chainHead);
+            }
+            if (pendingRecords != null) {
+                // Written at the next group commit.
+                headIsPending = true;
+            } else {
+                writeChainHead();
+            }
         } catch (IOException e) {
             throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void writeChainHead() throws IOException {
+        // Write out new hash to the first 32 bytes of the file past one
+        // (first byte is version number).
+        channel.write(ByteBuffer.wrap(this.chainHead.getBytes()), 1);
+        channel.force(false);
+    }
+
+    /**
+     * Buffer new records and chain head changes and write them to disk in
+     * batches rather than forcing every change to disk as it is made. A
+     * commit happens when maximumBlocks records are waiting or every
+     * maximumDelayMillis, whichever is sooner.
+     * 
+     * @param maximumBlocks
+     *            The number of records to buffer, or zero to switch group
+     *            commit off and write every change synchronously.
+     * @param maximumDelayMillis
+     *            The longest time a change waits to be written to disk.
+     */
+    public void setGroupCommit(int maximumBlocks, long maximumDelayMillis) throws BlockStoreException {
+        lock.writeLock().lock();
+        try {
+            flush();
+            if (commitTimer != null) {
+                commitTimer.cancel();
+                commitTimer = null;
+            }
+            if (maximumBlocks <= 0) {
+                pendingRecords = null;
+                return;
+            }
+            pendingRecords = ByteBuffer.allocate(maximumBlocks * Record.SIZE);
+            commitTimer = new Timer("ReplayableBlockStore group commit", true);
+            commitTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    } catch (BlockStoreException e) {
+                        log.error("Group commit of block store failed", e);
+                    }
+                }
+            }, maximumDelayMillis, maximumDelayMillis);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Write any records and chain head change waiting for a group commit to
+     * disk.
+     */
+    public void flush() throws BlockStoreException {
+        lock.writeLock().lock();
+        try {
+            if (index == null) {
+                // Closed.
+                return;
+            }
+            commit();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void commit() throws IOException {
+        if (pendingRecords != null && pendingRecords.position() > 0) {
+            pendingRecords.flip();
+            long position = recordPosition(writtenRecordCount);
+            while (pendingRecords.hasRemaining()) {
+                position += channel.write(pendingRecords, position);
+            }
+            pendingRecords.clear();
+            // The records must be on disk before the chain head that refers
+            // to them.
+            channel.force(false);
+            writtenRecordCount = recordCount;
+        }
+        if (headIsPending) {
+            writeChainHead();
+            headIsPending = false;
+        }
+    }
+
+    /**
+     * Start the block store from a checkpoint rather than the genesis block.
+     * Everything after the genesis block is dropped and the checkpoint
+     * becomes the chain head, so the block chain carries on downloading from
+     * the checkpoint. Blocks before the checkpoint are not in the store so
+     * {@link #getBlockAtHeight(int)} returns null for them.
+     * 
+     * @param checkpoint
+     *            A block at a difficulty transition point on the main chain,
+     *            see {@link BlockCheckpoints}.
+     */
+    public void seedFromCheckpoint(StoredBlock checkpoint) throws BlockStoreException {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            StoredBlock genesis = get(params.genesisBlock.getHash());
+            if (genesis == null) {
+                throw new BlockStoreException("Cannot seed a block store without the genesis block");
+            }
+            setChainHeadAndTruncate(genesis);
+            if (checkpoint.getHeight() > 0) {
+                put(checkpoint);
+                setChainHead(checkpoint);
+            }
+            log.info("Seeded block store from checkpoint at height {}", checkpoint.getHeight());
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
@@ -282,19 +1183,27 @@ public class ReplayableBlockStore implements BlockStore, IsMultiBitClass {
      * @throws ProtocolException
      * @throws IOException
      */
-    public synchronized void setChainHeadAndTruncate(StoredBlock chainHead) throws BlockStoreException {
+    public void setChainHeadAndTruncate(StoredBlock chainHead) throws BlockStoreException {
+        lock.writeLock().lock();
         try {
+            checkOpen();
             setChainHead(chainHead);
+            commit();
 
             // find block as a record and delete past it
-            Record chainHeadRecord = getRecord(chainHead.getHeader().getHash());
-            if (chainHeadRecord != null) {
+            int recordNumber = index.get(chainHead.getHeader().getHash());
+            if (recordNumber >= 0) {
                 // the record was found
 
                 // set the length of the file to be the end of the current
                 // record
                 log.debug("File length before truncate was " + file.length());
-                file.setLength(channel.position() + Record.SIZE);
+                // The index needs the dropped records so goes first.
+                truncateIndex(recordNumber + 1);
+                recordCount = recordNumber + 1;
+                writtenRecordCount = recordCount;
+                unmapChunksAfter(recordCount);
+                truncateFile(recordPosition(recordCount));
                 log.debug("File length is now " + file.length());
             }
 
@@ -303,38 +1212,160 @@ public class ReplayableBlockStore implements BlockStore, IsMultiBitClass {
             clearCaches();
         } catch (IOException e) {
             throw new BlockStoreException(e);
-        } catch (ProtocolException e) {
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void truncateFile(long length) throws IOException {
+        try {
+            file.setLength(length);
+        } catch (IOException e) {
+            synchronized (mappedChunks) {
+                if (mappedChunks.isEmpty() && tailChunk == null) {
+                    throw e;
+                }
+            }
+            // Some platforms (Windows) refuse to shorten a file whilst parts
+            // of it are mapped. Mappings are only released when they are
+            // garbage collected so drop them all and try again.
+            log.debug("Could not truncate mapped block store, retrying without mappings", e);
+            unmapChunks();
+            System.gc();
+            file.setLength(length);
+        }
+    }
+
+    /**
+     * Close the block store and its index. The index is only trusted on the
+     * next load if the store was closed.
+     */
+    public void close() throws BlockStoreException {
+        lock.writeLock().lock();
+        try {
+            if (commitTimer != null) {
+                commitTimer.cancel();
+                commitTimer = null;
+            }
+            if (index != null) {
+                commit();
+                heightIndex.save(recordCount);
+                filter.save(recordCount);
+                index.close(readLastRecordChecksum());
+                index = null;
+            }
+            unmapChunks();
+            if (file != null) {
+                file.close();
+            }
+        } catch (IOException e) {
             throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
-    private synchronized void clearCaches() {
-        blockCache.clear();
-        notFoundCache.clear();
+    private void checkOpen() throws BlockStoreException {
+        if (index == null) {
+            throw new BlockStoreException("Block store is closed");
+        }
+    }
+
+    /**
+     * Close the files after a load failed part way through, without saving
+     * the heights or the filter or marking the hash index clean, so that the
+     * next load does not trust them.
+     */
+    private void closeAfterFailedLoad() {
+        if (index != null) {
+            try {
+                index.closeWithoutSaving();
+            } catch (IOException e) {
+                log.error("Failed to close block index", e);
+            }
+            index = null;
+        }
+        unmapChunks();
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                log.error("Failed to close block store", e);
+            }
+        }
     }
 
-    private static class Record {
+    private void clearCaches() {
+        synchronized (blockCache) {
+            blockCache.clear();
+            notFoundCache.clear();
+        }
+    }
+
+    /**
+     * A view of one record in a buffer. Reading a record only notes where it
+     * is - fields are decoded from the buffer when asked for and objects are
+     * only created by {@link #toStoredBlock(NetworkParameters)}, so looking at
+     * a record allocates nothing.
+     * <p>
+     * 
+     * Each record ends with a CRC32 of the rest of the record, see
+     * {@link #isValid()}.
+     */
+    static class Record {
         // A BigInteger representing the total amount of work done so far on
         // this chain. As of May 2011 it takes 8
         // bytes to represent this field, so 16 bytes should be plenty for a
         // long time.
-        private static final int CHAIN_WORK_BYTES = 16;
+        static final int CHAIN_WORK_BYTES = 16;
         private static final byte[] EMPTY_BYTES = new byte[CHAIN_WORK_BYTES];
 
-        private int height; // 4 bytes
-        private byte[] chainWork; // 16 bytes
-        private byte[] blockHeader; // 80 bytes
+        // height (4 bytes), chain work (16 bytes), block header (80 bytes)
+        public static final int DATA_SIZE = 4 + Record.CHAIN_WORK_BYTES + Block.HEADER_SIZE;
+        // followed by the checksum (4 bytes)
+        public static final int SIZE = DATA_SIZE + 4;
+        public static final int CHAIN_WORK_OFFSET = 4;
+        public static final int HEADER_OFFSET = 4 + Record.CHAIN_WORK_BYTES;
+
+        // Offsets of fields within the block header - version (4), previous
+        // block hash (32), merkle root (32), time (4), difficulty target (4),
+        // nonce (4).
+        private static final int PREV_BLOCK_HASH_OFFSET = 4;
+        private static final int TIME_OFFSET = 68;
+
+        private ByteBuffer buffer;
+        private int offset;
+
+        // Records read from the file, rather than viewed in place, are read
+        // into this.
+        private ByteBuffer readBuffer;
 
-        public static final int SIZE = 4 + Record.CHAIN_WORK_BYTES + Block.HEADER_SIZE;
+        private final CRC32 crc = new CRC32();
+        private final byte[] data = new byte[DATA_SIZE];
 
-        public Record() {
-            height = 0;
-            chainWork = new byte[CHAIN_WORK_BYTES];
-            blockHeader = new byte[Block.HEADER_SIZE];
+        public static void write(FileChannel channel, long position, StoredBlock block, ByteBuffer buf) throws IOException {
+            buf.clear();
+            write(buf, block);
+            buf.flip();
+            if (channel.write(buf, position) < Record.SIZE)
+                throw new IOException("Failed to write record!");
+        }
+
+        /**
+         * Write a record, with its checksum, to a buffer backed by an array.
+         */
+        public static void write(ByteBuffer buf, StoredBlock block) {
+            int start = buf.position();
+            writeData(buf, block);
+            CRC32 crc = new CRC32();
+            crc.update(buf.array(), buf.arrayOffset() + start, DATA_SIZE);
+            buf.putInt((int) crc.getValue());
         }
 
-        public static void write(FileChannel channel, StoredBlock block) throws IOException {
-            ByteBuffer buf = ByteBuffer.allocate(Record.SIZE);
+        /**
+         * Write a record without its checksum.
+         */
+        public static void writeData(ByteBuffer buf, StoredBlock block) {
             buf.putInt(block.getHeight());
             byte[] chainWorkBytes = block.getChainWork().toByteArray();
             assert chainWorkBytes.length <= CHAIN_WORK_BYTES : "Ran out of space to store chain work!";
@@ -344,40 +1375,87 @@ public class ReplayableBlockStore implements BlockStore, IsMultiBitClass {
             }
             buf.put(chainWorkBytes);
             buf.put(block.getHeader().bitcoinSerialize());
-            buf.position(0);
-            channel.position(channel.size());
-            if (channel.write(buf) < Record.SIZE)
-                throw new IOException("Failed to write record!");
-            channel.position(channel.size() - Record.SIZE);
         }
 
-        public boolean read(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
-            buffer.position(0);
-            long bytesRead = channel.read(buffer, position);
+        public boolean read(FileChannel channel, long position) throws IOException {
+            if (readBuffer == null) {
+                readBuffer = ByteBuffer.allocate(Record.SIZE);
+            }
+            readBuffer.clear();
+            long bytesRead = channel.read(readBuffer, position);
             if (bytesRead < Record.SIZE)
                 return false;
-            buffer.position(0);
-            height = buffer.getInt();
-            buffer.get(chainWork);
-            buffer.get(blockHeader);
+            read(readBuffer, 0);
             return true;
         }
 
+        /**
+         * View the record at the given offset in the buffer. Only absolute
+         * gets are used so the position of the buffer is not changed.
+         */
+        public void read(ByteBuffer buffer, int offset) {
+            this.buffer = buffer;
+            this.offset = offset;
+        }
+
+        /**
+         * @return true if the checksum matches the rest of the record
+         */
+        public boolean isValid() {
+            crc.reset();
+            if (buffer.hasArray()) {
+                crc.update(buffer.array(), buffer.arrayOffset() + offset, DATA_SIZE);
+            } else {
+                copy(0, data);
+                crc.update(data, 0, DATA_SIZE);
+            }
+            return (int) crc.getValue() == buffer.getInt(offset + DATA_SIZE);
+        }
+
         public BigInteger getChainWork() {
+            byte[] chainWork = new byte[CHAIN_WORK_BYTES];
+            copy(CHAIN_WORK_OFFSET, chainWork);
             return new BigInteger(1, chainWork);
         }
 
         public Block getHeader(NetworkParameters params) throws ProtocolException {
+            byte[] blockHeader = new byte[Block.HEADER_SIZE];
+            copy(HEADER_OFFSET, blockHeader);
             return new Block(params, blockHeader);
         }
 
         public int getHeight() {
-            return height;
+            return buffer.getInt(offset);
+        }
+
+        /**
+         * Copy the hash of the previous block, in the byte order of
+         * {@link Sha256Hash#getBytes()}, into the given 32 byte array.
+         */
+        public void getPrevBlockHash(byte[] hash) {
+            int start = offset + HEADER_OFFSET + PREV_BLOCK_HASH_OFFSET;
+            // Serialized little endian.
+            for (int i = 0; i < hash.length; i++) {
+                hash[hash.length - 1 - i] = buffer.get(start + i);
+            }
+        }
+
+        public long getTimeSeconds() {
+            int start = offset + HEADER_OFFSET + TIME_OFFSET;
+            return (buffer.get(start) & 0xFFL) | ((buffer.get(start + 1) & 0xFFL) << 8)
+                    | ((buffer.get(start + 2) & 0xFFL) << 16) | ((buffer.get(start + 3) & 0xFFL) << 24);
         }
 
         public StoredBlock toStoredBlock(NetworkParameters params) throws ProtocolException {
             return new StoredBlock(getHeader(params), getChainWork(), getHeight());
         }
+
+        private void copy(int fieldOffset, byte[] destination) {
+            int start = offset + fieldOffset;
+            for (int i = 0; i < destination.length; i++) {
+                destination[i] = buffer.get(start + i);
+            }
+        }
     }
 
     public RandomAccessFile getFile() {
@@ -76,6 +76,8 @@ import org.multibit.viewsystem.swing.view.components.MultiBitLabel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.bitcoin.core.ChainHead;
+
 /**
  * StatusBar. <BR>
  * A status bar is made of multiple zones. A zone can be any JComponent.
@@ -151,8 +153,9 @@ public class StatusBar extends JPanel {
                 int blockHeight = -1;
                 if (finalController.getMultiBitService() != null) {
                     if (finalController.getMultiBitService().getChain() != null) {
-                        if (finalController.getMultiBitService().getChain().getChainHead() != null) {
-                            blockHeight = finalController.getMultiBitService().getChain().getChainHead().getHeight();
+                        ChainHead chainHead = finalController.getMultiBitService().getChain().getChainHeadSnapshot();
+                        if (chainHead != null) {
+                            blockHeight = chainHead.getHeight();
                             onlineLabel.setToolTipText(finalController.getLocaliser().getString("multiBitFrame.numberOfBlocks",
                                     new Object[] { "" + blockHeight }));
                         }
@@ -18,6 +18,7 @@ package org.multibit.viewsystem.swing.action;
 import java.awt.Cursor;
 import java.awt.event.ActionEvent;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.AbstractAction;
 import javax.swing.SwingUtilities;
@@ -30,6 +31,8 @@ import org.multibit.viewsystem.swing.MultiBitFrame;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.bitcoin.store.BlockStoreException;
+
 /**
  * exit the application
  * 
@@ -87,18 +90,41 @@ public class ExitAction extends AbstractAction {
             mainFrame.setVisible(false);
         }
 
+        @SuppressWarnings("rawtypes")
+        SwingWorker peerGroupStopper = null;
         if (controller.getMultiBitService() != null && controller.getMultiBitService().getPeerGroup() != null) {
             log.debug("Closing Bitcoin network connection...");
             // controller.updateStatusLabel("Closing Bitcoin network connection...");
-            @SuppressWarnings("rawtypes")
-            SwingWorker worker = new SwingWorker() {
+            peerGroupStopper = new SwingWorker() {
                 @Override
                 protected Object doInBackground() throws Exception {
                     controller.getMultiBitService().getPeerGroup().stop();
                     return null; // return not used
                 }
             };
-            worker.execute();
+            peerGroupStopper.execute();
+        }
+
+        if (controller.getMultiBitService() != null && controller.getMultiBitService().getBlockStore() != null) {
+            // close the block store so that its index is reused at the next
+            // start rather than being rebuilt. The peer group is stopped
+            // first so that it is not adding blocks as the store closes
+            if (peerGroupStopper != null) {
+                try {
+                    peerGroupStopper.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    log.error(e.getMessage(), e);
+                } catch (ExecutionException e) {
+                    log.error(e.getMessage(), e);
+                }
+            }
+            log.debug("Closing block store ...");
+            try {
+                controller.getMultiBitService().getBlockStore().close();
+            } catch (BlockStoreException e) {
+                log.error(e.getMessage(), e);
+            }
         }
 
         if (mainFrame != null) {
@@ -47,8 +47,8 @@ public class CoreTestUtils {
     }
 
     public static class BlockPair {
-        StoredBlock storedBlock;
-        Block block;
+        public StoredBlock storedBlock;
+        public Block block;
     }
 
     // Emulates receiving a valid block that builds on top of the chain.
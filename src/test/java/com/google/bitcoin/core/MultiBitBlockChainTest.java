@@ -23,10 +23,14 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.math.BigInteger;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.multibit.store.ReplayableBlockStore;
 
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.MemoryBlockStore;
@@ -102,6 +106,73 @@ public class MultiBitBlockChainTest {
         assertTrue(wallet.getBalance().compareTo(BigInteger.ZERO) > 0);
     }
 
+    @Test
+    public void receiveCoinsInManyWallets() throws Exception {
+        // Wallets added after the chain was created, and keys added straight to a keychain, are still found.
+        Wallet[] otherWallets = new Wallet[10];
+        for (int i = 0; i < otherWallets.length; i++) {
+            otherWallets[i] = new Wallet(unitTestParams);
+            otherWallets[i].keychain.add(new ECKey());
+            chain.addWallet(otherWallets[i]);
+        }
+        ECKey laterKey = new ECKey();
+        otherWallets[7].keychain.add(laterKey);
+
+        Transaction tx1 = createFakeTx(unitTestParams, Utils.toNanoCoins(1, 0), laterKey.toAddress(unitTestParams));
+        Block b1 = createFakeBlock(unitTestParams, blockStore, tx1).block;
+        chain.add(b1);
+        assertEquals(Utils.toNanoCoins(1, 0), otherWallets[7].getBalance());
+        for (int i = 0; i < otherWallets.length; i++) {
+            if (i != 7) {
+                assertEquals(BigInteger.ZERO, otherWallets[i].getBalance());
+            }
+        }
+        assertEquals(BigInteger.ZERO, wallet.getBalance());
+    }
+
+    @Test
+    public void receiveCoinsWithParallelScan() throws Exception {
+        // A block big enough to be scanned in several chunks, with payments to us in different chunks.
+        Transaction[] transactions = new Transaction[200];
+        for (int i = 0; i < transactions.length; i++) {
+            Address to = new ECKey().toAddress(unitTestParams);
+            if (i == 10 || i == 150) {
+                to = coinbaseTo;
+            }
+            transactions[i] = createFakeTx(unitTestParams, Utils.toNanoCoins(1, 0), to);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            chain.setScanExecutor(executor);
+            Block b1 = createFakeBlock(unitTestParams, blockStore, transactions).block;
+            chain.add(b1);
+            assertEquals(Utils.toNanoCoins(2, 0), wallet.getBalance());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void parallelScanDoesNotLockTheWallets() throws Exception {
+        Transaction[] transactions = new Transaction[200];
+        for (int i = 0; i < transactions.length; i++) {
+            Address to = i == 150 ? coinbaseTo : new ECKey().toAddress(unitTestParams);
+            transactions[i] = createFakeTx(unitTestParams, Utils.toNanoCoins(1, 0), to);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            chain.setScanExecutor(executor);
+            Block b1 = createFakeBlock(unitTestParams, blockStore, transactions).block;
+            // The chunks would wait for this thread, which waits for them, if they asked the wallet.
+            synchronized (wallet) {
+                chain.add(b1);
+            }
+            assertEquals(Utils.toNanoCoins(1, 0), wallet.getBalance());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     @Test
     public void merkleRoots() throws Exception {
         // Test that merkle root verification takes place when a relevant transaction is present and doesn't when
@@ -144,6 +215,53 @@ public class MultiBitBlockChainTest {
         // Add in the middle block.
         assertTrue(chain.add(b2));
         assertEquals(chain.getChainHead().getHeader(), b3.cloneAsHeader());
+        // The snapshot read by the user interface follows the head.
+        ChainHead snapshot = chain.getChainHeadSnapshot();
+        assertEquals(3, snapshot.getHeight());
+        assertEquals(3, chain.getBestChainHeight());
+        assertEquals(b3.getHash(), snapshot.getHash());
+        assertEquals(b3.getTimeSeconds(), snapshot.getTimeSeconds());
+        assertEquals(chain.getChainHead().getChainWork(), snapshot.getChainWork());
+    }
+
+    @Test
+    public void manyUnconnectedBlocks() throws Exception {
+        // Blocks arriving in reverse order all connect, in one cascade, once the first one arrives.
+        Block[] blocks = new Block[20];
+        Block prev = unitTestParams.genesisBlock;
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = prev.createNextBlock(coinbaseTo);
+            prev = blocks[i];
+        }
+        for (int i = blocks.length - 1; i > 0; i--) {
+            assertFalse(chain.add(blocks[i]));
+        }
+        assertEquals(blocks.length - 1, chain.getUnconnectedBlockCount());
+        assertEquals(blocks[1], chain.getUnconnectedBlock());
+        assertTrue(chain.add(blocks[0]));
+        assertEquals(blocks[blocks.length - 1].cloneAsHeader(), chain.getChainHead().getHeader());
+        assertEquals(0, chain.getUnconnectedBlockCount());
+    }
+
+    @Test
+    public void unconnectedBlocksAreBounded() throws Exception {
+        Block first = unitTestParams.genesisBlock.createNextBlock(coinbaseTo);
+        Block prev = first;
+        for (int i = 0; i < UnconnectedBlockPool.MAXIMUM_SIZE + 10; i++) {
+            prev = prev.createNextBlock(coinbaseTo);
+            assertFalse(chain.add(prev));
+        }
+        assertEquals(UnconnectedBlockPool.MAXIMUM_SIZE, chain.getUnconnectedBlockCount());
+        assertEquals(prev, chain.getUnconnectedBlock());
+
+        // Old blocks are dropped too.
+        Utils.rollMockClock((int) (UnconnectedBlockPool.MAXIMUM_AGE_MILLIS / 1000) + 1);
+        try {
+            assertFalse(chain.add(prev.createNextBlock(coinbaseTo)));
+            assertEquals(1, chain.getUnconnectedBlockCount());
+        } finally {
+            Utils.mockTime = null;
+        }
     }
 
     @Test
@@ -174,6 +292,37 @@ public class MultiBitBlockChainTest {
         // Successfully traversed a difficulty transition period.
     }
 
+    @Test
+    public void difficultyTransitionsAfterReplay() throws Exception {
+        // The start of the retarget window is found by height in a ReplayableBlockStore, even once the caches have
+        // been cleared by a replay.
+        File blockStoreFile = File.createTempFile("MultiBitBlockChainTest", null, null);
+        blockStoreFile.deleteOnExit();
+        new File(blockStoreFile.getPath() + ".index").deleteOnExit();
+        new File(blockStoreFile.getPath() + ".heights").deleteOnExit();
+        new File(blockStoreFile.getPath() + ".filter").deleteOnExit();
+        ReplayableBlockStore replayableBlockStore = new ReplayableBlockStore(unitTestParams, blockStoreFile, true);
+        try {
+            MultiBitBlockChain multiBitChain = new MultiBitBlockChain(unitTestParams, wallet, replayableBlockStore);
+            Block prev = unitTestParams.genesisBlock;
+            Block.fakeClock = System.currentTimeMillis() / 1000;
+            for (int i = 0; i < unitTestParams.interval - 1; i++) {
+                Block newBlock = prev.createNextBlock(coinbaseTo, Block.fakeClock);
+                assertTrue(multiBitChain.add(newBlock));
+                prev = newBlock;
+                Block.fakeClock += 2;
+            }
+            multiBitChain.setChainHeadClearCachesAndTruncateBlockStore(multiBitChain.getChainHead());
+
+            Block b = prev.createNextBlock(coinbaseTo, Block.fakeClock);
+            b.setDifficultyTarget(0x201fFFFFL);
+            b.solve();
+            assertTrue(multiBitChain.add(b));
+        } finally {
+            replayableBlockStore.close();
+        }
+    }
+
     @Test
     public void badDifficulty() throws Exception {
         assertTrue(testNetChain.add(getBlock1()));
@@ -233,6 +382,77 @@ public class MultiBitBlockChainTest {
         assertEquals(b3, block[0].getHeader());
     }
 
+    @Test
+    public void reorganizeAndBack() throws Exception {
+        // b2 pays the wallet on the best chain, then a fork off b1 that pays someone else overtakes it.
+        Address someoneElse = new ECKey().toAddress(unitTestParams);
+        Block b1 = unitTestParams.genesisBlock.createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block c2 = b1.createNextBlock(someoneElse);
+        Block c3 = c2.createNextBlock(someoneElse);
+        assertTrue(chain.add(b1));
+        assertTrue(chain.add(b2));
+        assertEquals(Utils.toNanoCoins(100, 0), wallet.getBalance());
+        assertTrue(chain.add(c2));
+        assertTrue(chain.add(c3));
+        assertEquals(Utils.toNanoCoins(50, 0), wallet.getBalance());
+        assertEquals(1, wallet.getPoolSize(WalletTransaction.Pool.UNSPENT));
+        assertEquals(1, wallet.getPoolSize(WalletTransaction.Pool.INACTIVE));
+
+        // Now the chain ending in b2 overtakes again, bringing the transaction in b2 back along with the new ones.
+        Block d3 = b2.createNextBlock(coinbaseTo);
+        Block d4 = d3.createNextBlock(coinbaseTo);
+        assertTrue(chain.add(d3));
+        assertEquals(Utils.toNanoCoins(50, 0), wallet.getBalance());
+        assertTrue(chain.add(d4));
+        assertEquals(d4.cloneAsHeader(), chain.getChainHead().getHeader());
+        assertEquals(Utils.toNanoCoins(200, 0), wallet.getBalance());
+        assertEquals(4, wallet.getPoolSize(WalletTransaction.Pool.UNSPENT));
+        assertEquals(0, wallet.getPoolSize(WalletTransaction.Pool.INACTIVE));
+    }
+
+    @Test
+    public void metrics() throws Exception {
+        // Two blocks on the main chain, then a fork off b1 that overtakes it.
+        Block b1 = unitTestParams.genesisBlock.createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block c2 = b1.createNextBlock(coinbaseTo);
+        Block c3 = c2.createNextBlock(coinbaseTo);
+        Block unconnected = c3.createNextBlock(coinbaseTo).createNextBlock(coinbaseTo);
+        assertTrue(chain.add(b1));
+        assertTrue(chain.add(b2));
+        assertTrue(chain.add(c2));
+        assertTrue(chain.add(c3));
+        assertEquals(c3, chain.getChainHead().getHeader());
+        assertFalse(chain.add(unconnected));
+        assertTrue(chain.add(c3));
+
+        BlockChainMetrics metrics = chain.getMetrics();
+        assertEquals(4, metrics.getBlocksAdded());
+        assertEquals(1, metrics.getReorganizeCount());
+        assertEquals(1, metrics.getLastReorganizeDepth());
+        assertEquals(1, metrics.getMaximumReorganizeDepth());
+        assertEquals(1, metrics.getUnconnectedBlockCount());
+        // The duplicate add of the chain head is not processed at all.
+        assertEquals(5, metrics.getHeaderVerificationCount());
+        assertEquals(5, metrics.getRelevanceScanCount());
+        // Every block pays the wallet so all of them have their merkle root checked.
+        assertEquals(5, metrics.getMerkleVerificationCount());
+        assertEquals(5, metrics.getStoreGetCount());
+        assertEquals(4, metrics.getStorePutCount());
+        assertTrue(Double.isNaN(metrics.getStoreCacheHitRatio()));
+
+        LatencyHistogram histogram = new LatencyHistogram("Test");
+        for (int i = 0; i < 99; i++)
+            histogram.record(1000);
+        histogram.record(1000 * 1000 * 1000);
+        assertEquals(100, histogram.getCount());
+        assertEquals(2, histogram.getMedianMicros());
+        assertEquals(2, histogram.get99thPercentileMicros());
+        assertEquals(1000 * 1000, histogram.getMaxMicros());
+        assertEquals(1000 * 1000, histogram.getPercentileMicros(1.0));
+    }
+
     // Some blocks from the test net.
     private Block getBlock2() throws Exception {
         Block b2 = new Block(testNet);
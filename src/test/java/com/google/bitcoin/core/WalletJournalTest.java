@@ -0,0 +1,219 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import static com.google.bitcoin.core.CoreTestUtils.createFakeBlock;
+import static com.google.bitcoin.core.CoreTestUtils.createFakeTx;
+import static com.google.bitcoin.core.Utils.toNanoCoins;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.math.BigInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.MemoryBlockStore;
+
+public class WalletJournalTest {
+    static final NetworkParameters params = NetworkParameters.unitTests();
+
+    private File walletFile;
+    private File journalFile;
+    private File temporaryFile;
+    private File backupFile;
+    private Wallet wallet;
+    private ECKey myKey;
+    private BlockStore blockStore;
+
+    @Before
+    public void setUp() throws Exception {
+        walletFile = File.createTempFile("WalletJournalTest", ".wallet");
+        journalFile = WalletJournal.journalFileFor(walletFile);
+        temporaryFile = new File(walletFile.getPath() + WalletJournal.TEMPORARY_SUFFIX);
+        backupFile = new File(walletFile.getPath() + WalletJournal.BACKUP_SUFFIX);
+        myKey = new ECKey();
+        wallet = new Wallet(params);
+        wallet.addKey(myKey);
+        blockStore = new MemoryBlockStore(params);
+    }
+
+    @After
+    public void tearDown() {
+        walletFile.delete();
+        journalFile.delete();
+        temporaryFile.delete();
+        backupFile.delete();
+    }
+
+    @Test
+    public void savesAppendChangesOnly() throws Exception {
+        WalletJournal journal = new WalletJournal(walletFile);
+        journal.save(wallet);
+        long walletLength = walletFile.length();
+        long journalLength = journalFile.length();
+
+        // Nothing is written when nothing changed.
+        journal.save(wallet);
+        assertEquals(journalLength, journalFile.length());
+
+        Transaction t1 = receive(toNanoCoins(1, 0));
+        ECKey newKey = new ECKey();
+        wallet.keychain.add(newKey);
+        journal.save(wallet);
+        assertEquals(walletLength, walletFile.length());
+        assertTrue(journalFile.length() > journalLength);
+
+        // A spend moves t1 to the spent pool and adds a pending transaction.
+        Transaction send = wallet.createSend(new ECKey().toAddress(params), toNanoCoins(0, 50), BigInteger.ZERO);
+        wallet.commitTx(send);
+        journal.save(wallet);
+        assertEquals(walletLength, walletFile.length());
+
+        Wallet loaded = new WalletJournal(walletFile).load();
+        assertEquals(2, loaded.keychain.size());
+        assertNotNull(loaded.findKeyFromPubKey(newKey.getPubKey()));
+        assertEquals(1, loaded.getPoolSize(WalletTransaction.Pool.SPENT));
+        assertEquals(1, loaded.getPoolSize(WalletTransaction.Pool.PENDING));
+        assertTrue(loaded.spent.containsKey(t1.getHash()));
+        assertEquals(wallet.getBalance(Wallet.BalanceType.ESTIMATED), loaded.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertTrue(loaded.isConsistent());
+    }
+
+    @Test
+    public void partialSaveIsDiscarded() throws Exception {
+        WalletJournal journal = new WalletJournal(walletFile);
+        journal.save(wallet);
+        receive(toNanoCoins(1, 0));
+        journal.save(wallet);
+        long journalLength = journalFile.length();
+
+        // A save cut short leaves part of a batch at the end of the journal.
+        FileOutputStream out = new FileOutputStream(journalFile, true);
+        out.write(new byte[] { 2, 0, 0, 1, 0, 42 });
+        out.close();
+
+        Wallet loaded = new WalletJournal(walletFile).load();
+        assertEquals(toNanoCoins(1, 0), loaded.getBalance());
+        assertEquals(journalLength, journalFile.length());
+    }
+
+    @Test
+    public void journalOfAnotherSnapshotIsIgnored() throws Exception {
+        WalletJournal journal = new WalletJournal(walletFile);
+        journal.save(wallet);
+        receive(toNanoCoins(1, 0));
+        journal.save(wallet);
+
+        // The wallet is replaced by one written without the journal.
+        Wallet other = new Wallet(params);
+        other.addKey(myKey);
+        other.saveToFile(walletFile);
+
+        WalletJournal reloaded = new WalletJournal(walletFile);
+        Wallet loaded = reloaded.load();
+        assertEquals(BigInteger.ZERO, loaded.getBalance());
+
+        // The next save starts again from a snapshot, and later saves are journaled against it.
+        wallet = loaded;
+        reloaded.save(wallet);
+        receive(toNanoCoins(2, 0));
+        reloaded.save(wallet);
+        assertEquals(toNanoCoins(2, 0), new WalletJournal(walletFile).load().getBalance());
+    }
+
+    @Test
+    public void compactsOnceTheJournalIsBig() throws Exception {
+        WalletJournal journal = new WalletJournal(walletFile);
+        journal.save(wallet);
+        long walletLength = walletFile.length();
+        while (journalFile.length() <= WalletJournal.MINIMUM_COMPACTION_SIZE) {
+            receive(toNanoCoins(0, 1));
+            journal.save(wallet);
+        }
+        assertEquals(walletLength, walletFile.length());
+
+        journal.save(wallet);
+        assertTrue(walletFile.length() > walletLength);
+        assertTrue(journalFile.length() < WalletJournal.MINIMUM_COMPACTION_SIZE);
+        assertEquals(wallet.getBalance(), new WalletJournal(walletFile).load().getBalance());
+    }
+
+    @Test
+    public void interruptedCompactionIsRecoveredFromTheOldSnapshot() throws Exception {
+        WalletJournal journal = new WalletJournal(walletFile);
+        journal.save(wallet);
+        receive(toNanoCoins(1, 0));
+        journal.save(wallet);
+
+        // Cut short after moving the old snapshot aside, before the new one was written out in full.
+        assertTrue(walletFile.renameTo(backupFile));
+
+        Wallet loaded = new WalletJournal(walletFile).load();
+        assertEquals(toNanoCoins(1, 0), loaded.getBalance());
+        assertTrue(walletFile.exists());
+        assertFalse(backupFile.exists());
+    }
+
+    @Test
+    public void interruptedCompactionIsRecoveredFromTheNewSnapshot() throws Exception {
+        WalletJournal journal = new WalletJournal(walletFile);
+        journal.save(wallet);
+        byte[] oldSnapshot = readFile(walletFile);
+        while (walletFile.length() == oldSnapshot.length) {
+            receive(toNanoCoins(0, 1));
+            journal.save(wallet);
+        }
+
+        // Cut short between moving the old snapshot aside and renaming the new one into place. The journal belongs to
+        // the new snapshot, so only that one gives the whole balance.
+        assertTrue(walletFile.renameTo(temporaryFile));
+        FileOutputStream out = new FileOutputStream(backupFile);
+        out.write(oldSnapshot);
+        out.close();
+
+        Wallet loaded = new WalletJournal(walletFile).load();
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+        assertFalse(temporaryFile.exists());
+        assertFalse(backupFile.exists());
+    }
+
+    private static byte[] readFile(File file) throws Exception {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private Transaction receive(BigInteger value) throws Exception {
+        Transaction tx = createFakeTx(params, value, myKey.toAddress(params));
+        wallet.receiveFromBlock(tx, createFakeBlock(params, blockStore, tx).storedBlock,
+                BlockChain.NewBlockType.BEST_CHAIN);
+        return tx;
+    }
+}
@@ -24,6 +24,9 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
 import java.math.BigInteger;
 import java.util.HashSet;
 import java.util.List;
@@ -84,6 +87,20 @@ public class WalletTest {
         assertEquals(2, wallet.getPoolSize(WalletTransaction.Pool.ALL));
     }
 
+    @Test
+    public void excessWithinSelectorAllowanceIsFee() throws Exception {
+        // A coin selector allowing some excess over the target means a close enough spend needs no change output.
+        BigInteger v1 = Utils.toNanoCoins(1, 0);
+        wallet.receiveFromBlock(createFakeTx(params, v1, myAddress), null, BlockChain.NewBlockType.BEST_CHAIN);
+        wallet.setCoinSelector(new BranchAndBoundCoinSelector(toNanoCoins(0, 1), new OldestFirstCoinSelector()));
+
+        Transaction closeEnough = wallet.createSend(new ECKey().toAddress(params), toNanoCoins(0, 99), BigInteger.ZERO);
+        assertEquals(1, closeEnough.getOutputs().size());
+
+        Transaction tooFar = wallet.createSend(new ECKey().toAddress(params), toNanoCoins(0, 98), BigInteger.ZERO);
+        assertEquals(2, tooFar.getOutputs().size());
+    }
+
     @Test
     public void customTransactionSpending() throws Exception {
         // We'll set up a wallet that receives a coin, then sends a coin of lesser value and keeps the change.
@@ -252,6 +269,33 @@ public class WalletTest {
         assertEquals(BigInteger.ZERO.subtract(toNanoCoins(0, 10)), send2.getValue(wallet));
     }
 
+    @Test
+    public void balancesKeptAsTransactionsMove() throws Exception {
+        Transaction t1 = createFakeTx(params, toNanoCoins(2, 0), myAddress);
+        wallet.receiveFromBlock(t1, createFakeBlock(params, blockStore, t1).storedBlock, BlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(toNanoCoins(2, 0), wallet.getBalance(Wallet.BalanceType.AVAILABLE));
+        assertEquals(toNanoCoins(2, 0), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertTrue(wallet.isConsistent());
+
+        // Send 0.50 and keep the change, which is only in the estimated balance until the send is in a block.
+        Transaction send = wallet.createSend(new ECKey().toAddress(params), toNanoCoins(0, 50), BigInteger.ZERO);
+        wallet.commitTx(send);
+        assertEquals(BigInteger.ZERO, wallet.getBalance(Wallet.BalanceType.AVAILABLE));
+        assertEquals(toNanoCoins(1, 50), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertTrue(wallet.isConsistent());
+
+        wallet.receiveFromBlock(send, createFakeBlock(params, blockStore, send).storedBlock,
+                BlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(toNanoCoins(1, 50), wallet.getBalance(Wallet.BalanceType.AVAILABLE));
+        assertEquals(toNanoCoins(1, 50), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertTrue(wallet.isConsistent());
+
+        // Clearing the transactions starts again from nothing.
+        wallet.clearTransactions(0);
+        assertEquals(BigInteger.ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertTrue(wallet.isConsistent());
+    }
+
     @Test
     public void transactions() throws Exception {
         // This test covers a bug in which Transaction.getValueSentFromMe was calculating incorrectly.
@@ -560,6 +604,109 @@ public class WalletTest {
         assertEquals(now + 60, wallet.getEarliestKeyCreationTime());
     }
     
+    @Test
+    public void coinSelection() throws Exception {
+        // Receive 5, 1 and 2 coins in that order.
+        Transaction t1 = createFakeTx(params, toNanoCoins(5, 0), myAddress);
+        Transaction t2 = createFakeTx(params, toNanoCoins(1, 0), myAddress);
+        Transaction t3 = createFakeTx(params, toNanoCoins(2, 0), myAddress);
+        wallet.receiveFromBlock(t1, createFakeBlock(params, blockStore, t1).storedBlock, BlockChain.NewBlockType.BEST_CHAIN);
+        wallet.receiveFromBlock(t2, createFakeBlock(params, blockStore, t2).storedBlock, BlockChain.NewBlockType.BEST_CHAIN);
+        wallet.receiveFromBlock(t3, createFakeBlock(params, blockStore, t3).storedBlock, BlockChain.NewBlockType.BEST_CHAIN);
+        Address address = new ECKey().toAddress(params);
+
+        // By default outputs adding up to the value exactly are spent, so there is no change.
+        Transaction send = wallet.createSend(address, toNanoCoins(3, 0), BigInteger.ZERO);
+        assertEquals(2, send.getInputs().size());
+        assertEquals(1, send.getOutputs().size());
+
+        wallet.setCoinSelector(new OldestFirstCoinSelector());
+        send = wallet.createSend(address, toNanoCoins(0, 50), BigInteger.ZERO);
+        assertEquals(1, send.getInputs().size());
+        assertTrue(send.getInputs().get(0).getOutpoint().fromTx == t1);
+
+        wallet.setCoinSelector(new SmallestFirstCoinSelector());
+        send = wallet.createSend(address, toNanoCoins(0, 50), BigInteger.ZERO);
+        assertEquals(1, send.getInputs().size());
+        assertTrue(send.getInputs().get(0).getOutpoint().fromTx == t2);
+
+        // Spent outputs are not chosen again.
+        wallet.commitTx(send);
+        send = wallet.createSend(address, toNanoCoins(0, 50), BigInteger.ZERO);
+        assertTrue(send.getInputs().get(0).getOutpoint().fromTx == t3);
+        assertNull(wallet.createSend(address, toNanoCoins(7, 1), BigInteger.ZERO));
+    }
+
+    @Test
+    public void findKeys() throws Exception {
+        assertEquals(myKey, wallet.findKeyFromPubHash(myKey.getPubKeyHash()));
+        assertEquals(myKey, wallet.findKeyFromPubKey(myKey.getPubKey()));
+
+        // Keys added straight to the keychain are found too.
+        ECKey key = new ECKey();
+        assertFalse(wallet.isPubKeyHashMine(key.getPubKeyHash()));
+        assertFalse(wallet.isPubKeyMine(key.getPubKey()));
+        wallet.keychain.add(key);
+        assertTrue(wallet.isPubKeyHashMine(key.getPubKeyHash()));
+        assertTrue(wallet.isPubKeyMine(key.getPubKey()));
+
+        // As are keys in a wallet that has been saved and loaded.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        wallet.saveToFileStream(bytes);
+        Wallet loaded = Wallet.loadFromFileStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertTrue(loaded.isPubKeyHashMine(myKey.getPubKeyHash()));
+        assertTrue(loaded.isPubKeyMine(key.getPubKey()));
+
+        // And a keychain changed other than by adding keys is indexed again.
+        wallet.keychain.remove(key);
+        assertFalse(wallet.isPubKeyHashMine(key.getPubKeyHash()));
+        assertNull(wallet.findKeyFromPubKey(key.getPubKey()));
+        assertTrue(wallet.isPubKeyMine(myKey.getPubKey()));
+    }
+
+    @Test
+    public void binaryRoundTrip() throws Exception {
+        myKey.setCreationTimeSeconds(1234567890L);
+        Transaction t1 = createFakeTx(params, toNanoCoins(2, 0), myAddress);
+        StoredBlock b1 = createFakeBlock(params, blockStore, t1).storedBlock;
+        wallet.receiveFromBlock(t1, b1, BlockChain.NewBlockType.BEST_CHAIN);
+        Transaction send = wallet.createSend(new ECKey().toAddress(params), toNanoCoins(0, 50), BigInteger.ZERO);
+        wallet.commitTx(send);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        wallet.saveToFileStream(bytes);
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes.toByteArray());
+        assertTrue(BinaryWalletSerializer.isBinaryWallet(in));
+        Wallet loaded = Wallet.loadFromFileStream(in);
+
+        assertEquals(1234567890L, loaded.findKeyFromPubKey(myKey.getPubKey()).getCreationTimeSeconds());
+        assertEquals(1, loaded.getPoolSize(WalletTransaction.Pool.SPENT));
+        assertEquals(1, loaded.getPoolSize(WalletTransaction.Pool.PENDING));
+        assertEquals(wallet.getBalance(Wallet.BalanceType.AVAILABLE), loaded.getBalance(Wallet.BalanceType.AVAILABLE));
+        assertEquals(wallet.getBalance(Wallet.BalanceType.ESTIMATED), loaded.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertTrue(loaded.isConsistent());
+
+        Transaction loadedT1 = loaded.spent.get(t1.getHash());
+        assertEquals(TransactionConfidence.ConfidenceType.BUILDING, loadedT1.getConfidence().getConfidenceType());
+        assertEquals(b1.getHeight(), loadedT1.getConfidence().getAppearedAtChainHeight());
+        assertTrue(loadedT1.getAppearsInHashes().contains(b1.getHeader().getHash()));
+
+        // The pending spend is connected to the output it spends again.
+        TransactionInput input = loaded.pending.get(send.getHash()).getInputs().get(0);
+        assertTrue(input.getOutpoint().fromTx == loadedT1);
+        assertTrue(loadedT1.getOutputs().get((int) input.getOutpoint().getIndex()).getSpentBy() == input);
+
+        // Wallets saved with Java serialization by older versions still load.
+        bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(wallet);
+        oos.close();
+        in = new ByteArrayInputStream(bytes.toByteArray());
+        assertFalse(BinaryWalletSerializer.isBinaryWallet(in));
+        loaded = Wallet.loadFromFileStream(in);
+        assertEquals(wallet.getBalance(Wallet.BalanceType.ESTIMATED), loaded.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
     @Test
     public void transactionAppearsInMigration() throws Exception {
         // Test migration from appearsIn to appearsInHashes
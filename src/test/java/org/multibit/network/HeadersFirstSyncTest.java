@@ -0,0 +1,126 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.multibit.store.ReplayableBlockStore;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.MultiBitBlockChain;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.VerificationException;
+
+public class HeadersFirstSyncTest {
+    // Short enough not to reach a difficulty transition.
+    private static final int CHAIN_LENGTH = 8;
+
+    private NetworkParameters params;
+    private File blockStoreFile;
+    private ReplayableBlockStore blockStore;
+    private MultiBitBlockChain chain;
+    private InProcessPeer peer;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.unitTests();
+        blockStoreFile = File.createTempFile("HeadersFirstSyncTest", null, null);
+        blockStoreFile.deleteOnExit();
+        new File(blockStoreFile.getPath() + ".index").deleteOnExit();
+        new File(blockStoreFile.getPath() + ".heights").deleteOnExit();
+        new File(blockStoreFile.getPath() + ".filter").deleteOnExit();
+        blockStore = new ReplayableBlockStore(params, blockStoreFile, true);
+        chain = new MultiBitBlockChain(params, blockStore);
+
+        peer = new InProcessPeer(params);
+        long timeSeconds = params.genesisBlock.getTimeSeconds();
+        for (int i = 1; i <= CHAIN_LENGTH; i++) {
+            timeSeconds += 600;
+            peer.mine(timeSeconds);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        blockStore.close();
+    }
+
+    @Test
+    public void testHeadersUpToFullBlocks() throws Exception {
+        HeadersFirstSync sync = new HeadersFirstSync(params, chain);
+        sync.setMaximumHeaders(3);
+
+        // Headers stop short of the first block needed in full.
+        assertEquals(5, sync.downloadHeaders(peer, peer.getBlock(6).getTimeSeconds()));
+        assertEquals(5, chain.getBestChainHeight());
+        assertEquals(2, peer.getHeaderRequests());
+        for (int height = 1; height <= 5; height++) {
+            assertEquals(peer.getBlock(height).getHash(), blockStore.getBlockAtHeight(height).getHeader().getHash());
+        }
+
+        // The batches were flushed so the headers survive a restart.
+        blockStore.close();
+        blockStore = new ReplayableBlockStore(params, blockStoreFile, false);
+        assertEquals(peer.getBlock(5).getHash(), blockStore.getChainHead().getHeader().getHash());
+        chain = new MultiBitBlockChain(params, blockStore);
+
+        // Then carry on to the end of what the peer has.
+        sync = new HeadersFirstSync(params, chain);
+        sync.setMaximumHeaders(3);
+        assertEquals(3, sync.downloadHeaders(peer, Long.MAX_VALUE));
+        assertEquals(CHAIN_LENGTH, chain.getBestChainHeight());
+        assertEquals(0, sync.downloadHeaders(peer, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testLocator() throws Exception {
+        HeadersFirstSync sync = new HeadersFirstSync(params, chain);
+        sync.downloadHeaders(peer, Long.MAX_VALUE);
+        List<Sha256Hash> locator = sync.buildLocator(chain.getChainHead());
+        assertEquals(CHAIN_LENGTH + 1, locator.size());
+        assertEquals(peer.getBlock(CHAIN_LENGTH).getHash(), locator.get(0));
+        assertEquals(params.genesisBlock.getHash(), locator.get(CHAIN_LENGTH));
+    }
+
+    @Test
+    public void testHeadersThatDoNotConnect() throws Exception {
+        HeaderSource gappy = new HeaderSource() {
+            public List<Block> getHeaders(List<Sha256Hash> locator, int maximumHeaders) {
+                List<Block> headers = new ArrayList<Block>();
+                headers.add(peer.getBlock(1).cloneAsHeader());
+                headers.add(peer.getBlock(3).cloneAsHeader());
+                return headers;
+            }
+        };
+        try {
+            new HeadersFirstSync(params, chain).downloadHeaders(gappy, Long.MAX_VALUE);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        // Nothing from the bad batch was added.
+        assertEquals(0, chain.getBestChainHeight());
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.CoreTestUtils;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.MemoryBlockStore;
+
+/**
+ * Stands in for a peer in tests, serving a chain of blocks it mines itself
+ * without any networking. It can be told to stall, in which case blocks asked
+ * for never arrive.
+ */
+public class InProcessPeer implements HeaderSource, BlockSource {
+    private final NetworkParameters params;
+    private final MemoryBlockStore blockStore;
+
+    // The chain from the genesis block up, and the height of each block.
+    private final List<Block> blocks = new ArrayList<Block>();
+    private final Map<Sha256Hash, Integer> heights = new HashMap<Sha256Hash, Integer>();
+
+    private int headerRequests;
+    private int blockRequests;
+    private boolean stalled;
+
+    public InProcessPeer(NetworkParameters params) {
+        this.params = params;
+        this.blockStore = new MemoryBlockStore(params);
+        add(params.genesisBlock);
+    }
+
+    /**
+     * Create a peer serving the same chain as another.
+     */
+    public InProcessPeer(InProcessPeer other) {
+        this.params = other.params;
+        this.blockStore = other.blockStore;
+        synchronized (other) {
+            for (Block block : other.blocks) {
+                add(block);
+            }
+        }
+    }
+
+    /**
+     * Mine a block with the given time on top of the chain.
+     */
+    public synchronized Block mine(long timeSeconds) throws BlockStoreException {
+        Block block = CoreTestUtils.createFakeBlock(params, blockStore, timeSeconds).block;
+        add(block);
+        return block;
+    }
+
+    /**
+     * Stop sending blocks, or start again.
+     */
+    public synchronized void setStalled(boolean stalled) {
+        this.stalled = stalled;
+    }
+
+    /**
+     * @return the block at the given height
+     */
+    public synchronized Block getBlock(int height) {
+        return blocks.get(height);
+    }
+
+    /**
+     * @return the number of times headers have been asked for
+     */
+    public synchronized int getHeaderRequests() {
+        return headerRequests;
+    }
+
+    /**
+     * @return the number of blocks asked for
+     */
+    public synchronized int getBlockRequests() {
+        return blockRequests;
+    }
+
+    public synchronized Future<Block> getBlock(Sha256Hash hash) {
+        blockRequests++;
+        Integer height = heights.get(hash);
+        final Block block = height == null ? null : blocks.get(height);
+        FutureTask<Block> future = new FutureTask<Block>(new Callable<Block>() {
+            public Block call() {
+                return block;
+            }
+        });
+        if (!stalled) {
+            future.run();
+        }
+        return future;
+    }
+
+    public synchronized List<Block> getHeaders(List<Sha256Hash> locator, int maximumHeaders) {
+        headerRequests++;
+        for (Sha256Hash hash : locator) {
+            Integer height = heights.get(hash);
+            if (height != null) {
+                int from = height + 1;
+                int to = Math.min(blocks.size(), from + maximumHeaders);
+                List<Block> headers = new ArrayList<Block>();
+                for (Block block : blocks.subList(from, to)) {
+                    headers.add(block.cloneAsHeader());
+                }
+                return headers;
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    private void add(Block block) {
+        heights.put(block.getHash(), blocks.size());
+        blocks.add(block);
+    }
+}
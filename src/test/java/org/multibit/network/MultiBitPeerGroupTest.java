@@ -0,0 +1,127 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.multibit.Localiser;
+import org.multibit.controller.MultiBitController;
+import org.multibit.model.MultiBitModel;
+
+import com.google.bitcoin.core.BlockChain;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.store.MemoryBlockStore;
+
+public class MultiBitPeerGroupTest {
+    private static final long KEY_TIME_SECS = 1330000000;
+
+    private NetworkParameters params;
+    private MultiBitController controller;
+    private BlockChain chain;
+    private MultiBitPeerGroup peerGroup;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.unitTests();
+        controller = new MultiBitController();
+        controller.setLocaliser(new Localiser());
+        controller.setModel(new MultiBitModel(controller));
+        chain = new BlockChain(params, new MemoryBlockStore(params));
+        peerGroup = new MultiBitPeerGroup(controller, params, chain);
+    }
+
+    @Test
+    public void testFullBlocksFromEarliestKey() throws Exception {
+        Wallet wallet1 = new Wallet(params);
+        wallet1.addKey(createKey(KEY_TIME_SECS));
+        controller.getModel().addWallet(wallet1, "wallet1");
+        assertEquals(KEY_TIME_SECS - MultiBitPeerGroup.KEY_TIME_MARGIN_SECS, peerGroup.getFullBlocksFromTimeSecs());
+
+        // An older key in another wallet moves the time back.
+        Wallet wallet2 = new Wallet(params);
+        wallet2.addKey(createKey(KEY_TIME_SECS + 1000));
+        wallet2.addKey(createKey(KEY_TIME_SECS - 1000));
+        controller.getModel().addWallet(wallet2, "wallet2");
+        assertEquals(KEY_TIME_SECS - 1000 - MultiBitPeerGroup.KEY_TIME_MARGIN_SECS,
+                peerGroup.getFullBlocksFromTimeSecs());
+
+        // An imported key with no date needs every block in full.
+        wallet1.addKey(createKey(0));
+        assertEquals(0, peerGroup.getFullBlocksFromTimeSecs());
+    }
+
+    @Test
+    public void testParallelDownloadWaitsForPeers() throws Exception {
+        final InProcessPeer source = new InProcessPeer(params);
+        long timeSeconds = params.genesisBlock.getTimeSeconds();
+        for (int i = 1; i <= 4; i++) {
+            timeSeconds += 600;
+            source.mine(timeSeconds);
+        }
+        peerGroup.setParallelBlockDownload(true);
+        peerGroup.setHeaderSource(source);
+
+        // The download is started before any peers have connected, as a
+        // replay of the blockchain does.
+        Thread download = new Thread() {
+            @Override
+            public void run() {
+                peerGroup.downloadBlockChain();
+            }
+        };
+        download.start();
+        InProcessPeer peer1 = new InProcessPeer(source);
+        InProcessPeer peer2 = new InProcessPeer(source);
+        Thread.sleep(100);
+        peerGroup.peerConnected(peer1);
+        Thread.sleep(100);
+        peerGroup.peerConnected(peer2);
+        download.join(10 * 1000);
+
+        assertFalse(download.isAlive());
+        assertEquals(4, chain.getBestChainHeight());
+        assertTrue(peer1.getBlockRequests() > 0);
+        assertTrue(peer2.getBlockRequests() > 0);
+    }
+
+    @Test
+    public void testParallelDownloadGivesUpWaitingForPeers() throws Exception {
+        InProcessPeer source = new InProcessPeer(params);
+        source.mine(params.genesisBlock.getTimeSeconds() + 600);
+        InProcessPeer peer1 = new InProcessPeer(source);
+        peerGroup.setParallelBlockDownload(true);
+        peerGroup.setHeaderSource(source);
+        peerGroup.setPeerWaitMillis(50);
+        peerGroup.peerConnected(peer1);
+
+        // One peer is not enough, so the blocks are left to the download peer.
+        peerGroup.downloadBlockChain();
+        assertEquals(0, chain.getBestChainHeight());
+        assertEquals(0, peer1.getBlockRequests());
+    }
+
+    private static ECKey createKey(long creationTimeSeconds) {
+        ECKey key = new ECKey();
+        key.setCreationTimeSeconds(creationTimeSeconds);
+        return key;
+    }
+}
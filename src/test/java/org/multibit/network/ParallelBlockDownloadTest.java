@@ -0,0 +1,116 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.bitcoin.core.BlockChain;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.store.MemoryBlockStore;
+
+public class ParallelBlockDownloadTest {
+    // Short enough not to reach a difficulty transition.
+    private static final int CHAIN_LENGTH = 8;
+
+    private NetworkParameters params;
+    private BlockChain chain;
+    private InProcessPeer peer;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.unitTests();
+        chain = new BlockChain(params, new MemoryBlockStore(params));
+
+        peer = new InProcessPeer(params);
+        long timeSeconds = params.genesisBlock.getTimeSeconds();
+        for (int i = 1; i <= CHAIN_LENGTH; i++) {
+            timeSeconds += 600;
+            peer.mine(timeSeconds);
+        }
+    }
+
+    @Test
+    public void testBlocksComeFromEveryPeer() throws Exception {
+        InProcessPeer peer1 = new InProcessPeer(peer);
+        InProcessPeer peer2 = new InProcessPeer(peer);
+        InProcessPeer peer3 = new InProcessPeer(peer);
+        ParallelBlockDownload download = new ParallelBlockDownload(params, chain);
+        download.setMaximumInFlightPerSource(2);
+
+        assertEquals(CHAIN_LENGTH, download.download(peer, Arrays.asList(peer1, peer2, peer3)));
+        assertEquals(CHAIN_LENGTH, chain.getBestChainHeight());
+        assertEquals(peer.getBlock(CHAIN_LENGTH).getHash(), chain.getChainHead().getHeader().getHash());
+        assertTrue(peer1.getBlockRequests() > 0);
+        assertTrue(peer2.getBlockRequests() > 0);
+        assertTrue(peer3.getBlockRequests() > 0);
+    }
+
+    @Test
+    public void testStalledPeerIsReassigned() throws Exception {
+        InProcessPeer stalled = new InProcessPeer(peer);
+        stalled.setStalled(true);
+        InProcessPeer working = new InProcessPeer(peer);
+        ParallelBlockDownload download = new ParallelBlockDownload(params, chain);
+        download.setMaximumInFlightPerSource(2);
+        download.setStallTimeoutMillis(20);
+
+        assertEquals(CHAIN_LENGTH, download.download(peer, Arrays.asList(stalled, working)));
+        assertEquals(CHAIN_LENGTH, chain.getBestChainHeight());
+        assertTrue(stalled.getBlockRequests() > 0);
+    }
+
+    @Test
+    public void testStopsOnSideChain() throws Exception {
+        ParallelBlockDownload download = new ParallelBlockDownload(params, chain);
+        download.download(peer, Arrays.asList(new InProcessPeer(peer)));
+
+        // A peer on a shorter chain of its own only has a side chain to
+        // offer, which must not be asked for over and over.
+        InProcessPeer shorter = new InProcessPeer(params);
+        long timeSeconds = params.genesisBlock.getTimeSeconds() + 1;
+        for (int i = 1; i <= 3; i++) {
+            timeSeconds += 600;
+            shorter.mine(timeSeconds);
+        }
+        download.download(shorter, Arrays.asList(shorter));
+        assertEquals(CHAIN_LENGTH, chain.getBestChainHeight());
+        assertEquals(peer.getBlock(CHAIN_LENGTH).getHash(), chain.getChainHead().getHeader().getHash());
+        assertEquals(1, shorter.getHeaderRequests());
+    }
+
+    @Test
+    public void testGivesUpWithoutPeers() throws Exception {
+        InProcessPeer stalled = new InProcessPeer(peer);
+        stalled.setStalled(true);
+        ParallelBlockDownload download = new ParallelBlockDownload(params, chain);
+        download.setStallTimeoutMillis(20);
+        try {
+            download.download(peer, Arrays.asList(stalled));
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertEquals(0, chain.getBestChainHeight());
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.multibit.store.ReplayableBlockStore;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.StoredBlock;
+
+public class ReplayHeaderSourceTest {
+    @Test
+    public void testServesHeadersAfterTheReplayPoint() throws Exception {
+        File temporaryBlockStore = File.createTempFile("ReplayHeaderSourceTest", null, null);
+        temporaryBlockStore.deleteOnExit();
+        for (String suffix : new String[] { ".index", ".heights", ".filter" }) {
+            new File(temporaryBlockStore.getPath() + suffix).deleteOnExit();
+        }
+
+        NetworkParameters networkParameters = NetworkParameters.unitTests();
+        Address toAddress = new ECKey().toAddress(networkParameters);
+
+        ReplayableBlockStore store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, true);
+        StoredBlock[] blocks = new StoredBlock[11];
+        blocks[0] = store.getChainHead();
+        for (int i = 1; i < blocks.length; i++) {
+            blocks[i] = blocks[i - 1].build(blocks[i - 1].getHeader().createNextBlock(toAddress).cloneAsHeader());
+            store.put(blocks[i]);
+            store.setChainHead(blocks[i]);
+        }
+
+        ReplayHeaderSource source = ReplayHeaderSource.fromStore(store, 3);
+        List<Block> headers = source.getHeaders(
+                Arrays.asList(blocks[3].getHeader().getHash(), blocks[0].getHeader().getHash()), 100);
+        assertEquals(7, headers.size());
+        assertEquals(blocks[4].getHeader().getHash(), headers.get(0).getHash());
+        assertEquals(blocks[10].getHeader().getHash(), headers.get(6).getHash());
+
+        headers = source.getHeaders(Arrays.asList(blocks[5].getHeader().getHash()), 2);
+        assertEquals(2, headers.size());
+        assertEquals(blocks[6].getHeader().getHash(), headers.get(0).getHash());
+
+        // Nothing after the old chain head, or for blocks it never had.
+        assertTrue(source.getHeaders(Arrays.asList(blocks[10].getHeader().getHash()), 100).isEmpty());
+        assertTrue(source.getHeaders(Arrays.asList(blocks[1].getHeader().getHash()), 100).isEmpty());
+        assertNull(ReplayHeaderSource.fromStore(store, 10));
+        store.close();
+    }
+}
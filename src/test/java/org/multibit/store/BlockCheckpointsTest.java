@@ -0,0 +1,97 @@
+/**
+ * Copyright 2012 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import org.junit.Test;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.StoredBlock;
+
+public class BlockCheckpointsTest {
+
+    @Test
+    public void testSeedStoreFromCheckpoint() throws Exception {
+        NetworkParameters networkParameters = NetworkParameters.unitTests();
+        Address toAddress = new ECKey().toAddress(networkParameters);
+
+        File sourceBlockStore = File.createTempFile("BlockCheckpoints-source", null, null);
+        sourceBlockStore.deleteOnExit();
+        new File(sourceBlockStore.getPath() + BlockHashIndex.INDEX_SUFFIX).deleteOnExit();
+        new File(sourceBlockStore.getPath() + BlockHeightIndex.HEIGHTS_SUFFIX).deleteOnExit();
+        new File(sourceBlockStore.getPath() + BlockHashFilter.FILTER_SUFFIX).deleteOnExit();
+
+        // A chain with a few difficulty transition points.
+        ReplayableBlockStore source = new ReplayableBlockStore(networkParameters, sourceBlockStore, true);
+        int chainLength = networkParameters.interval * 3 + 5;
+        StoredBlock[] blocks = new StoredBlock[chainLength + 1];
+        blocks[0] = source.getChainHead();
+        for (int i = 1; i < blocks.length; i++) {
+            blocks[i] = blocks[i - 1].build(blocks[i - 1].getHeader().createNextBlock(toAddress).cloneAsHeader());
+            source.put(blocks[i]);
+            source.setChainHead(blocks[i]);
+        }
+
+        // Checkpoints survive being written and read back.
+        BlockCheckpoints created = BlockCheckpoints.create(networkParameters, source);
+        source.close();
+        assertEquals(3, created.size());
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        created.write(outputStream);
+        BlockCheckpoints checkpoints = BlockCheckpoints.read(networkParameters,
+                new ByteArrayInputStream(outputStream.toByteArray()));
+        assertEquals(created.getCheckpoints(), checkpoints.getCheckpoints());
+
+        int interval = networkParameters.interval;
+        assertEquals(blocks[interval * 3], checkpoints.getLatest());
+        assertEquals(blocks[interval * 2],
+                checkpoints.getCheckpointBefore(blocks[interval * 3].getHeader().getTimeSeconds()));
+        assertNull(checkpoints.getCheckpointBefore(blocks[interval].getHeader().getTimeSeconds()));
+
+        // A new store seeded from a checkpoint carries on from it.
+        File seededBlockStore = File.createTempFile("BlockCheckpoints-seeded", null, null);
+        seededBlockStore.deleteOnExit();
+        new File(seededBlockStore.getPath() + BlockHashIndex.INDEX_SUFFIX).deleteOnExit();
+        new File(seededBlockStore.getPath() + BlockHeightIndex.HEIGHTS_SUFFIX).deleteOnExit();
+        new File(seededBlockStore.getPath() + BlockHashFilter.FILTER_SUFFIX).deleteOnExit();
+
+        ReplayableBlockStore seeded = new ReplayableBlockStore(networkParameters, seededBlockStore, true);
+        seeded.seedFromCheckpoint(checkpoints.getLatest());
+        assertEquals(blocks[interval * 3], seeded.getChainHead());
+        for (int i = interval * 3 + 1; i < blocks.length; i++) {
+            seeded.put(blocks[i]);
+            seeded.setChainHead(blocks[i]);
+        }
+        seeded.close();
+
+        seeded = new ReplayableBlockStore(networkParameters, seededBlockStore, false);
+        assertEquals(blocks[chainLength], seeded.getChainHead());
+        assertEquals(blocks[interval * 3 + 2], seeded.getBlockAtHeight(interval * 3 + 2));
+        // Blocks before the checkpoint were never downloaded.
+        assertNull(seeded.getBlockAtHeight(interval * 3 - 1));
+        assertNull(seeded.getBlockBefore(blocks[interval * 3].getHeader().getTimeSeconds()));
+        assertEquals(blocks[interval * 3], seeded.getBlockBefore(blocks[interval * 3 + 1].getHeader().getTimeSeconds()));
+        seeded.close();
+    }
+}
@@ -16,14 +16,29 @@
 package org.multibit.store;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Test;
 
 import com.google.bitcoin.core.Address;
 import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
 import com.google.bitcoin.core.StoredBlock;
 
 public class ReplayableBlockStoreTest {
@@ -33,6 +48,9 @@ public class ReplayableBlockStoreTest {
         File temporaryBlockStore = File.createTempFile("ReplayableBlockStore-testBasicStorage", null, null);
         System.out.println(temporaryBlockStore.getAbsolutePath());
         temporaryBlockStore.deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHashIndex.INDEX_SUFFIX).deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHeightIndex.HEIGHTS_SUFFIX).deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHashFilter.FILTER_SUFFIX).deleteOnExit();
 
         NetworkParameters networkParameters = NetworkParameters.unitTests();
         Address toAddress1 = new ECKey().toAddress(networkParameters);
@@ -79,6 +97,9 @@ public class ReplayableBlockStoreTest {
         File temporaryBlockStore = File.createTempFile("ReplayableBlockStore-testReplay", null, null);
         System.out.println(temporaryBlockStore.getAbsolutePath());
         temporaryBlockStore.deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHashIndex.INDEX_SUFFIX).deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHeightIndex.HEIGHTS_SUFFIX).deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHashFilter.FILTER_SUFFIX).deleteOnExit();
 
         NetworkParameters networkParameters = NetworkParameters.unitTests();
         Address toAddress1 = new ECKey().toAddress(networkParameters);
@@ -115,4 +136,627 @@ public class ReplayableBlockStoreTest {
         
         assertEquals("setChainHeadAndTruncate did not roll back blockstore", blockSizeAfterFirstBlockAdded, blockSizeAfterSetChainHeadAndTruncate);
     }
+
+    @Test
+    public void testIndexFindsBlocksAfterReload() throws Exception {
+        File temporaryBlockStore = File.createTempFile("ReplayableBlockStore-testIndex", null, null);
+        temporaryBlockStore.deleteOnExit();
+        File index = new File(temporaryBlockStore.getPath() + BlockHashIndex.INDEX_SUFFIX);
+        index.deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHeightIndex.HEIGHTS_SUFFIX).deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHashFilter.FILTER_SUFFIX).deleteOnExit();
+
+        NetworkParameters networkParameters = NetworkParameters.unitTests();
+        Address toAddress = new ECKey().toAddress(networkParameters);
+
+        ReplayableBlockStore store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, true);
+
+        // Store enough blocks to make the index grow.
+        StoredBlock[] blocks = new StoredBlock[1500];
+        StoredBlock previous = store.getChainHead();
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = previous.build(previous.getHeader().createNextBlock(toAddress).cloneAsHeader());
+            store.put(blocks[i]);
+            previous = blocks[i];
+        }
+        store.setChainHead(previous);
+        store.close();
+
+        // A cleanly closed index is reused.
+        store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, false);
+        for (StoredBlock block : blocks) {
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        }
+        assertEquals(previous, store.getChainHead());
+        store.close();
+
+        // A missing index is rebuilt.
+        assertTrue(index.delete());
+        store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, false);
+        assertEquals(blocks[700], store.get(blocks[700].getHeader().getHash()));
+        assertEquals(previous, store.getChainHead());
+
+        // Truncated blocks are forgotten and do not reappear when the record
+        // they were in is reused.
+        store.setChainHeadAndTruncate(blocks[9]);
+        assertNull(store.get(blocks[10].getHeader().getHash()));
+        StoredBlock fork = blocks[9].build(blocks[9].getHeader().createNextBlock(new ECKey().toAddress(networkParameters))
+                .cloneAsHeader());
+        store.put(fork);
+        store.setChainHead(fork);
+        assertNull(store.get(blocks[10].getHeader().getHash()));
+        assertEquals(fork, store.get(fork.getHeader().getHash()));
+
+        // An index that was not closed is rebuilt.
+        store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, false);
+        assertNull(store.get(blocks[10].getHeader().getHash()));
+        assertEquals(fork, store.getChainHead());
+        store.close();
+    }
+
+    @Test
+    public void testTruncateFewBlocks() throws Exception {
+        File temporaryBlockStore = File.createTempFile("ReplayableBlockStore-testTruncateFewBlocks", null, null);
+        temporaryBlockStore.deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHashIndex.INDEX_SUFFIX).deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHeightIndex.HEIGHTS_SUFFIX).deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHashFilter.FILTER_SUFFIX).deleteOnExit();
+
+        NetworkParameters networkParameters = NetworkParameters.unitTests();
+        Address toAddress = new ECKey().toAddress(networkParameters);
+
+        ReplayableBlockStore store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, true);
+        StoredBlock[] blocks = new StoredBlock[200];
+        StoredBlock previous = store.getChainHead();
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = previous.build(previous.getHeader().createNextBlock(toAddress).cloneAsHeader());
+            store.put(blocks[i]);
+            previous = blocks[i];
+        }
+        store.setChainHead(previous);
+
+        // Dropping a few blocks from the end removes just their index entries.
+        store.setChainHeadAndTruncate(blocks[189]);
+        for (int i = 190; i < blocks.length; i++) {
+            assertNull(store.get(blocks[i].getHeader().getHash()));
+        }
+        assertEquals(blocks[0], store.get(blocks[0].getHeader().getHash()));
+        assertEquals(blocks[189], store.get(blocks[189].getHeader().getHash()));
+
+        StoredBlock fork = blocks[189].build(blocks[189].getHeader().createNextBlock(new ECKey().toAddress(networkParameters))
+                .cloneAsHeader());
+        store.put(fork);
+        store.setChainHead(fork);
+        store.close();
+
+        // The index is still consistent after a reload.
+        store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, false);
+        assertEquals(fork, store.getChainHead());
+        assertEquals(blocks[100], store.get(blocks[100].getHeader().getHash()));
+        assertNull(store.get(blocks[190].getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void testMemoryMappedReads() throws Exception {
+        File temporaryBlockStore = File.createTempFile("ReplayableBlockStore-testMemoryMapped", null, null);
+        temporaryBlockStore.deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHashIndex.INDEX_SUFFIX).deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHeightIndex.HEIGHTS_SUFFIX).deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHashFilter.FILTER_SUFFIX).deleteOnExit();
+
+        NetworkParameters networkParameters = NetworkParameters.unitTests();
+        Address toAddress = new ECKey().toAddress(networkParameters);
+
+        ReplayableBlockStore store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, true);
+        store.setMemoryMapped(true);
+        store.setMappedChunkRecords(10);
+
+        StoredBlock[] blocks = new StoredBlock[55];
+        StoredBlock previous = store.getChainHead();
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = previous.build(previous.getHeader().createNextBlock(toAddress).cloneAsHeader());
+            store.put(blocks[i]);
+            previous = blocks[i];
+        }
+        store.setChainHead(previous);
+        store.close();
+
+        // Read back through the complete mapped chunks and the mapped tail.
+        store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, false);
+        store.setMemoryMapped(true);
+        store.setMappedChunkRecords(10);
+        for (StoredBlock block : blocks) {
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        }
+
+        // Truncate into a mapped chunk and carry on.
+        store.setChainHeadAndTruncate(blocks[24]);
+        assertNull(store.get(blocks[30].getHeader().getHash()));
+        StoredBlock next = blocks[24].build(blocks[24].getHeader().createNextBlock(new ECKey().toAddress(networkParameters))
+                .cloneAsHeader());
+        store.put(next);
+        store.setChainHead(next);
+        assertEquals(blocks[3], store.get(blocks[3].getHeader().getHash()));
+        assertEquals(next, store.getChainHead());
+
+        // Records written after the tail was mapped are read by mapping it
+        // again, and past the end of the chunk through the next one.
+        assertEquals(next, store.getBlockAtHeight(next.getHeight()));
+        previous = next;
+        for (int i = 0; i < 6; i++) {
+            next = previous.build(previous.getHeader().createNextBlock(toAddress).cloneAsHeader());
+            store.put(next);
+            store.setChainHead(next);
+            assertEquals(next, store.getBlockAtHeight(next.getHeight()));
+            assertEquals(previous, store.getBlockAtHeight(previous.getHeight()));
+            previous = next;
+        }
+        store.close();
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        File temporaryBlockStore = File.createTempFile("ReplayableBlockStore-testGroupCommit", null, null);
+        temporaryBlockStore.deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHashIndex.INDEX_SUFFIX).deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHeightIndex.HEIGHTS_SUFFIX).deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHashFilter.FILTER_SUFFIX).deleteOnExit();
+
+        NetworkParameters networkParameters = NetworkParameters.unitTests();
+        Address toAddress = new ECKey().toAddress(networkParameters);
+
+        ReplayableBlockStore store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, true);
+        StoredBlock genesis = store.getChainHead();
+        long emptyLength = temporaryBlockStore.length();
+
+        // Commit every 10 blocks, with a delay long enough not to fire during
+        // the test.
+        store.setGroupCommit(10, 60 * 60 * 1000);
+
+        StoredBlock[] blocks = new StoredBlock[25];
+        StoredBlock previous = genesis;
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = previous.build(previous.getHeader().createNextBlock(toAddress).cloneAsHeader());
+            store.put(blocks[i]);
+            store.setChainHead(blocks[i]);
+            previous = blocks[i];
+        }
+
+        // Two batches are on disk, the rest are still readable from memory.
+        assertEquals(emptyLength + 20 * ReplayableBlockStore.Record.SIZE, temporaryBlockStore.length());
+        assertEquals(blocks[22], store.get(blocks[22].getHeader().getHash()));
+        assertEquals(blocks[24], store.getChainHead());
+
+        // Reopening a copy of the file without a flush, as after a crash,
+        // comes back at the last committed chain head. The second batch was
+        // written by the put() of blocks[19], before it was made the chain
+        // head.
+        File crashedBlockStore = File.createTempFile("ReplayableBlockStore-testGroupCommitCrash", null, null);
+        crashedBlockStore.deleteOnExit();
+        new File(crashedBlockStore.getPath() + BlockHashIndex.INDEX_SUFFIX).deleteOnExit();
+        new File(crashedBlockStore.getPath() + BlockHeightIndex.HEIGHTS_SUFFIX).deleteOnExit();
+        new File(crashedBlockStore.getPath() + BlockHashFilter.FILTER_SUFFIX).deleteOnExit();
+        copyFile(temporaryBlockStore, crashedBlockStore);
+        ReplayableBlockStore recovered = new ReplayableBlockStore(networkParameters, crashedBlockStore, false);
+        assertEquals(blocks[18], recovered.getChainHead());
+        assertEquals(blocks[19], recovered.get(blocks[19].getHeader().getHash()));
+        assertNull(recovered.get(blocks[20].getHeader().getHash()));
+        recovered.close();
+
+        // After a flush everything is durable.
+        store.flush();
+        assertEquals(emptyLength + 25 * ReplayableBlockStore.Record.SIZE, temporaryBlockStore.length());
+        store.close();
+        store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, false);
+        assertEquals(blocks[24], store.getChainHead());
+        assertEquals(blocks[22], store.get(blocks[22].getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void testHeightIndex() throws Exception {
+        File temporaryBlockStore = File.createTempFile("ReplayableBlockStore-testHeightIndex", null, null);
+        temporaryBlockStore.deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHashIndex.INDEX_SUFFIX).deleteOnExit();
+        File heights = new File(temporaryBlockStore.getPath() + BlockHeightIndex.HEIGHTS_SUFFIX);
+        heights.deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHashFilter.FILTER_SUFFIX).deleteOnExit();
+
+        NetworkParameters networkParameters = NetworkParameters.unitTests();
+        Address toAddress = new ECKey().toAddress(networkParameters);
+
+        ReplayableBlockStore store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, true);
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(genesis, store.getBlockAtHeight(0));
+
+        StoredBlock[] blocks = new StoredBlock[101];
+        blocks[0] = genesis;
+        for (int i = 1; i < blocks.length; i++) {
+            blocks[i] = blocks[i - 1].build(blocks[i - 1].getHeader().createNextBlock(toAddress).cloneAsHeader());
+            store.put(blocks[i]);
+            store.setChainHead(blocks[i]);
+        }
+        for (int i = 0; i < blocks.length; i++) {
+            assertEquals(blocks[i], store.getBlockAtHeight(i));
+        }
+        assertNull(store.getBlockAtHeight(blocks.length));
+        assertNull(store.getBlockAtHeight(-1));
+
+        // Time lookups.
+        assertEquals(blocks[50], store.getBlockBefore(blocks[51].getHeader().getTimeSeconds()));
+        assertEquals(blocks[50], store.getBlockBefore(blocks[50].getHeader().getTimeSeconds() + 1));
+        assertEquals(blocks[100], store.getBlockBefore(Long.MAX_VALUE));
+        assertNull(store.getBlockBefore(genesis.getHeader().getTimeSeconds()));
+
+        // A side chain that becomes the main chain replaces the heights above
+        // the fork.
+        StoredBlock fork = blocks[60];
+        StoredBlock[] forkBlocks = new StoredBlock[45];
+        for (int i = 0; i < forkBlocks.length; i++) {
+            fork = fork.build(fork.getHeader().createNextBlock(new ECKey().toAddress(networkParameters)).cloneAsHeader());
+            store.put(fork);
+            forkBlocks[i] = fork;
+        }
+        store.setChainHead(fork);
+        assertEquals(blocks[60], store.getBlockAtHeight(60));
+        assertEquals(forkBlocks[0], store.getBlockAtHeight(61));
+        assertEquals(fork, store.getBlockAtHeight(105));
+        store.close();
+
+        // The saved heights are reused and a missing file is rebuilt.
+        store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, false);
+        assertEquals(forkBlocks[10], store.getBlockAtHeight(71));
+        store.close();
+        assertTrue(heights.delete());
+        store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, false);
+        assertEquals(forkBlocks[10], store.getBlockAtHeight(71));
+        assertEquals(blocks[30], store.getBlockAtHeight(30));
+
+        // Truncating drops the heights above the new chain head.
+        store.setChainHeadAndTruncate(blocks[40]);
+        assertEquals(blocks[40], store.getBlockAtHeight(40));
+        assertNull(store.getBlockAtHeight(41));
+
+        // Heights that were not saved are rebuilt.
+        store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, false);
+        assertEquals(blocks[40], store.getChainHead());
+        assertEquals(blocks[20], store.getBlockAtHeight(20));
+        assertNull(store.getBlockAtHeight(41));
+        store.close();
+    }
+
+    @Test
+    public void testReadsWhileWriting() throws Exception {
+        File temporaryBlockStore = File.createTempFile("ReplayableBlockStore-testReadsWhileWriting", null, null);
+        temporaryBlockStore.deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHashIndex.INDEX_SUFFIX).deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHeightIndex.HEIGHTS_SUFFIX).deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHashFilter.FILTER_SUFFIX).deleteOnExit();
+
+        NetworkParameters networkParameters = NetworkParameters.unitTests();
+        Address toAddress = new ECKey().toAddress(networkParameters);
+
+        final ReplayableBlockStore store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, true);
+        store.setMemoryMapped(true);
+        store.setMappedChunkRecords(16);
+        store.setGroupCommit(7, 60 * 60 * 1000);
+
+        final StoredBlock[] blocks = new StoredBlock[300];
+        blocks[0] = store.getChainHead();
+        for (int i = 1; i < blocks.length; i++) {
+            blocks[i] = blocks[i - 1].build(blocks[i - 1].getHeader().createNextBlock(toAddress).cloneAsHeader());
+        }
+
+        // Readers check every block they can see against the chain head they
+        // saw first.
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        Thread[] readers = new Thread[4];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (writing.get()) {
+                            StoredBlock head = store.getChainHead();
+                            int height = head.getHeight();
+                            assertEquals(blocks[height], head);
+                            StoredBlock atHeight = store.getBlockAtHeight(height / 2);
+                            assertEquals(blocks[height / 2], atHeight);
+                            assertEquals(blocks[height / 3], store.get(blocks[height / 3].getHeader().getHash()));
+                        }
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                }
+            };
+            readers[r].start();
+        }
+
+        for (int i = 1; i < blocks.length; i++) {
+            store.put(blocks[i]);
+            store.setChainHead(blocks[i]);
+        }
+        writing.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        store.close();
+
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.get(0));
+        }
+    }
+
+    @Test
+    public void testDamagedRecordTruncates() throws Exception {
+        File temporaryBlockStore = File.createTempFile("ReplayableBlockStore-testDamagedRecordTruncates", null, null);
+        temporaryBlockStore.deleteOnExit();
+        File indexFile = new File(temporaryBlockStore.getPath() + BlockHashIndex.INDEX_SUFFIX);
+        indexFile.deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHeightIndex.HEIGHTS_SUFFIX).deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHashFilter.FILTER_SUFFIX).deleteOnExit();
+
+        NetworkParameters networkParameters = NetworkParameters.unitTests();
+        Address toAddress = new ECKey().toAddress(networkParameters);
+
+        ReplayableBlockStore store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, true);
+        long emptyLength = temporaryBlockStore.length();
+        StoredBlock[] blocks = new StoredBlock[20];
+        StoredBlock previous = store.getChainHead();
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = previous.build(previous.getHeader().createNextBlock(toAddress).cloneAsHeader());
+            store.put(blocks[i]);
+            store.setChainHead(blocks[i]);
+            previous = blocks[i];
+        }
+        store.close();
+
+        // Damage the header of blocks[12] and lose the index, as after an
+        // unclean shutdown. The empty store already holds the genesis block.
+        RandomAccessFile file = new RandomAccessFile(temporaryBlockStore, "rw");
+        long position = emptyLength + 12 * ReplayableBlockStore.Record.SIZE + ReplayableBlockStore.Record.HEADER_OFFSET + 10;
+        file.seek(position);
+        int original = file.read();
+        file.seek(position);
+        file.write(original ^ 0xFF);
+        file.close();
+        assertTrue(indexFile.delete());
+
+        // The store keeps everything before the damaged record and the chain
+        // head falls back to the best block left.
+        store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, false);
+        assertEquals(emptyLength + 12 * ReplayableBlockStore.Record.SIZE, temporaryBlockStore.length());
+        assertEquals(blocks[11], store.getChainHead());
+        assertEquals(blocks[5], store.getBlockAtHeight(6));
+        assertNull(store.get(blocks[12].getHeader().getHash()));
+        assertNull(store.get(blocks[19].getHeader().getHash()));
+
+        // The lost blocks can be downloaded again.
+        for (int i = 12; i < blocks.length; i++) {
+            store.put(blocks[i]);
+            store.setChainHead(blocks[i]);
+        }
+        store.close();
+        store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, false);
+        assertEquals(blocks[19], store.getChainHead());
+        assertEquals(blocks[12], store.get(blocks[12].getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void testIndexOfAnotherStoreIsRebuilt() throws Exception {
+        File temporaryBlockStore = File.createTempFile("ReplayableBlockStore-testIndexOfAnother", null, null);
+        temporaryBlockStore.deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHashIndex.INDEX_SUFFIX).deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHeightIndex.HEIGHTS_SUFFIX).deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHashFilter.FILTER_SUFFIX).deleteOnExit();
+        File otherBlockStore = File.createTempFile("ReplayableBlockStore-testIndexOfAnother", null, null);
+        otherBlockStore.deleteOnExit();
+        new File(otherBlockStore.getPath() + BlockHashIndex.INDEX_SUFFIX).deleteOnExit();
+        new File(otherBlockStore.getPath() + BlockHeightIndex.HEIGHTS_SUFFIX).deleteOnExit();
+        new File(otherBlockStore.getPath() + BlockHashFilter.FILTER_SUFFIX).deleteOnExit();
+
+        NetworkParameters networkParameters = NetworkParameters.unitTests();
+        StoredBlock[] blocks = fillStore(networkParameters, temporaryBlockStore);
+        StoredBlock[] otherBlocks = fillStore(networkParameters, otherBlockStore);
+
+        // Replace the store with another one of the same length, leaving the
+        // index that was closed cleanly with the first one.
+        RandomAccessFile file = new RandomAccessFile(temporaryBlockStore, "rw");
+        byte[] otherStore = new byte[(int) otherBlockStore.length()];
+        RandomAccessFile other = new RandomAccessFile(otherBlockStore, "r");
+        other.readFully(otherStore);
+        other.close();
+        file.seek(0);
+        file.write(otherStore);
+        file.close();
+
+        // The index no longer matches the last record so it is rebuilt
+        // rather than pointing at the blocks of the other store.
+        ReplayableBlockStore store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, false);
+        assertNull(store.get(blocks[2].getHeader().getHash()));
+        assertEquals(otherBlocks[2], store.get(otherBlocks[2].getHeader().getHash()));
+        assertEquals(otherBlocks[otherBlocks.length - 1], store.getChainHead());
+        store.close();
+    }
+
+    private static StoredBlock[] fillStore(NetworkParameters networkParameters, File file) throws Exception {
+        Address toAddress = new ECKey().toAddress(networkParameters);
+        ReplayableBlockStore store = new ReplayableBlockStore(networkParameters, file, true);
+        StoredBlock[] blocks = new StoredBlock[5];
+        StoredBlock previous = store.getChainHead();
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = previous.build(previous.getHeader().createNextBlock(toAddress).cloneAsHeader());
+            store.put(blocks[i]);
+            store.setChainHead(blocks[i]);
+            previous = blocks[i];
+        }
+        store.close();
+        return blocks;
+    }
+
+    @Test
+    public void testVersion1StoreIsMigrated() throws Exception {
+        File temporaryBlockStore = File.createTempFile("ReplayableBlockStore-testVersion1StoreIsMigrated", null, null);
+        temporaryBlockStore.deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHashIndex.INDEX_SUFFIX).deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHeightIndex.HEIGHTS_SUFFIX).deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHashFilter.FILTER_SUFFIX).deleteOnExit();
+
+        NetworkParameters networkParameters = NetworkParameters.unitTests();
+        Address toAddress = new ECKey().toAddress(networkParameters);
+
+        ReplayableBlockStore store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, true);
+        StoredBlock[] blocks = new StoredBlock[10];
+        StoredBlock previous = store.getChainHead();
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = previous.build(previous.getHeader().createNextBlock(toAddress).cloneAsHeader());
+            store.put(blocks[i]);
+            store.setChainHead(blocks[i]);
+            previous = blocks[i];
+        }
+        store.close();
+        long length = temporaryBlockStore.length();
+
+        // Rewrite the store in the first file format, without checksums.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        copyFile(temporaryBlockStore, bytes);
+        byte[] current = bytes.toByteArray();
+        int headerSize = 1 + 32;
+        FileOutputStream out = new FileOutputStream(temporaryBlockStore);
+        try {
+            out.write(1);
+            out.write(current, 1, headerSize - 1);
+            for (int offset = headerSize; offset < current.length; offset += ReplayableBlockStore.Record.SIZE) {
+                out.write(current, offset, ReplayableBlockStore.Record.DATA_SIZE);
+            }
+        } finally {
+            out.close();
+        }
+
+        store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, false);
+        assertEquals(length, temporaryBlockStore.length());
+        assertEquals(blocks[9], store.getChainHead());
+        assertEquals(blocks[4], store.get(blocks[4].getHeader().getHash()));
+        assertEquals(blocks[6], store.getBlockAtHeight(7));
+        store.close();
+    }
+
+    @Test
+    public void testInterruptedMigrationIsRecovered() throws Exception {
+        File temporaryBlockStore = File.createTempFile("ReplayableBlockStore-testInterruptedMigration", null, null);
+        temporaryBlockStore.deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHashIndex.INDEX_SUFFIX).deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHeightIndex.HEIGHTS_SUFFIX).deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHashFilter.FILTER_SUFFIX).deleteOnExit();
+        File migratedFile = new File(temporaryBlockStore.getPath() + ReplayableBlockStore.MIGRATED_SUFFIX);
+        migratedFile.deleteOnExit();
+        File backupFile = new File(temporaryBlockStore.getPath() + ReplayableBlockStore.VERSION_1_BACKUP_SUFFIX);
+        backupFile.deleteOnExit();
+
+        NetworkParameters networkParameters = NetworkParameters.unitTests();
+        StoredBlock[] blocks = fillStore(networkParameters, temporaryBlockStore);
+
+        // Interrupted after the original was moved to the backup but before
+        // the migrated store was moved into its place.
+        copyFile(temporaryBlockStore, migratedFile);
+        assertTrue(temporaryBlockStore.renameTo(backupFile));
+        ReplayableBlockStore store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, false);
+        assertEquals(blocks[4], store.getChainHead());
+        store.close();
+        assertFalse(migratedFile.exists());
+        assertFalse(backupFile.exists());
+
+        // Interrupted whilst the migrated store was being written, so the
+        // original is still in place and the partial store is dropped.
+        FileOutputStream partial = new FileOutputStream(migratedFile);
+        partial.write(new byte[] { 2, 0, 0 });
+        partial.close();
+        store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, false);
+        assertEquals(blocks[4], store.getChainHead());
+        assertEquals(blocks[2], store.get(blocks[2].getHeader().getHash()));
+        store.close();
+        assertFalse(migratedFile.exists());
+    }
+
+    @Test
+    public void testHashFilter() throws Exception {
+        File temporaryBlockStore = File.createTempFile("ReplayableBlockStore-testHashFilter", null, null);
+        temporaryBlockStore.deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHashIndex.INDEX_SUFFIX).deleteOnExit();
+        new File(temporaryBlockStore.getPath() + BlockHeightIndex.HEIGHTS_SUFFIX).deleteOnExit();
+        File filterFile = new File(temporaryBlockStore.getPath() + BlockHashFilter.FILTER_SUFFIX);
+        filterFile.deleteOnExit();
+
+        NetworkParameters networkParameters = NetworkParameters.unitTests();
+        Address toAddress = new ECKey().toAddress(networkParameters);
+
+        ReplayableBlockStore store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, true);
+        StoredBlock[] blocks = new StoredBlock[30];
+        StoredBlock previous = store.getChainHead();
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = previous.build(previous.getHeader().createNextBlock(toAddress).cloneAsHeader());
+            store.put(blocks[i]);
+            store.setChainHead(blocks[i]);
+            previous = blocks[i];
+        }
+        store.close();
+        assertTrue(filterFile.exists());
+
+        // The saved filter is used and, if lost, rebuilt. Either way every
+        // stored block is still found.
+        for (int pass = 0; pass < 2; pass++) {
+            store = new ReplayableBlockStore(networkParameters, temporaryBlockStore, false);
+            for (StoredBlock block : blocks) {
+                assertEquals(block, store.get(block.getHeader().getHash()));
+            }
+            assertNull(store.get(new Sha256Hash(new byte[32])));
+            store.close();
+            assertTrue(filterFile.delete());
+        }
+
+        // Few hashes that were never put are let through.
+        BlockHashFilter filter = new BlockHashFilter(filterFile);
+        filter.reset(0);
+        Random random = new Random(1);
+        byte[] hash = new byte[32];
+        for (int i = 0; i < BlockHashFilter.MINIMUM_CAPACITY; i++) {
+            random.nextBytes(hash);
+            filter.put(hash);
+            assertTrue(filter.mightContain(hash));
+        }
+        assertTrue(!filter.isFull(BlockHashFilter.MINIMUM_CAPACITY));
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            random.nextBytes(hash);
+            if (filter.mightContain(hash)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("False positives: " + falsePositives, falsePositives < 200);
+    }
+
+    private static void copyFile(File from, OutputStream out) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        try {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void copyFile(File from, File to) throws IOException {
+        FileOutputStream out = new FileOutputStream(to);
+        try {
+            copyFile(from, out);
+        } finally {
+            out.close();
+        }
+    }
 }